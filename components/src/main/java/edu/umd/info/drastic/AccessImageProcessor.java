@@ -1,27 +1,35 @@
 package edu.umd.info.drastic;
 
 import static edu.umd.info.drastic.LDPHttpUtil.localhost;
-import static edu.umd.info.drastic.LDPHttpUtil.patchGraph;
+import static edu.umd.info.drastic.LDPHttpUtil.patch;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.inject.Inject;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Link;
 
@@ -29,11 +37,14 @@ import org.apache.commons.rdf.api.Dataset;
 import org.apache.commons.rdf.api.Graph;
 import org.apache.commons.rdf.api.IRI;
 import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.slf4j.Logger;
 import org.trellisldp.api.RDFFactory;
 import org.trellisldp.vocabulary.Trellis;
 
+import edu.umd.info.drastic.DerivativeCache.Kind;
+import io.smallrye.reactive.messaging.annotations.Blocking;
 import io.smallrye.reactive.messaging.kafka.Record;
 
 /**
@@ -49,91 +60,240 @@ public class AccessImageProcessor {
 
 	public static final int MAX_THUMBNAIL_DIM = 256;
 
-	private ExecutorService executorService = Executors.newFixedThreadPool(5);
+	/** Decoded bytes held per strip while encoding an access image. */
+	@Inject
+	@ConfigProperty(name = "trellis.accessimage.strip-bytes", defaultValue = "16777216")
+	long stripBytes;
+	
+	/** Derivatives whose encoded size may exceed this are uploaded while they are encoded. */
+	@Inject
+	@ConfigProperty(name = "trellis.accessimage.in-memory-bytes", defaultValue = "8388608")
+	long inMemoryBytes;
+
+	/** Tries per record before the failure is handed to the channel, which then redelivers the record. */
+	@Inject
+	@ConfigProperty(name = "trellis.accessimage.attempts", defaultValue = "3")
+	int attempts;
+
+	@Inject
+	DerivativeAdmissionScheduler scheduler;
+
+	@Inject
+	IIIFTileStore tileStore;
+
+	@Inject
+	DerivativePolicy policy;
+
+	@Inject
+	DerivativeProfiles profiles;
+
+	@Inject
+	FixityEngine fixity;
 	
 	private final RDF rdf = RDFFactory.getInstance();
 
+	/**
+	 * Runs on the accessimage worker pool and only returns once the derivatives are stored, so the record is
+	 * acknowledged after the work and replayed if the service stops first. Jobs wait here for image memory budget,
+	 * which holds back the consumer while the budget is full. A record whose derivatives cannot be stored after
+	 * trellis.accessimage.attempts tries is nacked, so it is not committed and comes again; only a binary no image
+	 * reader understands is acknowledged without derivatives.
+	 */
 	@Incoming("accessimage")
+	@Blocking(value = "accessimage", ordered = false)
 	public void process(Record<String, String> record) {
 		if (/* NPSFilenameUtil.isHierarchalConvention(record.key()) && */  record.key().endsWith(".tif")) {
+			if (!policy.isEager(record.key())) {
+				return; // made on first request by the derivative endpoint
+			}
 			LOGGER.debug("access image task: {}", record.key());
-			CompletableFuture.runAsync(() -> {
-				processImageFile(record.key());
-			}, executorService);
+			for (int attempt = 1;; attempt++) {
+				try {
+					processImageFile(record.key());
+					return;
+				} catch (IOException | URISyntaxException | RuntimeException e) {
+					if (attempt >= attempts) {
+						throw new CompletionException("Cannot make derivatives of " + record.key(), e);
+					}
+					LOGGER.warn("Attempt {} to make derivatives of {} failed", attempt, record.key(), e);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new CompletionException(e);
+				}
+			}
 		}
 	}
 
-	private void processImageFile(String binaryURIStr) {
+	private void processImageFile(String binaryURIStr) throws IOException, URISyntaxException, InterruptedException {
 		HttpClient http = HttpClient.newHttpClient();
-		File accessImg = null;
-		File thumbnailImg = null;
+		ImageInputStream iis = null;
+		ImageReader reader = null;
 		try {
-			HttpResponse<InputStream> res = http.send(HttpRequest.newBuilder().uri(localhost(binaryURIStr)).build(), BodyHandlers.ofInputStream());
-			List<String> links = res.headers().allValues(HttpHeaders.LINK);
-			final URI descriptionLoc = links.stream().map(Link::valueOf).filter(link -> "describedby".equals(link.getRel())).peek(System.out::println)
-					.map(Link::getUri).findFirst().orElse(null);
-			BufferedImage image = ImageIO.read(res.body());
-			accessImg = File.createTempFile("foo", ".png");
-			thumbnailImg = File.createTempFile("foo", ".png");
-			ImageIO.write(image, "PNG", accessImg);
-			String accessLoc = NPSFilenameUtil.getAccessImageURL(binaryURIStr);
-			HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofFile(accessImg.toPath());
-			try {
-				HttpResponse<Void> hres = http.send(HttpRequest.newBuilder(localhost(accessLoc)).method("PUT", publisher)
-					.header("Link", "<"+NPSVocabulary.LDP_NonRDFSource.getIRIString()+">; rel=\"type\"")
-					.header("Content-Type", "image/png").build(), BodyHandlers.discarding());
-				if (hres.statusCode() != 201) {
-					LOGGER.error("Problem putting access image: {}", hres.statusCode());
-					return;
+			// TIFF decoding seeks, so the image is read in place when trellis-file keeps it locally. Otherwise ImageIO
+			// spools the response to java.io.tmpdir, which keeps TIFFs of any size off the heap.
+			Optional<Path> local = fixity.localFile(binaryURIStr);
+			final URI descriptionLoc;
+			if (local.isPresent()) {
+				HttpResponse<Void> res = http.send(HttpRequest.newBuilder().uri(localhost(binaryURIStr))
+						.method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), BodyHandlers.discarding());
+				descriptionLoc = describedBy(res.headers().allValues(HttpHeaders.LINK));
+				iis = new FileImageInputStream(local.get().toFile());
+			} else {
+				HttpResponse<InputStream> res = http.send(HttpRequest.newBuilder().uri(localhost(binaryURIStr)).build(), BodyHandlers.ofInputStream());
+				descriptionLoc = describedBy(res.headers().allValues(HttpHeaders.LINK));
+				iis = ImageIO.createImageInputStream(res.body());
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) {
+				// permanent, another delivery would not find one either
+				LOGGER.error("No image reader for {}", binaryURIStr);
+				return;
+			}
+			reader = readers.next();
+			reader.setInput(iis, false, true);
+			DerivativeProfile accessProfile = profiles.get(Kind.access, binaryURIStr);
+			DerivativeProfile thumbProfile = profiles.get(Kind.thumbnail, binaryURIStr);
+			long estimate = DerivativeAdmissionScheduler.estimateBytes(reader, stripBytes, accessProfile, thumbProfile);
+			if (tileStore.isEnabled()) {
+				estimate += TilePyramidBuilder.estimateBytes(reader.getWidth(0), tileStore.getTileSize());
+			}
+			String imageService = null;
+			String accessLoc = accessProfile.url(binaryURIStr);
+			String thumbnailLoc = thumbProfile.url(binaryURIStr);
+			CompletableFuture<HttpResponse<Void>> thumbPut;
+			CompletableFuture<HttpResponse<Void>> accessPut;
+
+			// Budget is only held while pixels are decoded.
+			try (DerivativeAdmissionScheduler.Admission admission = scheduler.admit(estimate)) {
+				StripedImageSource source = new StripedImageSource(reader, stripBytes);
+				TilePyramidBuilder pyramid = null;
+				Consumer<BufferedImage> tileListener = null;
+				if (tileStore.isEnabled()) {
+					// the tile pyramid is built from the same strips a full resolution PNG writer pulls
+					imageService = tileStore.serviceId(binaryURIStr);
+					TilePyramidBuilder tiles = new TilePyramidBuilder(imageService, source.getWidth(),
+							source.getHeight(), tileStore.getTileSize(), tileStore.open(binaryURIStr));
+					tileListener = strip -> {
+						try {
+							tiles.accept(strip);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					};
+					pyramid = tiles;
+				}
+				if (pyramid != null && !accessProfile.isStriped(reader)) {
+					// No writer pulls the strips, so one pass over them feeds the pyramid and scales both
+					// derivatives, rather than decoding the full resolution image again for each.
+					StripScaler access = new StripScaler(source, accessProfile);
+					StripScaler thumb = new StripScaler(source, thumbProfile);
+					source.setStripListener(tileListener.andThen(access).andThen(thumb));
+					source.drain();
+					pyramid.finish();
+					thumbPut = put(http, thumbnailLoc, thumbProfile, thumbProfile.maxEncodedBytes(reader),
+							out -> thumbProfile.encode(thumb.image(), out));
+					accessPut = put(http, accessLoc, accessProfile, accessProfile.maxEncodedBytes(reader),
+							out -> accessProfile.encode(access.image(), out));
+				} else {
+					// thumbnail first, from a subsampled decode, then the access image
+					final ImageReader r = reader;
+					thumbPut = put(http, thumbnailLoc, thumbProfile, thumbProfile.maxEncodedBytes(reader),
+							out -> thumbProfile.write(r, new StripedImageSource(r, stripBytes), out));
+					source.setStripListener(tileListener);
+					accessPut = put(http, accessLoc, accessProfile, accessProfile.maxEncodedBytes(reader),
+							out -> accessProfile.write(r, source, out));
+					if (pyramid != null) {
+						pyramid.finish();
+					}
 				}
-			} catch(IOException ignored) {}
-			BufferedImage thumb = getThumbnailImage(image);
-			ImageIO.write(thumb, "PNG", thumbnailImg);
-			String thumbnailLoc = NPSFilenameUtil.getThumbnailImageURL(binaryURIStr);
-			HttpRequest.BodyPublisher pubThumb = HttpRequest.BodyPublishers.ofFile(thumbnailImg.toPath());
-			try {
-				http.send(HttpRequest.newBuilder(localhost(thumbnailLoc)).method("PUT", pubThumb)
-					.header("Link", "<"+NPSVocabulary.LDP_NonRDFSource.getIRIString()+">; rel=\"type\"")
-					.header("Content-Type", "image/png").build(), BodyHandlers.discarding());
-			} catch(IOException ignored) {}
-			patchImageDescription(binaryURIStr, descriptionLoc, accessLoc, thumbnailLoc);
-		} catch (/*IOException | URISyntaxException | InterruptedException |*/ Exception e) {
-			LOGGER.error("Unexpected problem", e);
-			return;
+			}
+
+			// the description only links the derivatives once both are stored
+			CompletableFuture.allOf(accessPut, thumbPut).exceptionally(e -> null).join();
+			if (!stored(accessPut, accessLoc) | !stored(thumbPut, thumbnailLoc)) {
+				throw new IOException("Derivatives of " + binaryURIStr + " were not stored");
+			}
+			if (descriptionLoc == null) {
+				throw new IOException("No description linked from " + binaryURIStr);
+			}
+			patchImageDescription(binaryURIStr, descriptionLoc, accessLoc, thumbnailLoc, imageService);
 		} finally {
-			if(accessImg != null && accessImg.exists()) {
-				accessImg.delete();
+			if (reader != null) {
+				reader.dispose();
 			}
-			if(thumbnailImg != null && thumbnailImg.exists()) {
-				thumbnailImg.delete();
+			if (iis != null) {
+				try {
+					iis.close();
+				} catch (IOException ignored) {}
 			}
 		}
 	}
-	
-	private void patchImageDescription(String binaryURI, URI descrLoc, String accessLoc, String thumbLoc) {
+
+	private static URI describedBy(List<String> links) {
+		return links.stream().map(Link::valueOf).filter(link -> "describedby".equals(link.getRel()))
+				.map(Link::getUri).findFirst().orElse(null);
+	}
+
+	/** Writes an encoded derivative. */
+	private interface Encoding {
+		void write(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Encodes a derivative into memory and puts it, or puts it while it is encoded if it may be large.
+	 */
+	private CompletableFuture<HttpResponse<Void>> put(HttpClient http, String loc, DerivativeProfile profile,
+			long maxEncodedBytes, Encoding encoding) throws IOException, URISyntaxException {
+		if (maxEncodedBytes <= inMemoryBytes) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			encoding.write(out);
+			return put(http, loc, profile, HttpRequest.BodyPublishers.ofByteArray(out.toByteArray()));
+		}
+		// large derivatives are uploaded while they are encoded
+		PipedBody body = new PipedBody();
+		CompletableFuture<HttpResponse<Void>> put = put(http, loc, profile, body.publisher());
+		try {
+			OutputStream out = body.out();
+			encoding.write(out);
+			out.close();
+		} catch (IOException | RuntimeException e) {
+			body.abort();
+			throw e;
+		}
+		return put;
+	}
+
+	private static CompletableFuture<HttpResponse<Void>> put(HttpClient http, String loc, DerivativeProfile profile,
+			HttpRequest.BodyPublisher body) throws URISyntaxException {
+		return http.sendAsync(HttpRequest.newBuilder(localhost(loc)).method("PUT", body)
+				.header("Link", "<"+NPSVocabulary.LDP_NonRDFSource.getIRIString()+">; rel=\"type\"")
+				.header("Content-Type", profile.mediaType()).build(), BodyHandlers.discarding());
+	}
+
+	private static boolean stored(CompletableFuture<HttpResponse<Void>> put, String loc) {
+		try {
+			int status = put.join().statusCode();
+			if (status >= 300) {
+				LOGGER.error("Problem putting {}: {}", loc, status);
+				return false;
+			}
+			return true;
+		} catch (CompletionException e) {
+			LOGGER.error("Problem putting {}", loc, e.getCause());
+			return false;
+		}
+	}
+
+	private void patchImageDescription(String binaryURI, URI descrLoc, String accessLoc, String thumbLoc,
+			String imageService) throws IOException, InterruptedException, URISyntaxException {
 		IRI binaryIRI = rdf.createIRI(binaryURI);
 		Dataset d = rdf.createDataset();
 	    Graph g = d.getGraph(Trellis.PreferUserManaged).get();
 	    g.add(binaryIRI, NPSVocabulary.NPS.hasAccess.iri, rdf.createIRI(accessLoc));
 	    g.add(binaryIRI, NPSVocabulary.NPS.hasThumbnail.iri, rdf.createIRI(thumbLoc));
-		patchGraph(g, descrLoc.toASCIIString());
+	    if (imageService != null) {
+	    	g.add(binaryIRI, NPSVocabulary.NPS.hasImageService.iri, rdf.createIRI(imageService));
+	    }
+		patch(g, descrLoc.toASCIIString());
 	}
-
-	private BufferedImage getThumbnailImage(BufferedImage image) {
-		final int w = image.getWidth();
-		final int h = image.getHeight();
-		float ratio = (float) w / (float) h;
-		int targetWidth = Math.min(MAX_THUMBNAIL_DIM, Math.max(w, h));
-		int targetHeight = targetWidth;
-		if (ratio < 1f) {
-		    targetWidth = (int) ((float)targetHeight * ratio);
-		} else {
-		    targetHeight = (int) ((float)targetWidth / ratio);
-		}
-		BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
-		final AffineTransform at = AffineTransform.getScaleInstance((float)targetWidth/w, (float)targetHeight/h);
-		final AffineTransformOp ato = new AffineTransformOp(at, AffineTransformOp.TYPE_BICUBIC);
-		return ato.filter(image, result);
-	}
-
 }
@@ -0,0 +1,623 @@
+package edu.umd.info.drastic;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.eclipse.microprofile.reactive.messaging.Metadata;
+import org.eclipse.microprofile.reactive.messaging.OnOverflow;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.vocabulary.LDP;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.smallrye.reactive.messaging.kafka.api.OutgoingKafkaRecordMetadata;
+
+/**
+ * Walks a containment tree in-process and emits one message per resource to the crawl's target topic. Containers
+ * are read from the resource service, not over HTTP, and a fixed number of workers take containers from a bounded
+ * frontier; a worker that finds the frontier full crawls the container itself, so memory stays bounded on any tree.
+ * A visited set keeps every resource to one message per crawl: an exact set, replaced by a Bloom filter once a
+ * crawl grows past trellis.crawler.exact-visited-limit (a false positive, at the configured rate, skips a resource).
+ * <p>
+ * Emissions are rate limited. Each container whose own message and the messages of its non-container children are
+ * acknowledged by Kafka is appended to a checkpoint log, so a crawl interrupted by a restart, and triggered again with the same
+ * request, walks the tree again without emitting those again. A finished crawl starts over when requested again.
+ * <p>
+ * When the {@link SubtreeEnumerator} is enabled the walk is replaced by one streamed query over the subtree in IRI
+ * order, and the checkpoint is the last IRI up to which every message was acknowledged. A crawl is only marked
+ * finished once all of its messages were acknowledged.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class ContainerCrawlEngine {
+	private static final Logger LOGGER = getLogger(ContainerCrawlEngine.class);
+
+	private static final String FINISHED = "#finished";
+
+	private static final int CHECKPOINT_EVERY = 1000;
+
+	/** How long a stopped crawl waits for outstanding acknowledgements before it closes its checkpoint. */
+	private static final long STOP_WAIT_SECONDS = 10;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.concurrency", defaultValue = "8")
+	int concurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.frontier-size", defaultValue = "10000")
+	int frontierSize;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.emits-per-second", defaultValue = "5000")
+	double emitsPerSecond;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.exact-visited-limit", defaultValue = "100000")
+	int exactVisitedLimit;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.expected-resources", defaultValue = "10000000")
+	long expectedResources;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.false-positive-rate", defaultValue = "0.000001")
+	double falsePositiveRate;
+
+	@Inject
+	@ConfigProperty(name = "trellis.crawler.checkpoint-directory", defaultValue = "data/crawl-checkpoints")
+	String checkpointDirectory;
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	SubtreeEnumerator subtree;
+
+	@Inject
+	ResourceNotifications notifications;
+
+	@Inject
+	@Channel("crawl-emit")
+	@OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
+	Emitter<String> emitter;
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	private final ConcurrentMap<String, Crawl> active = new ConcurrentHashMap<String, Crawl>();
+
+	private final AtomicInteger threadNo = new AtomicInteger();
+
+	private final ExecutorService coordinators = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "crawl-" + threadNo.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	@PreDestroy
+	void shutdown() {
+		active.values().forEach(Crawl::stop);
+		coordinators.shutdownNow();
+	}
+
+	/**
+	 * Starts a crawl unless the same crawl is already running.
+	 * @return false if it is already running
+	 */
+	public boolean start(LDPCrawlRequest req) {
+		String id = crawlId(req);
+		Crawl crawl = new Crawl(id, req);
+		if (active.putIfAbsent(id, crawl) != null) {
+			LOGGER.info("Crawl {} of {} is already running", id, req.startUri);
+			return false;
+		}
+		coordinators.submit(() -> {
+			try {
+				crawl.run();
+			} catch (Exception e) {
+				LOGGER.error("Crawl {} of {} failed", id, req.startUri, e);
+			} finally {
+				active.remove(id);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Identifies a crawl by what it does, so a repeated request resumes it.
+	 */
+	static String crawlId(LDPCrawlRequest req) {
+		String given = req.options != null ? req.options.get("crawlId") : null;
+		if (given != null && given.matches("[A-Za-z0-9_-]+")) return given;
+		return DigestUtils.sha1Hex(req.startUri + "|" + req.depth + "|" + req.kafkaTopic);
+	}
+
+	private class Crawl {
+		final String id;
+		final LDPCrawlRequest req;
+		final String base;
+		final BlockingQueue<Node> frontier = new LinkedBlockingQueue<Node>(frontierSize);
+		final AtomicLong pending = new AtomicLong();
+		final AtomicLong emitted = new AtomicLong();
+		final AtomicLong skipped = new AtomicLong();
+		final AtomicLong nacked = new AtomicLong();
+		/** Containers waiting for the acknowledgement of their messages before they are checkpointed. */
+		final Set<CompletableFuture<Void>> unchecked = ConcurrentHashMap.newKeySet();
+		final VisitedSet visited = new VisitedSet(exactVisitedLimit, expectedResources, falsePositiveRate);
+		final RateLimiter rate = RateLimiter.create(emitsPerSecond);
+		volatile boolean stopped = false;
+		Set<String> done = new HashSet<String>();
+		BufferedWriter checkpoint;
+
+		Crawl(String id, LDPCrawlRequest req) {
+			this.id = id;
+			this.req = req;
+			this.base = SubtreeEnumerator.base(req.startUri);
+		}
+
+		void stop() {
+			stopped = true;
+		}
+
+		void run() throws Exception {
+			if (subtree.isEnabled()) {
+				runEnumerated();
+				return;
+			}
+			openCheckpoint();
+			long started = System.currentTimeMillis();
+			LOGGER.info("Crawl {} of {} to depth {} started, {} containers already done", id, req.startUri, req.depth,
+					done.size());
+			visited.add(req.startUri);
+			pending.incrementAndGet();
+			frontier.put(new Node(req.startUri, req.depth));
+			ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+				Thread t = new Thread(r, "crawl-" + id.substring(0, Math.min(8, id.length())) + "-worker");
+				t.setDaemon(true);
+				return t;
+			});
+			try {
+				for (int i = 0; i < concurrency; i++) {
+					workers.submit(this::work);
+				}
+				workers.shutdown();
+				while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+					LOGGER.info("Crawl {}: {} emitted, {} already done, {} pending", id, emitted.get(), skipped.get(),
+							pending.get());
+				}
+			} finally {
+				workers.shutdownNow();
+				awaitAcknowledged();
+				synchronized (this) {
+					if (!stopped && pending.get() == 0 && nacked.get() == 0) {
+						checkpoint.write(FINISHED);
+						checkpoint.newLine();
+					}
+					checkpoint.close();
+				}
+			}
+			LOGGER.info("Crawl {} of {} finished: {} emitted, {} not acknowledged, {} already done, {} taken as seen by "
+					+ "the Bloom filter, in {} s", id, req.startUri, emitted.get(), nacked.get(), skipped.get(),
+					visited.bloomHits(), (System.currentTimeMillis() - started) / 1000);
+		}
+
+		/**
+		 * Waits until the containers emitted so far are checkpointed or failed, only for a while if stopped.
+		 */
+		private void awaitAcknowledged() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(STOP_WAIT_SECONDS);
+			while (!unchecked.isEmpty() && (!stopped || System.currentTimeMillis() < deadline)) {
+				try {
+					CompletableFuture.allOf(unchecked.toArray(new CompletableFuture[0])).exceptionally(e -> null)
+							.get(1, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					LOGGER.debug("Crawl {}: waiting for {} containers to be acknowledged", id, unchecked.size());
+				} catch (ExecutionException e) {
+					// counted in nacked
+				}
+			}
+		}
+
+		/**
+		 * Emits the subtree as enumerated in IRI order by one streamed query, checkpointing the last IRI emitted.
+		 */
+		private void runEnumerated() throws IOException, SQLException {
+			Path dir = Paths.get(checkpointDirectory);
+			Files.createDirectories(dir);
+			Path log = dir.resolve(id + ".after");
+			String after = null;
+			if (Files.exists(log)) {
+				String last = new String(Files.readAllBytes(log), UTF_8).trim();
+				if (!FINISHED.equals(last) && !last.isEmpty()) after = last;
+			}
+			long started = System.currentTimeMillis();
+			LOGGER.info("Crawl {} of {} to depth {} started{}", id, req.startUri, req.depth,
+					after != null ? ", resuming after " + after : "");
+			SubtreeEnumerator.Query q = new SubtreeEnumerator.Query(toInternal(req.startUri)).maxDepth(req.depth)
+					.orderedAfter(after);
+			AckedPosition acks = new AckedPosition(after);
+			try {
+				subtree.enumerate(q, e -> {
+					if (stopped) throw new CrawlStopped();
+					acks.track(e.subject.getIRIString(), emit(e.external(base)));
+					if (emitted.get() % CHECKPOINT_EVERY == 0) {
+						acks.position().ifPresent(p -> saveAfter(log, p));
+					}
+				});
+			} catch (CrawlStopped e) {
+				acks.await(STOP_WAIT_SECONDS);
+				acks.position().ifPresent(p -> saveAfter(log, p));
+				LOGGER.info("Crawl {} stopped after {} emitted", id, emitted.get());
+				return;
+			}
+			while (!acks.await(60)) {
+				LOGGER.info("Crawl {}: {} emitted, waiting for acknowledgements", id, emitted.get());
+			}
+			if (acks.nacked() > 0) {
+				// resumes after the last position up to which everything got through
+				acks.position().ifPresent(p -> saveAfter(log, p));
+				LOGGER.warn("Crawl {} of {}: {} messages not acknowledged, run it again to resume", id, req.startUri,
+						acks.nacked());
+				return;
+			}
+			saveAfter(log, FINISHED);
+			LOGGER.info("Crawl {} of {} finished: {} emitted in {} s", id, req.startUri, emitted.get(),
+					(System.currentTimeMillis() - started) / 1000);
+		}
+
+		private void work() {
+			try {
+				while (!stopped) {
+					Node node = frontier.poll(100, TimeUnit.MILLISECONDS);
+					if (node == null) {
+						if (pending.get() == 0) return;
+						continue;
+					}
+					crawl(node);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Emits a container and its non-container children, and hands its child containers to the frontier.
+		 */
+		private void crawl(Node node) {
+			try {
+				Resource res = get(node.iri);
+				if (res == null) return;
+				boolean containerDone = done.contains(node.iri);
+				List<CompletableFuture<Void>> acks = new ArrayList<CompletableFuture<Void>>();
+				if (containerDone) skipped.incrementAndGet(); else acks.add(emit(node.iri));
+				if (node.depth <= 0 || !isContainer(res)) return;
+				res.stream(LDP.PreferContainment).filter(t -> LDP.contains.equals(t.getPredicate()))
+						.map(t -> t.getObject()).filter(o -> o instanceof IRI)
+						.map(o -> toExternal((IRI) o)).forEach(child -> {
+							if (stopped || !visited.add(child)) return;
+							Resource childRes = get(child);
+							if (childRes == null) return;
+							if (node.depth - 1 > 0 && isContainer(childRes)) {
+								pending.incrementAndGet();
+								if (!frontier.offer(new Node(child, node.depth - 1))) {
+									crawl(new Node(child, node.depth - 1)); // frontier full, go depth-first
+								}
+							} else if (containerDone) {
+								skipped.incrementAndGet();
+							} else {
+								acks.add(emit(child));
+							}
+						});
+				if (!containerDone && !stopped) markDoneWhenAcknowledged(node.iri, acks);
+			} catch (RuntimeException e) {
+				LOGGER.error("Crawl {} cannot crawl {}", id, node.iri, e);
+			} finally {
+				pending.decrementAndGet();
+			}
+		}
+
+		private Resource get(String iri) {
+			Resource res = resourceService.get(toInternal(iri)).toCompletableFuture().join();
+			if (res == Resource.MISSING_RESOURCE || res == Resource.DELETED_RESOURCE) return null;
+			return res;
+		}
+
+		/**
+		 * @return completes when Kafka acknowledged the message, or right away if the resource is gone
+		 */
+		private CompletableFuture<Void> emit(String iri) {
+			rate.acquire();
+			String message;
+			if("objects".equals(req.kafkaTopic) || "new-binaries".equals(req.kafkaTopic)) {
+				// serialize as ActivityStream, with the resource's own types and ETag
+				Optional<String> n = notifications.update(iri);
+				if (n.isEmpty()) return CompletableFuture.completedFuture(null);
+				message = n.get();
+			} else {
+				message = iri;
+			}
+			OutgoingKafkaRecordMetadata<String> metadata = OutgoingKafkaRecordMetadata.<String> builder()
+					.withKey(iri)
+					.withTopic(req.kafkaTopic)
+					.build();
+			CompletableFuture<Void> acked = new CompletableFuture<Void>();
+			emitter.send(Message.of(message, Metadata.of(metadata), () -> {
+				acked.complete(null);
+				return CompletableFuture.completedFuture(null);
+			}, e -> {
+				acked.completeExceptionally(e);
+				return CompletableFuture.completedFuture(null);
+			}));
+			emitted.incrementAndGet();
+			return acked;
+		}
+
+		private IRI toInternal(String iri) {
+			return SubtreeEnumerator.internal(iri);
+		}
+
+		private String toExternal(IRI internal) {
+			return base + "/" + internal.getIRIString().substring(TRELLIS_DATA_PREFIX.length());
+		}
+
+		private void openCheckpoint() throws IOException {
+			Path dir = Paths.get(checkpointDirectory);
+			Files.createDirectories(dir);
+			Path log = dir.resolve(id + ".log");
+			if (Files.exists(log)) {
+				List<String> lines = Files.readAllLines(log, UTF_8);
+				if (!lines.isEmpty() && FINISHED.equals(lines.get(lines.size() - 1))) {
+					Files.delete(log);
+				} else {
+					done = new HashSet<String>(lines);
+				}
+			}
+			checkpoint = Files.newBufferedWriter(log, UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		}
+
+		private void markDoneWhenAcknowledged(String container, List<CompletableFuture<Void>> acks) {
+			CompletableFuture<Void> all = CompletableFuture.allOf(acks.toArray(new CompletableFuture[0]));
+			unchecked.add(all);
+			all.whenComplete((v, e) -> {
+				if (e == null) {
+					markDone(container);
+				} else {
+					nacked.incrementAndGet();
+					LOGGER.warn("Crawl {}: messages of {} not acknowledged, it is emitted again on resume", id,
+							container, e);
+				}
+				unchecked.remove(all);
+			});
+		}
+
+		private synchronized void markDone(String container) {
+			try {
+				checkpoint.write(container);
+				checkpoint.newLine();
+				checkpoint.flush();
+			} catch (IOException e) {
+				LOGGER.warn("Crawl {} cannot checkpoint {}", id, container, e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces a checkpoint file in one move, so a crash never leaves half of one.
+	 */
+	private static void saveAfter(Path log, String last) {
+		try {
+			Path tmp = Files.createTempFile(log.getParent(), ".after", null);
+			Files.write(tmp, last.getBytes(UTF_8));
+			Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Cannot checkpoint crawl in {}", log, e);
+		}
+	}
+
+	/**
+	 * The last position of an ordered enumeration up to which every message was acknowledged, so a checkpoint never
+	 * skips a message that is still in flight or was lost.
+	 */
+	static class AckedPosition {
+		private final Deque<Position> inflight = new ArrayDeque<Position>();
+		private String acked;
+		private long outstanding = 0;
+		private long nacked = 0;
+
+		private static class Position {
+			final String iri;
+			boolean done = false;
+			boolean failed = false;
+
+			Position(String iri) {
+				this.iri = iri;
+			}
+		}
+
+		/**
+		 * @param start the position a resumed enumeration starts after, or null
+		 */
+		AckedPosition(String start) {
+			this.acked = start;
+		}
+
+		/**
+		 * Tracks the next position in order.
+		 * @param iri the position
+		 * @param ack completes when its message is acknowledged
+		 */
+		void track(String iri, CompletableFuture<Void> ack) {
+			Position p = new Position(iri);
+			synchronized (this) {
+				outstanding++;
+				// after a failure the position cannot move past it, so later ones need not be kept
+				if (nacked == 0) inflight.addLast(p);
+			}
+			ack.whenComplete((v, e) -> settle(p, e == null));
+		}
+
+		private synchronized void settle(Position p, boolean ok) {
+			p.done = true;
+			outstanding--;
+			if (!ok) {
+				p.failed = true;
+				if (++nacked == 1) {
+					// tracked while nothing had failed, so it is queued; the positions after it are not needed
+					while (inflight.peekLast() != p) {
+						inflight.removeLast();
+					}
+				}
+			}
+			while (!inflight.isEmpty() && inflight.peekFirst().done && !inflight.peekFirst().failed) {
+				acked = inflight.removeFirst().iri;
+			}
+			notifyAll();
+		}
+
+		/**
+		 * @return the last position up to which everything was acknowledged
+		 */
+		synchronized Optional<String> position() {
+			return Optional.ofNullable(acked);
+		}
+
+		synchronized long nacked() {
+			return nacked;
+		}
+
+		/**
+		 * Waits until no tracked message is outstanding.
+		 * @return false if some still are after the given time
+		 */
+		synchronized boolean await(long seconds) {
+			long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+			try {
+				while (outstanding > 0) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) return false;
+					wait(left);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Ends an enumeration early.
+	 */
+	private static class CrawlStopped extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CrawlStopped() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static boolean isContainer(Resource res) {
+		IRI model = res.getInteractionModel();
+		return LDP.Container.equals(model) || LDP.BasicContainer.equals(model) || LDP.DirectContainer.equals(model)
+				|| LDP.IndirectContainer.equals(model);
+	}
+
+	private static class Node {
+		final String iri;
+		final int depth;
+
+		Node(String iri, int depth) {
+			this.iri = iri;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * The resources seen in a crawl: exact while small, a Bloom filter of the expected size beyond that.
+	 */
+	static class VisitedSet {
+		private final int exactLimit;
+		private final long expected;
+		private final double fpp;
+		private Set<String> exact = new HashSet<String>();
+		private BloomFilter<CharSequence> bloom = null;
+		private long bloomHits = 0;
+
+		VisitedSet(int exactLimit, long expected, double fpp) {
+			this.exactLimit = exactLimit;
+			this.expected = expected;
+			this.fpp = fpp;
+		}
+
+		/**
+		 * @return true if the resource was not seen before
+		 */
+		synchronized boolean add(String iri) {
+			if (bloom != null) {
+				if (bloom.put(iri)) return true;
+				bloomHits++; // seen before, or a false positive
+				return false;
+			}
+			boolean added = exact.add(iri);
+			if (exact.size() > exactLimit) {
+				bloom = BloomFilter.create(Funnels.stringFunnel(UTF_8), Math.max(expected, exactLimit * 2L), fpp);
+				exact.forEach(bloom::put);
+				exact = null;
+			}
+			return added;
+		}
+
+		/**
+		 * @return how many resources the Bloom filter took as seen, the false positives among them were skipped
+		 */
+		synchronized long bloomHits() {
+			return bloomHits;
+		}
+	}
+}
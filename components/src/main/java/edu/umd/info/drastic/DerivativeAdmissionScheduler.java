@@ -0,0 +1,104 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageReader;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+
+/**
+ * Admits image derivative jobs against a shared memory budget. Each job estimates its decoded working set from the
+ * image header and its derivative profiles before any pixels are read and blocks until that much of the budget is free. Callers run on the
+ * consumer's worker threads, so a full budget stops those threads and with them the polling of new records. A job
+ * larger than the whole budget is admitted alone.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DerivativeAdmissionScheduler {
+	private static final Logger LOGGER = getLogger(DerivativeAdmissionScheduler.class);
+
+	private static final long MB = 1024 * 1024;
+
+	@Inject
+	@ConfigProperty(name = "trellis.accessimage.memory-budget-mb", defaultValue = "512")
+	int budgetMb;
+
+	@Inject
+	MetricRegistry metrics;
+
+	private Semaphore budget;
+
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	@PostConstruct
+	void initialize() {
+		budget = new Semaphore(budgetMb, true);
+		metrics.gauge("accessimage-budget-available-mb", budget, Semaphore::availablePermits);
+		metrics.gauge("accessimage-admission-waiting", waiting, AtomicInteger::get);
+	}
+
+	/**
+	 * Estimates the decoded bytes a derivative job will hold, from the image header and the profiles it makes.
+	 * @param reader a reader with its input set
+	 * @param stripBytes the access image strip budget
+	 * @param profiles the derivatives made
+	 * @return estimated bytes
+	 * @throws IOException if the header cannot be read
+	 */
+	static long estimateBytes(ImageReader reader, long stripBytes, DerivativeProfile... profiles) throws IOException {
+		long bytes = 0;
+		for (DerivativeProfile p : profiles) {
+			bytes += p.estimateBytes(reader, stripBytes);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Waits until the estimated bytes fit in the budget.
+	 * @param bytes the estimated working set
+	 * @return a ticket that gives the budget back when closed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Admission admit(long bytes) throws InterruptedException {
+		int mb = (int) Math.max(1, Math.min(budgetMb, (bytes + MB - 1) / MB));
+		if (!budget.tryAcquire(mb)) {
+			LOGGER.debug("waiting for {} MB of image budget", mb);
+			waiting.incrementAndGet();
+			try {
+				budget.acquire(mb);
+			} finally {
+				waiting.decrementAndGet();
+			}
+		}
+		return new Admission(mb);
+	}
+
+	/** Budget held by an admitted job. */
+	public class Admission implements AutoCloseable {
+		private final int mb;
+		private boolean released = false;
+
+		Admission(int mb) {
+			this.mb = mb;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!released) {
+				released = true;
+				budget.release(mb);
+			}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package edu.umd.info.drastic;
+
+import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static edu.umd.info.drastic.LDPHttpUtil.patchGraph;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.inject.Inject;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Link;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.Dataset;
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.vocabulary.Trellis;
+
+/**
+ * Makes page image derivatives on first request and keeps them in a size-bounded, least recently used disk cache.
+ * Cached files are keyed by the page image's modification time as well as its IRI and the derivative profile, so a
+ * replaced page image gets new derivatives and the old ones age out of the cache. Concurrent requests for the same
+ * derivative share one generation. Generation goes through the same memory
+ * admission as eager derivatives. Optionally each generated derivative is also written back to Trellis and linked
+ * from the page description, as the eager path does.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DerivativeCache {
+	private static final Logger LOGGER = getLogger(DerivativeCache.class);
+
+	public enum Kind {
+		access, thumbnail
+	}
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.cache-directory", defaultValue = "data/derivative-cache")
+	String directory;
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.cache-max-mb", defaultValue = "2048")
+	long maxMb;
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.write-back", defaultValue = "false")
+	boolean writeBack;
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.concurrency", defaultValue = "4")
+	int concurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.accessimage.strip-bytes", defaultValue = "16777216")
+	long stripBytes;
+
+	@Inject
+	DerivativeAdmissionScheduler scheduler;
+
+	@Inject
+	DerivativeProfiles profiles;
+
+	@Inject
+	FixityEngine fixity;
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	MetricRegistry metrics;
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	private final ConcurrentMap<String, CompletableFuture<Path>> inflight = new ConcurrentHashMap<>();
+
+	/** Cached files in access order, with their sizes. Guarded by itself. */
+	private final LinkedHashMap<Path, Long> lru = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private long cachedBytes = 0;
+
+	private Path root;
+
+	private ExecutorService executorService;
+
+	@PostConstruct
+	void initialize() throws IOException {
+		root = Paths.get(directory).toAbsolutePath().normalize();
+		Files.createDirectories(root);
+		executorService = Executors.newFixedThreadPool(concurrency);
+		// pick up what an earlier run left, oldest first
+		try (Stream<Path> files = Files.walk(root)) {
+			files.filter(Files::isRegularFile).filter(f -> !f.getFileName().toString().startsWith("."))
+					.sorted(Comparator.comparingLong(DerivativeCache::modified))
+					.forEach(f -> remember(f, size(f)));
+		}
+		metrics.gauge("derivative-cache-bytes", this, c -> c.cachedBytes);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * Gets a derivative, generating it if it is not cached.
+	 * @param imageLoc the page image IRI
+	 * @param kind the derivative
+	 * @return the cached file
+	 */
+	public CompletableFuture<Path> get(String imageLoc, Kind kind) {
+		DerivativeProfile profile = profiles.get(kind, imageLoc);
+		Path file = root.resolve(kind.name()).resolve(DigestUtils.sha256Hex(imageLoc + " " + version(imageLoc) + " "
+				+ profile.signature()) + "." + profile.extension());
+		synchronized (lru) {
+			if (lru.get(file) != null && Files.isRegularFile(file)) {
+				return CompletableFuture.completedFuture(file);
+			}
+		}
+		String key = file.toString();
+		CompletableFuture<Path> f = inflight.computeIfAbsent(key,
+				k -> CompletableFuture.supplyAsync(() -> generate(imageLoc, profile, file), executorService));
+		f.whenComplete((p, e) -> inflight.remove(key, f));
+		return f;
+	}
+
+	/**
+	 * @return the modification time of the page image, or an empty string if it is not there
+	 */
+	private String version(String imageLoc) {
+		Resource res = resourceService.get(SubtreeEnumerator.internal(imageLoc)).toCompletableFuture().join();
+		if (res == Resource.MISSING_RESOURCE || res == Resource.DELETED_RESOURCE) return "";
+		return String.valueOf(res.getModified());
+	}
+
+	private Path generate(String imageLoc, DerivativeProfile profile, Path file) {
+		Kind kind = profile.kind;
+		HttpClient http = HttpClient.newHttpClient();
+		try {
+			// read in place when trellis-file keeps the image locally, see AccessImageProcessor
+			Optional<Path> local = fixity.localFile(imageLoc);
+			HttpRequest.Builder req = HttpRequest.newBuilder(localhost(imageLoc));
+			if (local.isPresent()) req.method("HEAD", HttpRequest.BodyPublishers.noBody());
+			HttpResponse<InputStream> res = http.send(req.build(), BodyHandlers.ofInputStream());
+			if (res.statusCode() == 404) {
+				res.body().close();
+				throw new FileNotFoundException(imageLoc);
+			}
+			URI descriptionLoc = res.headers().allValues(HttpHeaders.LINK).stream().map(Link::valueOf)
+					.filter(link -> "describedby".equals(link.getRel())).map(Link::getUri).findFirst().orElse(null);
+			Files.createDirectories(file.getParent());
+			Path tmp = Files.createTempFile(file.getParent(), ".derivative", "." + profile.extension());
+			if (local.isPresent()) res.body().close();
+			try (ImageInputStream iis = local.isPresent() ? new FileImageInputStream(local.get().toFile())
+					: ImageIO.createImageInputStream(res.body())) {
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+				if (!readers.hasNext()) {
+					throw new IOException("No image reader for " + imageLoc);
+				}
+				ImageReader reader = readers.next();
+				try {
+					reader.setInput(iis, false, true);
+					long estimate = DerivativeAdmissionScheduler.estimateBytes(reader, stripBytes, profile);
+					try (DerivativeAdmissionScheduler.Admission admission = scheduler.admit(estimate);
+							OutputStream out = Files.newOutputStream(tmp)) {
+						profile.write(reader, new StripedImageSource(reader, stripBytes), out);
+					}
+				} finally {
+					reader.dispose();
+				}
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+			remember(file, Files.size(file));
+			if (writeBack) {
+				writeBack(http, imageLoc, profile, file, descriptionLoc);
+			}
+			return file;
+		} catch (Exception e) {
+			if (!(e instanceof FileNotFoundException)) {
+				LOGGER.error("Cannot generate {} derivative of {}", kind, imageLoc, e);
+			}
+			throw new CompletionException(e);
+		}
+	}
+
+	private void writeBack(HttpClient http, String imageLoc, DerivativeProfile profile, Path file,
+			URI descriptionLoc) {
+		Kind kind = profile.kind;
+		String loc = profile.url(imageLoc);
+		try {
+			HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(loc))
+					.PUT(HttpRequest.BodyPublishers.ofFile(file))
+					.header("Link", "<" + NPSVocabulary.LDP_NonRDFSource.getIRIString() + ">; rel=\"type\"")
+					.header("Content-Type", profile.mediaType()).build(), BodyHandlers.discarding());
+			if (res.statusCode() >= 300) {
+				LOGGER.error("Problem writing back {} derivative: {}", kind, res.statusCode());
+				return;
+			}
+			if (descriptionLoc != null) {
+				IRI binaryIRI = rdf.createIRI(imageLoc);
+				Dataset d = rdf.createDataset();
+				Graph g = d.getGraph(Trellis.PreferUserManaged).get();
+				g.add(binaryIRI, kind == Kind.access ? NPSVocabulary.NPS.hasAccess.iri
+						: NPSVocabulary.NPS.hasThumbnail.iri, rdf.createIRI(loc));
+				patchGraph(g, descriptionLoc.toASCIIString());
+			}
+		} catch (Exception e) {
+			LOGGER.error("Cannot write back {} derivative of {}", kind, imageLoc, e);
+		}
+	}
+
+	private void remember(Path file, long size) {
+		synchronized (lru) {
+			Long old = lru.put(file, size);
+			cachedBytes += size - (old == null ? 0 : old);
+			Iterator<Map.Entry<Path, Long>> it = lru.entrySet().iterator();
+			while (cachedBytes > maxMb * 1024 * 1024 && it.hasNext()) {
+				Map.Entry<Path, Long> eldest = it.next();
+				if (eldest.getKey().equals(file)) continue;
+				try {
+					Files.deleteIfExists(eldest.getKey());
+				} catch (IOException e) {
+					LOGGER.warn("Cannot evict {}", eldest.getKey(), e);
+				}
+				cachedBytes -= eldest.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	private static long modified(Path f) {
+		try {
+			return Files.getLastModifiedTime(f).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private static long size(Path f) {
+		try {
+			return Files.size(f);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
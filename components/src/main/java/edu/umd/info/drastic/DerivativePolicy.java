@@ -0,0 +1,62 @@
+package edu.umd.info.drastic;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Decides whether page image derivatives are made eagerly on ingest or lazily on first request through the
+ * derivative endpoint. The policy is set globally and can be switched to eager for listed submissions.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DerivativePolicy {
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.policy", defaultValue = "eager")
+	String policy;
+
+	/** Submission paths, e.g. /submissions/abc, that always get eager derivatives. */
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.eager-submissions")
+	Optional<List<String>> eagerSubmissions;
+
+	private List<String> eager;
+
+	@PostConstruct
+	void initialize() {
+		eager = eagerSubmissions.orElse(Collections.emptyList()).stream().map(DerivativePolicy::trim)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @param binaryLoc a page image IRI
+	 * @return true if derivatives of this image are made on ingest
+	 */
+	public boolean isEager(String binaryLoc) {
+		if ("eager".equals(policy)) return true;
+		try {
+			return eager.contains(trim(NPSFilenameUtil.getSubmissionUrl(new URL(binaryLoc)).getPath()));
+		} catch (MalformedURLException | ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+
+	private static String trim(String path) {
+		String p = path.trim();
+		while (p.startsWith("/")) p = p.substring(1);
+		while (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+		return p;
+	}
+}
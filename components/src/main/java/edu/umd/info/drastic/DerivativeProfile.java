@@ -0,0 +1,231 @@
+package edu.umd.info.drastic;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import edu.umd.info.drastic.DerivativeCache.Kind;
+
+/**
+ * How one kind of page image derivative is made: image format, bounding box, lossy quality and progressive
+ * encoding. Full resolution PNG is encoded in strips; anything with a bounding box is decoded with source
+ * subsampling and scaled, so only the bounded image is held in memory. A full resolution lossy derivative needs the
+ * whole decoded image and is estimated accordingly.
+ *
+ * @author jansen
+ *
+ */
+public class DerivativeProfile {
+
+	final Kind kind;
+	final String format;
+	final int maxDimension;
+	final float quality;
+	final boolean progressive;
+
+	/**
+	 * @param kind the derivative kind
+	 * @param format png, jpeg or any other format with an ImageIO writer (e.g. webp when a plugin is present)
+	 * @param maxDimension the bounding box edge, 0 for full resolution
+	 * @param quality lossy compression quality between 0 and 1
+	 * @param progressive true for progressive or interlaced encoding where the format has it
+	 */
+	public DerivativeProfile(Kind kind, String format, int maxDimension, float quality, boolean progressive) {
+		this.kind = kind;
+		this.format = format.toLowerCase(Locale.ROOT).equals("jpg") ? "jpeg" : format.toLowerCase(Locale.ROOT);
+		this.maxDimension = maxDimension;
+		this.quality = quality;
+		this.progressive = progressive;
+	}
+
+	/** Checks that ImageIO can write this profile's format. */
+	boolean isSupported() {
+		return ImageIO.getImageWritersByFormatName(format).hasNext();
+	}
+
+	public String extension() {
+		return "jpeg".equals(format) ? "jpg" : format;
+	}
+
+	public String mediaType() {
+		return "image/" + format;
+	}
+
+	/** Distinguishes derivatives made with different settings, for cache keys. */
+	String signature() {
+		return kind + "-" + format + "-" + maxDimension + "-" + quality + "-" + progressive;
+	}
+
+	/**
+	 * Gets the Trellis location of this derivative of a page image, e.g. X_P001_ACCESS.jpg.
+	 */
+	public String url(String imageLoc) {
+		return NPSFilenameUtil.getDerivativeURL(imageLoc, kind.name().toUpperCase(Locale.ROOT), extension());
+	}
+
+	/**
+	 * Guesses the media type of a derivative from its extension.
+	 */
+	static String mediaTypeOf(String url) {
+		String lower = url.toLowerCase(Locale.ROOT);
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) return "image/jpeg";
+		if (lower.endsWith(".webp")) return "image/webp";
+		return "image/png";
+	}
+
+	/**
+	 * @return true if this derivative is encoded from the strips of a {@link StripedImageSource}
+	 */
+	boolean isStriped(ImageReader reader) throws IOException {
+		return !scales(reader) && "png".equals(format);
+	}
+
+	private boolean scales(ImageReader reader) throws IOException {
+		return maxDimension > 0 && Math.max(reader.getWidth(0), reader.getHeight(0)) > maxDimension;
+	}
+
+	/**
+	 * Gets the size of this derivative of an image of the given size.
+	 * @return width and height
+	 */
+	int[] scaledSize(int w, int h) {
+		if (maxDimension <= 0 || Math.max(w, h) <= maxDimension) return new int[] { w, h };
+		float ratio = (float) w / (float) h;
+		if (ratio < 1f) {
+			return new int[] { Math.max(1, (int) ((float) maxDimension * ratio)), maxDimension };
+		}
+		return new int[] { maxDimension, Math.max(1, (int) ((float) maxDimension / ratio)) };
+	}
+
+	/**
+	 * Estimates the decoded bytes held while making this derivative.
+	 * @param reader a reader with its input set
+	 * @param stripBytes the strip budget for full resolution PNG
+	 */
+	long estimateBytes(ImageReader reader, long stripBytes) throws IOException {
+		int w = reader.getWidth(0);
+		int h = reader.getHeight(0);
+		ImageTypeSpecifier raw = reader.getRawImageType(0);
+		int bpp = raw != null ? StripedImageSource.bytesPerPixel(raw) : 4;
+		long full = (long) w * h * bpp;
+		if (scales(reader)) {
+			// subsampled decode below four times the box, plus the scaled result
+			return (4L * maxDimension) * (4L * maxDimension) * bpp + 2L * maxDimension * maxDimension * 4;
+		} else if ("png".equals(format)) {
+			return Math.min(full, 2 * StripedImageSource.heldBytes(reader, stripBytes));
+		}
+		return full + (long) w * h * 4;
+	}
+
+	/**
+	 * Makes the derivative.
+	 * @param reader a reader with its input set
+	 * @param source the strip source over the same reader, used for full resolution PNG
+	 * @param out where the encoded image goes
+	 */
+	void write(ImageReader reader, StripedImageSource source, OutputStream out) throws IOException {
+		if (isStriped(reader)) {
+			encode(source, out);
+			return;
+		}
+		encode(scales(reader) ? scaledImage(reader, maxDimension) : reader.read(0), out);
+	}
+
+	/**
+	 * Gets an upper bound on the encoded size, used to decide whether the derivative is kept in memory.
+	 */
+	long maxEncodedBytes(ImageReader reader) throws IOException {
+		int[] size = scaledSize(reader.getWidth(0), reader.getHeight(0));
+		return (long) size[0] * size[1] * 4;
+	}
+
+	/**
+	 * Encodes an image with this profile's format and settings. The output is cached in memory, not in ImageIO's
+	 * temporary files, and only until the writer has moved past it.
+	 */
+	void encode(RenderedImage image, OutputStream out) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext()) {
+			throw new IOException("No image writer for " + format);
+		}
+		ImageWriter writer = writers.next();
+		if ("jpeg".equals(format) && image instanceof BufferedImage) {
+			image = opaqueRGB((BufferedImage) image);
+		}
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (param.canWriteCompressed() && !"png".equals(format)) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			if (param.getCompressionType() == null && param.getCompressionTypes() != null) {
+				param.setCompressionType(param.getCompressionTypes()[0]);
+			}
+			param.setCompressionQuality(quality);
+		}
+		if (param.canWriteProgressive()) {
+			param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+		}
+		try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private static BufferedImage opaqueRGB(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			return image;
+		}
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = rgb.createGraphics();
+		try {
+			g.drawImage(image, 0, 0, Color.WHITE, null);
+		} finally {
+			g.dispose();
+		}
+		return rgb;
+	}
+
+	/**
+	 * Decodes the image with source subsampling down to about twice the bounding box, so only that much is ever
+	 * held in memory, then scales the rest of the way with bicubic interpolation.
+	 */
+	static BufferedImage scaledImage(ImageReader reader, int maxDim) throws IOException {
+		final int srcW = reader.getWidth(0);
+		final int srcH = reader.getHeight(0);
+		int subsampling = Math.max(1, Math.max(srcW, srcH) / (2 * maxDim));
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		BufferedImage image = reader.read(0, param);
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		float ratio = (float) w / (float) h;
+		int targetWidth = Math.min(maxDim, Math.max(w, h));
+		int targetHeight = targetWidth;
+		if (ratio < 1f) {
+		    targetWidth = Math.max(1, (int) ((float)targetHeight * ratio));
+		} else {
+		    targetHeight = Math.max(1, (int) ((float)targetWidth / ratio));
+		}
+		BufferedImage result = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
+		final AffineTransform at = AffineTransform.getScaleInstance((float)targetWidth/w, (float)targetHeight/h);
+		final AffineTransformOp ato = new AffineTransformOp(at, AffineTransformOp.TYPE_BICUBIC);
+		return ato.filter(image, result);
+	}
+}
@@ -0,0 +1,84 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.Config;
+import org.slf4j.Logger;
+
+import edu.umd.info.drastic.DerivativeCache.Kind;
+
+/**
+ * Looks up the derivative profile for a page image. Settings are read per collection (the first part of the NPS
+ * filename, e.g. NABWH_001) and fall back to the defaults:
+ *
+ * <pre>
+ * trellis.derivatives.profile.access.format=jpeg
+ * trellis.derivatives.profile.NABWH_001.access.max-dimension=6000
+ * </pre>
+ *
+ * Properties are format, max-dimension, quality and progressive. A format without an ImageIO writer falls back to
+ * jpeg.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DerivativeProfiles {
+	private static final Logger LOGGER = getLogger(DerivativeProfiles.class);
+
+	private static final String PREFIX = "trellis.derivatives.profile.";
+
+	@Inject
+	Config config;
+
+	private final ConcurrentMap<String, DerivativeProfile> profiles = new ConcurrentHashMap<>();
+
+	/**
+	 * @param kind the derivative kind
+	 * @param imageLoc the page image IRI
+	 * @return the profile for the page's collection
+	 */
+	public DerivativeProfile get(Kind kind, String imageLoc) {
+		String collection = collection(imageLoc);
+		return profiles.computeIfAbsent(collection + " " + kind, k -> load(kind, collection));
+	}
+
+	private DerivativeProfile load(Kind kind, String collection) {
+		DerivativeProfile p = new DerivativeProfile(kind,
+				value(kind, collection, "format", "png"),
+				Integer.parseInt(value(kind, collection, "max-dimension",
+						kind == Kind.thumbnail ? String.valueOf(AccessImageProcessor.MAX_THUMBNAIL_DIM) : "0")),
+				Float.parseFloat(value(kind, collection, "quality", "0.85")),
+				Boolean.parseBoolean(value(kind, collection, "progressive", "false")));
+		if (!p.isSupported()) {
+			LOGGER.warn("No image writer for {} derivatives in {}, using jpeg", p.format, collection);
+			p = new DerivativeProfile(kind, "jpeg", p.maxDimension, p.quality, p.progressive);
+		}
+		return p;
+	}
+
+	private String value(Kind kind, String collection, String property, String defaultValue) {
+		String key = kind.name() + "." + property;
+		if (collection != null) {
+			String v = config.getOptionalValue(PREFIX + collection + "." + key, String.class).orElse(null);
+			if (v != null) return v;
+		}
+		return config.getOptionalValue(PREFIX + key, String.class).orElse(defaultValue);
+	}
+
+	private static String collection(String imageLoc) {
+		try {
+			String path = URI.create(imageLoc).getPath();
+			return NPSFilenameUtil.getPathParts(path.substring(path.lastIndexOf('/') + 1)).get(0);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package edu.umd.info.drastic;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import edu.umd.info.drastic.DerivativeCache.Kind;
+
+/**
+ * Serves page image derivatives made on demand, e.g. GET /derivatives/thumbnail/submissions/abc/X_P001.tif returns
+ * the thumbnail of that page image, generating and caching it on the first request. A replaced page image is
+ * served with new derivatives under the same path, so responses are cached for trellis.derivatives.max-age seconds
+ * and then revalidated against their ETag.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@Path(DerivativeResource.PATH + "{kind}/{path: .+}")
+public class DerivativeResource {
+
+	static final String PATH = "derivatives/";
+
+	@Inject
+	DerivativeCache cache;
+
+	@Inject
+	@ConfigProperty(name = "trellis.derivatives.max-age", defaultValue = "600")
+	int maxAge;
+
+	@GET
+	public CompletionStage<Response> get(@PathParam("kind") String kind, @PathParam("path") String path,
+			@Context UriInfo uriInfo, @Context Request request) {
+		Kind k;
+		try {
+			k = Kind.valueOf(kind);
+		} catch (IllegalArgumentException e) {
+			return notFound();
+		}
+		if (!NPSFilenameUtil.PAGE_FILE_PREDICATE.test(path)) {
+			return notFound();
+		}
+		String imageLoc = uriInfo.getBaseUriBuilder().path(path).build().toString();
+		return cache.get(imageLoc, k).handle((file, err) -> {
+			if (err != null) {
+				Throwable cause = err;
+				while (cause.getCause() != null && !(cause instanceof FileNotFoundException)) {
+					cause = cause.getCause();
+				}
+				Response.Status status = cause instanceof FileNotFoundException ? Response.Status.NOT_FOUND
+						: Response.Status.BAD_GATEWAY;
+				return Response.status(status).build();
+			}
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				EntityTag etag = new EntityTag(Long.toHexString(attrs.lastModifiedTime().toMillis()) + "-"
+						+ Long.toHexString(attrs.size()));
+				CacheControl cc = new CacheControl();
+				cc.setMaxAge(maxAge);
+				cc.setMustRevalidate(true);
+				Response.ResponseBuilder rb = request.evaluatePreconditions(etag);
+				if (rb == null) {
+					rb = Response.ok(file.toFile()).type(DerivativeProfile.mediaTypeOf(file.toString()));
+				}
+				return rb.tag(etag).cacheControl(cc).build();
+			} catch (IOException e) {
+				// evicted between generation and serving
+				return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", "1").build();
+			}
+		});
+	}
+
+	/**
+	 * Gets the on-demand location of a page image derivative.
+	 * @param imageLoc the page image IRI
+	 * @param kind the derivative
+	 * @return the derivative endpoint IRI
+	 */
+	static String url(String imageLoc, Kind kind) {
+		URI image = URI.create(imageLoc);
+		return image.resolve("/" + PATH + kind.name() + image.getRawPath()).toString();
+	}
+
+	private static CompletionStage<Response> notFound() {
+		return CompletableFuture.completedFuture(Response.status(Response.Status.NOT_FOUND).build());
+	}
+}
@@ -0,0 +1,28 @@
+package edu.umd.info.drastic;
+
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+
+/**
+ * A step in the {@link DescriptionEnrichmentPipeline}. Each enricher inspects the in-memory description graph,
+ * including statements added by enrichers earlier in the chain, and adds its own statements to a separate graph.
+ * The pipeline writes all additions back to the repository in a single PATCH.
+ * 
+ * @author jansen
+ *
+ */
+public interface DescriptionEnricher {
+
+	/**
+	 * @return the name used to place this enricher in the trellis.enrichment.enrichers chain
+	 */
+	String name();
+
+	/**
+	 * Adds statements about a description.
+	 * @param id the description IRI
+	 * @param description the current description graph, not to be modified
+	 * @param additions the graph that receives new statements
+	 */
+	void enrich(IRI id, Graph description, Graph additions);
+}
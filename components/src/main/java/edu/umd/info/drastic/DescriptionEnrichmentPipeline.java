@@ -0,0 +1,182 @@
+package edu.umd.info.drastic;
+
+import static edu.umd.info.drastic.LDPHttpUtil.getGraph;
+import static edu.umd.info.drastic.LDPHttpUtil.patch;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import org.apache.commons.rdf.api.Dataset;
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Acknowledgment;
+import org.eclipse.microprofile.reactive.messaging.Acknowledgment.Strategy;
+import org.eclipse.microprofile.reactive.messaging.Incoming;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.vocabulary.Trellis;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import edu.umd.info.drastic.NPSVocabulary.ICMS;
+import edu.umd.info.drastic.NPSVocabulary.PCDM;
+import io.smallrye.reactive.messaging.annotations.Blocking;
+
+/**
+ * The DescriptionEnrichmentPipeline replaces the separate ICMS to Dublin Core, NER and Elasticsearch consumers for
+ * archival descriptions. When a description is created its graph is fetched once, the configured chain of
+ * {@link DescriptionEnricher}s runs over the in-memory graph, all additions are written back in one PATCH, and the
+ * Elasticsearch document is built from the enriched graph without querying the triple store. Updates to a
+ * description are only reindexed, except the Update that the enrichment PATCH itself causes, which is skipped since
+ * the enriched graph is already indexed. That Update is keyed by the same description as the Create, so it reaches
+ * the same consumer.
+ * 
+ * The chain is set by trellis.enrichment.enrichers, e.g. "icms2dcterms,ner,path". The separate icms2dc and
+ * desc-ner-in consumers are disabled in the configuration while this one is enabled, see application.properties.
+ * 
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DescriptionEnrichmentPipeline {
+	private static final Logger LOGGER = getLogger(DescriptionEnrichmentPipeline.class);
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	@Inject
+	@ConfigProperty(name = "trellis.enrichment.enrichers", defaultValue = "icms2dcterms,ner,path")
+	List<String> enricherNames;
+
+	@Inject
+	@Any
+	Instance<DescriptionEnricher> available;
+
+	@Inject
+	GraphToESIndexer indexer;
+
+	private List<DescriptionEnricher> chain;
+
+	/** Descriptions patched here whose resulting Update is still to come. */
+	private final Cache<String, Boolean> patched = CacheBuilder.newBuilder().maximumSize(100000)
+			.expireAfterWrite(10, TimeUnit.MINUTES).build();
+
+	@PostConstruct
+	void initialize() {
+		chain = resolve(enricherNames);
+		LOGGER.info("Description enrichment chain: {}", enricherNames);
+	}
+
+	/**
+	 * Looks up an enricher chain by name.
+	 * @param names the enricher names, in order
+	 * @return the enrichers
+	 */
+	List<DescriptionEnricher> resolve(List<String> names) {
+		Map<String, DescriptionEnricher> byName = new HashMap<>();
+		available.forEach(e -> byName.put(e.name(), e));
+		List<DescriptionEnricher> result = new ArrayList<>();
+		for (String name : names) {
+			DescriptionEnricher e = byName.get(name.trim());
+			if (e == null) {
+				throw new IllegalArgumentException("Unknown description enricher: " + name);
+			}
+			result.add(e);
+		}
+		return result;
+	}
+
+	@Incoming("description-enrich")
+	@Blocking(value = "enrichment", ordered = false)
+	@Acknowledgment(Strategy.PRE_PROCESSING)
+	public void process(String activityStream) {
+		JsonNode js;
+		try {
+			js = new ObjectMapper().readTree(activityStream);
+		} catch (JsonProcessingException e) {
+			LOGGER.warn("Processing exception on JSON msg: {}", activityStream, e);
+			return;
+		}
+		String id = js.at("/object/id").asText();
+		if (!id.contains("/description/") || id.endsWith("/description/")) return;
+		String op = ((ArrayNode) js.at("/type")).get(1).asText();
+		if ("Delete".equals(op)) return;
+		if ("Update".equals(op) && !ResourceNotifications.isReannouncement(js) && patched.asMap().remove(id) != null) {
+			LOGGER.debug("Skipping the update from enriching {}", id);
+			return;
+		}
+		IRI iri = rdf.createIRI(id);
+		Graph graph = getGraph(id);
+		if (!graph.contains(iri, org.trellisldp.vocabulary.RDF.type, ICMS.RediscoveryExport.iri)) {
+			LOGGER.warn("Found a resource matching \"/description/*\" w/o RediscoveryExport predicate: {}", iri);
+			return;
+		}
+		if ("Create".equals(op) || ResourceNotifications.isReannouncement(js)) {
+			Graph additions = enrich(chain, iri, graph);
+			if (additions.size() > 0) {
+				// remembered first, the Update may be consumed before the PATCH returns
+				patched.put(id, Boolean.TRUE);
+				try {
+					patch(additions, id);
+				} catch (IOException | URISyntaxException e) {
+					patched.invalidate(id);
+					LOGGER.error("Cannot store the enrichment of {}", id, e);
+				} catch (InterruptedException e) {
+					patched.invalidate(id);
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		if (graph.contains(iri, org.trellisldp.vocabulary.RDF.type, PCDM.Collection.iri)) {
+			indexer.postElasticDocument(URI.create(id), indexer.buildDescriptionDocument(iri, graph));
+		}
+	}
+
+	/**
+	 * Runs an enricher chain over a description. Each enricher sees the statements added before it.
+	 * @param chain the enrichers
+	 * @param iri the description IRI
+	 * @param graph the description graph, which receives all additions
+	 * @return the combined additions
+	 */
+	Graph enrich(List<DescriptionEnricher> chain, IRI iri, Graph graph) {
+		Dataset d = rdf.createDataset();
+		Graph additions = d.getGraph(Trellis.PreferUserManaged).get();
+		for (DescriptionEnricher enricher : chain) {
+			Graph step = rdf.createGraph();
+			try {
+				enricher.enrich(iri, graph, step);
+			} catch (RuntimeException e) {
+				LOGGER.error("Enricher {} failed for {}", enricher.name(), iri, e);
+				continue;
+			}
+			// statements the description already has are not sent again, so a rerun that finds nothing new stores nothing
+			step.stream().filter(t -> !graph.contains(t)).collect(Collectors.toList()).forEach(t -> {
+				graph.add(t);
+				additions.add(t);
+			});
+		}
+		return additions;
+	}
+}
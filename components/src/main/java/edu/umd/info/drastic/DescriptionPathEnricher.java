@@ -0,0 +1,49 @@
+package edu.umd.info.drastic;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.Literal;
+import org.apache.commons.rdf.api.RDF;
+import org.trellisldp.api.RDFFactory;
+
+import edu.umd.info.drastic.NPSVocabulary.ICMS;
+import edu.umd.info.drastic.NPSVocabulary.NPS;
+
+/**
+ * Derives the browse path and depth of an archival description from its ICMS identifier, which is the slash
+ * separated path of the record within the collection hierarchy, e.g. /NABWH_001/SG1/S19/BX0001.
+ * 
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class DescriptionPathEnricher implements DescriptionEnricher {
+
+	private static final RDF rdf = RDFFactory.getInstance();
+
+	private static final IRI XSD_INTEGER = rdf.createIRI("http://www.w3.org/2001/XMLSchema#integer");
+
+	@Override
+	public String name() {
+		return "path";
+	}
+
+	@Override
+	public void enrich(IRI id, Graph description, Graph additions) {
+		if (description.contains(id, NPS.path.iri, null)) return;
+		description.stream(id, ICMS.id.iri, null).findFirst()
+			.map(t -> t.getObject())
+			.filter(o -> o instanceof Literal)
+			.map(o -> ((Literal) o).getLexicalForm())
+			.ifPresent(path -> {
+				additions.add(id, NPS.path.iri, rdf.createLiteral(path));
+				additions.add(id, NPS.depth.iri, rdf.createLiteral(String.valueOf(depth(path)), XSD_INTEGER));
+			});
+	}
+
+	static int depth(String path) {
+		return path.split("/").length - 2;
+	}
+}
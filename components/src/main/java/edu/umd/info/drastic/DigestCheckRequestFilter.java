@@ -16,33 +16,41 @@ package edu.umd.info.drastic;
 import static java.util.Collections.emptyList;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import javax.ws.rs.ClientErrorException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.Provider;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
+import org.trellisldp.vocabulary.LDP;
 
 @Provider
 public class DigestCheckRequestFilter implements ContainerRequestFilter {
     
     private static final Logger LOGGER = getLogger(DigestCheckRequestFilter.class);
+
+    static final String REPR_DIGEST = "Repr-Digest";
+
+    // request syntaxes Trellis parses into a graph
+    private static final Set<String> RDF_SYNTAXES = Set.of("text/turtle", "application/ld+json",
+            "application/n-triples", "application/sparql-update");
     
     @Override
     public void filter(ContainerRequestContext context) throws IOException, WebApplicationException {
@@ -55,51 +63,152 @@ public class DigestCheckRequestFilter implements ContainerRequestFilter {
         // Header format is as follows:
         // 	Digest: md5=HUXZLQLMuI/KZ5KDcJPcOA==
         // 	Digest: SHA=thvDyvhfIqlvFe+A9MYgxAfm1q5=,unixsum=30637   
-        // Get all the supplied digests that we implement
-        Map<MessageDigest, String> digests = context.getHeaders().getOrDefault("Digest", emptyList()).stream()
+        //  or, as in RFC 9530:
+        // 	Repr-Digest: sha-256=:X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=:
+        // Get all the supplied digests that we implement, every one of them is verified
+        Map<MessageDigest, String> digests = Stream.concat(
+        		context.getHeaders().getOrDefault("Digest", emptyList()).stream(),
+        		context.getHeaders().getOrDefault(REPR_DIGEST, emptyList()).stream())
         	.flatMap( digest -> { return Stream.of(digest.split(",")); })
         	.<String[]>map( digest -> { return digest.trim().split("=", 2); } )
         	.filter( dig -> {
         	    try {
         		DigestUtils.getDigest(dig[0]);
-        		return true;
+        		return dig.length == 2;
         	    } catch(Exception e) { return false; }
         	})
         	.collect( Collectors.toMap(
         		dig -> { return DigestUtils.getDigest(dig[0]); }, 
-                    dig -> { return dig[1]; } ));
+                    dig -> { return dig[1].replaceAll("^:|:$", ""); } ));
         	
         // Fail quickly if algorithm unsupported
-        if(digests.isEmpty() && context.getHeaders().containsKey("Digest")) {
-            String msg = MessageFormat.format("Digest header uses unsupported algorithm: {0}", context.getHeaders().getFirst("Digest"));
+        if(digests.isEmpty() && (context.getHeaders().containsKey("Digest") || context.getHeaders().containsKey(REPR_DIGEST))) {
+            String header = context.getHeaders().containsKey("Digest") ? context.getHeaders().getFirst("Digest")
+                    : context.getHeaders().getFirst(REPR_DIGEST);
+            String msg = MessageFormat.format("Digest header uses unsupported algorithm: {0}", header);
             LOGGER.info(msg);
             context.abortWith(Response.status(400, msg).build());
             return;
     	}
     	
-        // Calculate digest by streaming to temporary file.
-        MessageDigest digest = null;
-        if(!digests.isEmpty()) {
-            File tmp = File.createTempFile("digestedUpload-", ".dat");
-            digest = digests.keySet().stream().findAny().get(); // pick an algorithm
-            String supplied = digests.get(digest);
-            DigestInputStream digestStream = new DigestInputStream(context.getEntityStream(), digest);
-            byte[] buffer = new byte[8 * 1024];
-            int bytesRead;
-            try(FileOutputStream fos = new FileOutputStream(tmp)) {
-                while ((bytesRead = digestStream.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
+        if(digests.isEmpty()) return;
+
+        // An RDF body is parsed into a graph, not stored as sent, so it is verified here before Trellis reads it,
+        // instead of failing inside the RDF parser. RDF request bodies are read into memory by Trellis anyway.
+        if(isRDF(context)) {
+            byte[] body = context.getEntityStream().readAllBytes();
+            try (InputStream in = new VerifyingInputStream(new ByteArrayInputStream(body), digests)) {
+                in.readAllBytes();
+            } catch (DigestMismatchException e) {
+                context.abortWith(e.getResponse());
+                return;
+            }
+            context.setEntityStream(new ByteArrayInputStream(body));
+            return;
+        }
+
+        // Verify the digest while the binary writer consumes the upload. A mismatch surfaces as a 409 from the
+        // read that reaches the end of the stream, and the binary service removes what it stored.
+        context.setEntityStream(new VerifyingInputStream(context.getEntityStream(), digests));
+    }
+
+    /**
+     * Tells whether Trellis will parse the request body as RDF: a PATCH, or a body in one of the RDF syntaxes that
+     * is not declared an ldp:NonRDFSource.
+     */
+    static boolean isRDF(ContainerRequestContext context) {
+        if ("PATCH".equals(context.getMethod())) return true;
+        MediaType type = context.getMediaType();
+        if (type == null || !RDF_SYNTAXES.contains(type.getType() + "/" + type.getSubtype())) return false;
+        return context.getHeaders().getOrDefault(HttpHeaders.LINK, emptyList()).stream()
+                .noneMatch(link -> link.contains(LDP.NonRDFSource.getIRIString()));
+    }
+
+    /**
+     * Thrown when a verified upload ends with a digest other than the one supplied.
+     */
+    public static class DigestMismatchException extends ClientErrorException {
+        private static final long serialVersionUID = 1L;
+
+        DigestMismatchException(String msg) {
+            super(Response.status(409, msg).build());
+        }
+    }
+
+    /**
+     * Passes the upload through, updating every supplied digest in the same pass, and checks them all when the end
+     * of the stream is reached.
+     */
+    static class VerifyingInputStream extends FilterInputStream {
+        private final Map<MessageDigest, String> supplied;
+        private DigestMismatchException mismatch = null;
+        private boolean verified = false;
+
+        VerifyingInputStream(InputStream in, Map<MessageDigest, String> supplied) {
+            super(in);
+            this.supplied = supplied;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                verify();
+            } else {
+                for (MessageDigest md : supplied.keySet()) {
+                    md.update((byte) b);
                 }
             }
-            String calculated = Base64.encodeBase64String(digestStream.getMessageDigest().digest());
-            if(!calculated.equals(supplied)) {
-        	String msg = MessageFormat.format("Upload rejected, computed {0} digest value {1} does not match supplied value {2}",
-        		digest.getAlgorithm(), calculated, supplied);
-        	LOGGER.info(msg);
-                context.abortWith(Response.status(409, msg).build());
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                verify();
             } else {
-                InputStream is = Files.newInputStream(tmp.toPath(), StandardOpenOption.DELETE_ON_CLOSE);
-                context.setEntityStream(is);
+                for (MessageDigest md : supplied.keySet()) {
+                    md.update(b, off, n);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must still be digested
+            byte[] buf = new byte[8192];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (r < 0) break;
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() {
+            if (!verified) {
+                verified = true;
+                for (Map.Entry<MessageDigest, String> e : supplied.entrySet()) {
+                    String calculated = Base64.encodeBase64String(e.getKey().digest());
+                    if (!calculated.equals(e.getValue())) {
+                        String msg = MessageFormat.format("Upload rejected, computed {0} digest value {1} does not match supplied value {2}",
+                            e.getKey().getAlgorithm(), calculated, e.getValue());
+                        LOGGER.info(msg);
+                        mismatch = new DigestMismatchException(msg);
+                        break;
+                    }
+                }
+            }
+            if (mismatch != null) {
+                throw mismatch;
             }
         }
     }
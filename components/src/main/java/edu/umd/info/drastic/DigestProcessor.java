@@ -1,28 +1,26 @@
 package edu.umd.info.drastic;
 
 import static edu.umd.info.drastic.LDPHttpUtil.localhost;
-import static edu.umd.info.drastic.LDPHttpUtil.patchGraph;
+import static edu.umd.info.drastic.LDPHttpUtil.patch;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 import javax.enterprise.context.ApplicationScoped;
-import javax.ws.rs.core.HttpHeaders;
-import javax.ws.rs.core.Link;
+import javax.inject.Inject;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.rdf.api.BlankNode;
 import org.apache.commons.rdf.api.Dataset;
 import org.apache.commons.rdf.api.Graph;
@@ -49,75 +47,104 @@ public class DigestProcessor {
 
 	private final RDF rdf = RDFFactory.getInstance();
 
-	private ExecutorService executorService = Executors.newFixedThreadPool(1);
-	
+	@Inject
+	FixityEngine fixity;
+
+	@Inject
+	FixityIndex index;
+
+	/**
+	 * Runs on the fixity worker pool, several binaries at a time, and acknowledges the record once the digests are
+	 * stored. Binaries uploaded with inline fixity already carry every configured digest and are skipped; legacy
+	 * binaries in the local binary store are digested from disk, others are fetched over HTTP. Large local binaries
+	 * also get a tree hash manifest if they have none. If the digests cannot be computed or stored the record is
+	 * nacked, so it is not committed and comes again.
+	 */
 	@Incoming("fixity")
-	@Blocking
-    public void process(Record<String, String> record) {
+	@Blocking(value = "fixity", ordered = false)
+	public void process(Record<String, String> record) {
 		IRI id = rdf.createIRI(record.key());
 		LOGGER.debug("digest processor task: {}", id);
 
-		URI binaryLoc;
 		try {
-			binaryLoc = localhost(record.key());
-		} catch (URISyntaxException e2) {
-			LOGGER.error("Got a failure when building binary url.", e2);
-			return;
-		}
-		HttpClient http = HttpClient.newHttpClient();
-		HttpRequest req = HttpRequest.newBuilder(binaryLoc).GET().build();
-		CompletableFuture.supplyAsync(() -> {
-			try {
-				return http.send(req, HttpResponse.BodyHandlers.ofInputStream());
-			} catch (IOException | InterruptedException e) {
-				LOGGER.error("Got a failure when requesting binary for digest.", e);
-				throw new CompletionException(e);
+			URI descriptionLoc = new URI(record.key() + "?ext=description");
+			Graph description = LDPHttpUtil.getGraph(descriptionLoc.toString());
+			boolean digestsStored = hasFixity(description);
+			Optional<Path> file = fixity.localFile(record.key());
+			boolean treeNeeded = file.isPresent() && fixity.needsTreeHash(file.get())
+					&& TreeHash.fromTriples(description.stream().collect(Collectors.toList())).isEmpty();
+			if (digestsStored) {
+				index.record(record.key(), FixityIndex.COMPUTED,
+						FixityEngine.storedFixity(description.stream().collect(Collectors.toList())),
+						InlineFixity.class.getName());
+			}
+			if (digestsStored && !treeNeeded) {
+				LOGGER.debug("fixity stored on upload: {}", id);
+				return;
+			}
+			Dataset d = rdf.createDataset();
+			Graph g = d.getGraph(Trellis.PreferUserManaged).get();
+			if (!digestsStored) {
+				Map<String, String> digests;
+				if (file.isPresent()) {
+					digests = fixity.digest(file.get());
+				} else {
+					HttpClient http = HttpClient.newHttpClient();
+					HttpRequest req = HttpRequest.newBuilder(localhost(record.key())).GET().build();
+					HttpResponse<InputStream> res = http.send(req, HttpResponse.BodyHandlers.ofInputStream());
+					if (res.statusCode() != 200) {
+						res.body().close();
+						throw new IOException("Got " + res.statusCode() + " when getting " + record.key());
+					}
+					try (InputStream in = res.body()) {
+						digests = fixity.digest(in);
+					}
+				}
+				addDigests(g, id, digests);
+			}
+			if (treeNeeded) {
+				// chunk manifest for large binaries, hashed on every core
+				fixity.treeHash(file.get()).addTo(g, id);
 			}
-		}, executorService).thenAccept(res -> {
-			List<String> links = res.headers().allValues(HttpHeaders.LINK);
-			final URI descriptionLoc = links.stream().map(Link::valueOf).filter(link -> "describedby".equals(link.getRel())).peek(System.out::println)
-					.map(Link::getUri).findFirst().orElse(null);
-			MessageDigest md5 = DigestUtils.getDigest("md5");
-			MessageDigest sha256 = DigestUtils.getDigest("SHA-256");
-	        DigestInputStream md5DigestStream = new DigestInputStream(res.body(), md5);
-	        DigestInputStream sha256DigestStream = new DigestInputStream(md5DigestStream, sha256);
-	        byte[] buffer = new byte[8 * 1024];
-	        try {
-	        	while ((sha256DigestStream.read(buffer)) != -1) {}
-	        } catch(IOException e) {
-	        	LOGGER.error("Got a failure when calculating digest.", e);
-						return;
-	        }
-	        String myMD5 = hex(md5DigestStream.getMessageDigest().digest());
-	        String mySHA256 = hex(sha256DigestStream.getMessageDigest().digest());
-	        patchDigests(id, descriptionLoc, myMD5, mySHA256);
-		});
+			patch(g, descriptionLoc.toASCIIString());
+			if (!digestsStored) {
+				index.record(record.key(), FixityIndex.COMPUTED,
+						FixityEngine.storedFixity(g.stream().collect(Collectors.toList())), "java.security.MessageDigest");
+			}
+		} catch (IOException | URISyntaxException e) {
+			// nacked, so the record is not committed and comes again
+			throw new CompletionException("Cannot store the digests of " + record.key(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Checks a binary description for a fixity of every configured algorithm.
+	 */
+	private boolean hasFixity(Graph g) {
+		// a digest copied from a manifest does not count, it is what the computed one is checked against
+		Map<String, String> stored = FixityEngine.storedFixity(g.stream().collect(Collectors.toList()));
+		return fixity.getAlgorithms().stream().map(DigestProcessor::hashFunctionName).allMatch(stored::containsKey);
 	}
 
-	private String hex(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
+	/**
+	 * Gets the cryptographic hash function IRI for a digest, e.g. sha256 for SHA-256.
+	 */
+	static String hashFunctionName(String algorithm) {
+		return algorithm.toLowerCase(Locale.ROOT).replace("-", "");
 	}
 
-	private void patchDigests(IRI id, URI descriptionLoc, String md5, String sha256) {
-    Dataset d = rdf.createDataset();
-    BlankNode fixMD5 = rdf.createBlankNode("fixityMD5");
-    Graph g = d.getGraph(Trellis.PreferUserManaged).get();
-    g.add(id, rdf.createIRI("http://www.loc.gov/standards/premis/rdf/v3/fixity"), fixMD5);
-    g.add(fixMD5, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"), rdf.createIRI("http://id.loc.gov/vocabulary/cryptographicHashFunctions/md5"));
-    g.add(fixMD5, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#value"), rdf.createLiteral(md5));
-    g.add(fixMD5, rdf.createIRI("http://purl.org/dc/elements/1.1/creator"), rdf.createLiteral("java.security.MessageDigest"));
-
-    BlankNode fixSHA256 = rdf.createBlankNode("fixitySHA256");
-    g.add(id, rdf.createIRI("http://www.loc.gov/standards/premis/rdf/v3/fixity"), fixSHA256);
-    g.add(fixSHA256, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#value"), rdf.createLiteral(sha256));
-    g.add(fixSHA256, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"), rdf.createIRI("http://id.loc.gov/vocabulary/cryptographicHashFunctions/sha256"));
-    g.add(fixSHA256, rdf.createIRI("http://purl.org/dc/elements/1.1/creator"), rdf.createLiteral("java.security.MessageDigest"));
-
-    patchGraph(g, descriptionLoc.toASCIIString());
-  }
+	private void addDigests(Graph g, IRI id, Map<String, String> digests) {
+		for (Map.Entry<String, String> digest : digests.entrySet()) {
+			String name = hashFunctionName(digest.getKey());
+			BlankNode fix = rdf.createBlankNode("fixity" + name.toUpperCase(Locale.ROOT));
+			g.add(id, rdf.createIRI("http://www.loc.gov/standards/premis/rdf/v3/fixity"), fix);
+			g.add(fix, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"), rdf.createIRI("http://id.loc.gov/vocabulary/cryptographicHashFunctions/" + name));
+			g.add(fix, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#value"), rdf.createLiteral(digest.getValue()));
+			g.add(fix, rdf.createIRI("http://purl.org/dc/elements/1.1/creator"), rdf.createLiteral("java.security.MessageDigest"));
+		}
+	}
 
 }
@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.umd.info.drastic;
+
+import static java.util.Collections.emptyList;
+import static javax.ws.rs.HttpMethod.GET;
+import static javax.ws.rs.HttpMethod.HEAD;
+import static javax.ws.rs.core.HttpHeaders.CACHE_CONTROL;
+import static javax.ws.rs.core.Response.Status.Family.SUCCESSFUL;
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
+import static org.trellisldp.common.HttpConstants.EXT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.rdf.api.RDF;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.vocabulary.Trellis;
+
+/**
+ * Answers Want-Digest (RFC 3230) and Want-Repr-Digest (RFC 9530) on binaries from the fixity stored with the binary
+ * description, instead of letting Trellis read the whole binary again. Algorithms that were not stored are left to
+ * Trellis, so a request only falls back to re-reading when nothing it wants is on record.
+ */
+@Provider
+public class DigestResponseFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static final Logger LOGGER = getLogger(DigestResponseFilter.class);
+
+    static final String WANT_DIGEST = "Want-Digest";
+    static final String WANT_REPR_DIGEST = "Want-Repr-Digest";
+
+    private static final String DIGEST_PROPERTY = DigestResponseFilter.class.getName() + ".digest";
+    private static final String REPR_DIGEST_PROPERTY = DigestResponseFilter.class.getName() + ".repr";
+
+    // header algorithm token to the stored hash function name
+    private static final Map<String, String> HASH_FUNCTIONS = Map.of(
+            "md5", "md5",
+            "sha", "sha1",
+            "sha-1", "sha1",
+            "sha-256", "sha256",
+            "sha-512", "sha512");
+
+    private static final RDF rdf = RDFFactory.getInstance();
+
+    @Inject
+    ResourceService resourceService;
+
+    @Override
+    public void filter(final ContainerRequestContext req) throws IOException {
+        if (!(GET.equals(req.getMethod()) || HEAD.equals(req.getMethod()))) return;
+        if (req.getUriInfo().getQueryParameters().containsKey(EXT)
+                || req.getUriInfo().getQueryParameters().containsKey("version")) return;
+        // "no-cache" still asks for a digest calculated from the binary as it is now
+        final String cacheControl = req.getHeaderString(CACHE_CONTROL);
+        if (cacheControl != null && cacheControl.contains("no-cache")) return;
+        final List<String> wantDigest = wanted(req.getHeaders().getOrDefault(WANT_DIGEST, emptyList()), ';');
+        final List<String> wantRepr = wanted(req.getHeaders().getOrDefault(WANT_REPR_DIGEST, emptyList()), '=');
+        if (wantDigest.isEmpty() && wantRepr.isEmpty()) return;
+
+        final Map<String, String> stored = storedDigests(req.getUriInfo().getPath());
+        if (stored.isEmpty()) return;
+        final Map<String, String> digest = answer(wantDigest, stored);
+        if (!digest.isEmpty()) {
+            req.setProperty(DIGEST_PROPERTY, digest);
+            // answered here, so Trellis must not compute it from the binary
+            req.getHeaders().remove(WANT_DIGEST);
+        }
+        final Map<String, String> repr = answer(wantRepr, stored);
+        if (!repr.isEmpty()) {
+            req.setProperty(REPR_DIGEST_PROPERTY, repr);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void filter(final ContainerRequestContext req, final ContainerResponseContext res) throws IOException {
+        if (!SUCCESSFUL.equals(res.getStatusInfo().getFamily())) return;
+        final Object digest = req.getProperty(DIGEST_PROPERTY);
+        if (digest != null) {
+            res.getHeaders().putSingle("Digest", ((Map<String, String>) digest).entrySet().stream()
+                    .map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(",")));
+        }
+        final Object repr = req.getProperty(REPR_DIGEST_PROPERTY);
+        if (repr != null) {
+            res.getHeaders().putSingle(DigestCheckRequestFilter.REPR_DIGEST, ((Map<String, String>) repr).entrySet()
+                    .stream().map(e -> e.getKey() + "=:" + e.getValue() + ":").collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * Reads the preferences of a Want-Digest ("sha-256;q=0.5, md5") or Want-Repr-Digest ("sha-256=10, md5=1")
+     * header.
+     * @return the wanted algorithm tokens, in lower case, most preferred first, without those refused with 0
+     */
+    static List<String> wanted(final List<String> headers, final char separator) {
+        final Map<String, Double> weights = new LinkedHashMap<String, Double>();
+        for (String header : headers) {
+            for (String item : header.split(",")) {
+                final String[] parts = item.trim().split(String.valueOf(separator), 2);
+                final String alg = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (alg.isEmpty()) continue;
+                double weight = 1.0;
+                if (parts.length == 2) {
+                    try {
+                        weight = Double.parseDouble(parts[1].trim().replaceFirst("^q=", ""));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+                if (weight > 0) weights.put(alg, weight);
+            }
+        }
+        final List<String> algs = new ArrayList<String>(weights.keySet());
+        algs.sort((a, b) -> Double.compare(weights.get(b), weights.get(a)));
+        return algs;
+    }
+
+    /**
+     * @return base64 digest values by wanted algorithm token, for the wanted algorithms that are stored
+     */
+    static Map<String, String> answer(final List<String> wanted, final Map<String, String> stored) {
+        final Map<String, String> answer = new LinkedHashMap<String, String>();
+        for (String alg : wanted) {
+            final String hex = stored.get(HASH_FUNCTIONS.get(alg));
+            if (hex == null) continue;
+            try {
+                answer.put(alg, Base64.encodeBase64String(Hex.decodeHex(hex)));
+            } catch (DecoderException e) {
+                LOGGER.warn("Stored {} digest is not hex: {}", alg, hex);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * @return the stored hex digests of a binary by hash function name, empty for anything else
+     */
+    private Map<String, String> storedDigests(final String path) {
+        try {
+            final Resource res = resourceService.get(rdf.createIRI(TRELLIS_DATA_PREFIX + path.replaceFirst("^/+", "")))
+                    .toCompletableFuture().join();
+            if (res.getBinaryMetadata().isEmpty()) return Map.of();
+            return FixityEngine.storedFixity(res.stream(Trellis.PreferUserManaged).collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            LOGGER.debug("No stored digests for {}", path, e);
+            return Map.of();
+        }
+    }
+}
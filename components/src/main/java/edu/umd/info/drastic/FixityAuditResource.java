@@ -0,0 +1,80 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.sql.SQLException;
+import java.time.Instant;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reports the fixity audit: the progress of the current cycle, the latest result counts and the binaries with a
+ * given status, mismatches by default. The list is paged by subject, e.g.
+ * GET /fixity/audit?status=mismatch&amp;after=trellis:data/submissions/x.tif&amp;limit=100
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@Path("fixity/audit")
+public class FixityAuditResource {
+	private static final Logger LOGGER = getLogger(FixityAuditResource.class);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Inject
+	FixityAuditScheduler audit;
+
+	@GET
+	@Produces("application/json")
+	public Response report(@QueryParam("status") @DefaultValue(FixityAuditScheduler.MISMATCH) String status,
+			@QueryParam("after") @DefaultValue("") String after, @QueryParam("limit") @DefaultValue("100") int limit) {
+		if (!audit.isEnabled()) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		ObjectNode report = mapper.createObjectNode();
+		try {
+			FixityAuditScheduler.Checkpoint cp = audit.loadCheckpoint();
+			ObjectNode cycle = report.putObject("cycle");
+			cycle.put("started", cp.cycleStarted > 0 ? Instant.ofEpochMilli(cp.cycleStarted).toString() : null);
+			cycle.put("lastId", cp.lastId);
+			cycle.put("done", cp.done);
+			ObjectNode counts = report.putObject("counts");
+			audit.counts().forEach(counts::put);
+			ArrayNode items = report.putArray(status);
+			String last = null;
+			for (FixityAuditScheduler.AuditResult r : audit.results(status, after, Math.max(1, Math.min(limit, 1000)))) {
+				last = r.subject;
+				ObjectNode item = items.addObject();
+				item.put("resource", r.subject);
+				item.put("checked", Instant.ofEpochMilli(r.checked).toString());
+				if (r.algorithm != null) {
+					item.put("algorithm", r.algorithm);
+					item.put("expected", r.expected);
+					item.put("actual", r.actual);
+				}
+				item.put("bytes", r.bytes);
+			}
+			if (last != null) {
+				report.put("next", last);
+			}
+		} catch (SQLException e) {
+			LOGGER.error("Cannot read fixity audit results", e);
+			return Response.serverError().build();
+		}
+		return Response.ok(report.toString()).build();
+	}
+}
@@ -0,0 +1,383 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.Triple;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.vocabulary.LDP;
+import org.trellisldp.vocabulary.Trellis;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Re-verifies the fixity of every binary in a rolling cycle. The walk pages through the trellis-jdbc resource table
+ * by id, so it needs no listing in memory and resumes from its checkpoint after a restart. Each binary is read from
+ * the binary store under an I/O budget in MB/s and reads per second, so the audit never takes more of the disk than
+ * configured, and the digests are compared with the PREMIS fixity in its description. Binaries with a {@link TreeHash}
+ * are verified chunk by chunk instead, which reports the corrupt byte ranges. Every result replaces the
+ * binary's row in fixity_audit; mismatches are reported by {@link FixityAuditResource}.
+ * <p>
+ * A cycle that finishes early waits for the next one to be due, trellis.fixity.audit.cycle-days after it started.
+ * A cycle that needs longer than that under the budget simply runs late and says so in the log.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class FixityAuditScheduler {
+	private static final Logger LOGGER = getLogger(FixityAuditScheduler.class);
+
+	static final String OK = "ok";
+	static final String MISMATCH = "mismatch";
+	static final String MISSING = "missing";
+	static final String UNRECORDED = "unrecorded";
+
+	private static final String CHECKPOINT = "binaries";
+
+	private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.enabled", defaultValue = "false")
+	boolean enabled;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.cycle-days", defaultValue = "90")
+	int cycleDays;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.mb-per-second", defaultValue = "50")
+	double mbPerSecond;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.iops", defaultValue = "200")
+	double iops;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.read-kb", defaultValue = "1024")
+	int readKb;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.audit.batch-size", defaultValue = "200")
+	int batchSize;
+
+	@Inject
+	FixityEngine engine;
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	DataSource dataSource;
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	private ScheduledExecutorService scheduler;
+
+	private RateLimiter bytesPerSecond;
+
+	private RateLimiter readsPerSecond;
+
+	void onStart(@Observes StartupEvent event) {
+		if (!enabled) return;
+		try {
+			createTables();
+		} catch (SQLException e) {
+			LOGGER.error("Cannot create fixity audit tables, audit disabled", e);
+			return;
+		}
+		bytesPerSecond = RateLimiter.create(mbPerSecond * 1024 * 1024);
+		readsPerSecond = RateLimiter.create(iops);
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "fixity-audit");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(this::runCycle, 1, 1, TimeUnit.MINUTES);
+		LOGGER.info("Fixity audit every {} days at up to {} MB/s and {} reads/s", cycleDays, mbPerSecond, iops);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/**
+	 * Audits batch after batch until the cycle is done or the scheduler stops. Runs again a minute after it returns.
+	 */
+	void runCycle() {
+		try {
+			Checkpoint cp = loadCheckpoint();
+			long now = System.currentTimeMillis();
+			if (cp.done) {
+				if (now < cp.cycleStarted + cycleDays * DAY_MS) return;
+				cp = new Checkpoint(now, 0, false);
+				saveCheckpoint(cp);
+				LOGGER.info("Fixity audit cycle started");
+			}
+			while (!Thread.currentThread().isInterrupted()) {
+				List<Long> ids = new ArrayList<Long>();
+				List<String> subjects = new ArrayList<String>();
+				nextBinaries(cp.lastId, ids, subjects);
+				if (subjects.isEmpty()) {
+					long days = (System.currentTimeMillis() - cp.cycleStarted) / DAY_MS;
+					if (days > cycleDays) {
+						LOGGER.warn("Fixity audit cycle took {} days, more than {} allowed by the I/O budget", days,
+								cycleDays);
+					}
+					saveCheckpoint(new Checkpoint(cp.cycleStarted, cp.lastId, true));
+					LOGGER.info("Fixity audit cycle finished");
+					return;
+				}
+				for (int i = 0; i < subjects.size(); i++) {
+					audit(subjects.get(i));
+					cp = new Checkpoint(cp.cycleStarted, ids.get(i), false);
+				}
+				saveCheckpoint(cp);
+			}
+		} catch (SQLException e) {
+			LOGGER.error("Fixity audit stopped, retrying later", e);
+		} catch (RuntimeException e) {
+			LOGGER.error("Unexpected problem in fixity audit", e);
+		}
+	}
+
+	/**
+	 * Audits one binary and records the result.
+	 * @param subject the internal resource IRI
+	 */
+	void audit(String subject) throws SQLException {
+		IRI id = rdf.createIRI(subject);
+		Resource res = resourceService.get(id).toCompletableFuture().join();
+		if (res == Resource.MISSING_RESOURCE || res == Resource.DELETED_RESOURCE) return;
+		List<Triple> description = res.stream(Trellis.PreferUserManaged).collect(Collectors.toList());
+		Map<String, String> expected = FixityEngine.storedFixity(description);
+		Optional<Path> file = engine.localFile(id);
+		if (file.isEmpty()) {
+			record(subject, MISSING, null, null, null, 0);
+			return;
+		}
+		Map<String, String> actual;
+		long bytes;
+		FixityEngine.ReadThrottle throttle = n -> {
+			bytesPerSecond.acquire(n);
+			readsPerSecond.acquire();
+		};
+		try {
+			bytes = Files.size(file.get());
+			Optional<TreeHash> tree = TreeHash.fromTriples(description);
+			if (tree.isPresent()) {
+				// chunks are verified on every core within the same budget, and resume after a restart
+				List<long[]> corrupt = engine.verifyTree(file.get(), tree.get(), throttle);
+				if (corrupt.isEmpty()) {
+					record(subject, OK, null, null, null, bytes);
+				} else {
+					String ranges = corrupt.stream().map(r -> r[0] + "-" + (r[1] - 1)).collect(Collectors.joining(","));
+					LOGGER.error("Fixity mismatch for {} in bytes {}", subject, ranges);
+					record(subject, MISMATCH, "treehash-sha256", tree.get().getRoot(), "bytes=" + ranges, bytes);
+				}
+				return;
+			}
+			actual = engine.digest(file.get(), readKb * 1024, throttle);
+		} catch (IOException e) {
+			LOGGER.warn("Cannot read {} for fixity audit", subject, e);
+			record(subject, MISSING, null, null, null, 0);
+			return;
+		}
+		String status = UNRECORDED;
+		for (Map.Entry<String, String> a : actual.entrySet()) {
+			String name = DigestProcessor.hashFunctionName(a.getKey());
+			String stored = expected.get(name);
+			if (stored == null) continue;
+			if (!stored.equals(a.getValue())) {
+				LOGGER.error("Fixity mismatch for {}: {} expected {} but was {}", subject, name, stored, a.getValue());
+				record(subject, MISMATCH, name, stored, a.getValue(), bytes);
+				return;
+			}
+			status = OK;
+		}
+		record(subject, status, null, null, null, bytes);
+	}
+
+	private void nextBinaries(long afterId, List<Long> ids, List<String> subjects) throws SQLException {
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("SELECT id, subject FROM resource "
+						+ "WHERE interaction_model = ? AND id > ? ORDER BY id LIMIT ?")) {
+			ps.setString(1, LDP.NonRDFSource.getIRIString());
+			ps.setLong(2, afterId);
+			ps.setInt(3, batchSize);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					ids.add(rs.getLong(1));
+					subjects.add(rs.getString(2));
+				}
+			}
+		}
+	}
+
+	private void record(String subject, String status, String algorithm, String expected, String actual,
+			long bytes) throws SQLException {
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("INSERT INTO fixity_audit "
+						+ "(subject, checked, status, algorithm, expected, actual, bytes) VALUES (?, ?, ?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (subject) DO UPDATE SET checked = EXCLUDED.checked, status = EXCLUDED.status, "
+						+ "algorithm = EXCLUDED.algorithm, expected = EXCLUDED.expected, actual = EXCLUDED.actual, "
+						+ "bytes = EXCLUDED.bytes")) {
+			ps.setString(1, subject);
+			ps.setLong(2, System.currentTimeMillis());
+			ps.setString(3, status);
+			ps.setString(4, algorithm);
+			ps.setString(5, expected);
+			ps.setString(6, actual);
+			ps.setLong(7, bytes);
+			ps.executeUpdate();
+		}
+	}
+
+	private void createTables() throws SQLException {
+		try (Connection c = dataSource.getConnection(); Statement st = c.createStatement()) {
+			st.execute("CREATE TABLE IF NOT EXISTS fixity_audit (subject VARCHAR(1024) PRIMARY KEY, "
+					+ "checked BIGINT NOT NULL, status VARCHAR(16) NOT NULL, algorithm VARCHAR(32), "
+					+ "expected VARCHAR(256), actual TEXT, bytes BIGINT)");
+			st.execute("CREATE INDEX IF NOT EXISTS fixity_audit_status ON fixity_audit (status, subject)");
+			st.execute("CREATE TABLE IF NOT EXISTS fixity_audit_progress (name VARCHAR(64) PRIMARY KEY, "
+					+ "cycle_started BIGINT NOT NULL, last_id BIGINT NOT NULL, done BOOLEAN NOT NULL, "
+					+ "updated BIGINT NOT NULL)");
+		}
+	}
+
+	Checkpoint loadCheckpoint() throws SQLException {
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement(
+						"SELECT cycle_started, last_id, done FROM fixity_audit_progress WHERE name = ?")) {
+			ps.setString(1, CHECKPOINT);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.next()) {
+					return new Checkpoint(rs.getLong(1), rs.getLong(2), rs.getBoolean(3));
+				}
+			}
+		}
+		// never run, start at once
+		return new Checkpoint(0, 0, true);
+	}
+
+	private void saveCheckpoint(Checkpoint cp) throws SQLException {
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("INSERT INTO fixity_audit_progress "
+						+ "(name, cycle_started, last_id, done, updated) VALUES (?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (name) DO UPDATE SET cycle_started = EXCLUDED.cycle_started, "
+						+ "last_id = EXCLUDED.last_id, done = EXCLUDED.done, updated = EXCLUDED.updated")) {
+			ps.setString(1, CHECKPOINT);
+			ps.setLong(2, cp.cycleStarted);
+			ps.setLong(3, cp.lastId);
+			ps.setBoolean(4, cp.done);
+			ps.setLong(5, System.currentTimeMillis());
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Counts the latest audit results by status.
+	 */
+	Map<String, Long> counts() throws SQLException {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement(
+						"SELECT status, COUNT(*) FROM fixity_audit GROUP BY status ORDER BY status");
+				ResultSet rs = ps.executeQuery()) {
+			while (rs.next()) {
+				counts.put(rs.getString(1), rs.getLong(2));
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Lists the latest results with a status, paged by subject.
+	 */
+	List<AuditResult> results(String status, String after, int limit) throws SQLException {
+		List<AuditResult> results = new ArrayList<AuditResult>();
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("SELECT subject, checked, algorithm, expected, actual, bytes "
+						+ "FROM fixity_audit WHERE status = ? AND subject > ? ORDER BY subject LIMIT ?")) {
+			ps.setString(1, status);
+			ps.setString(2, after);
+			ps.setInt(3, limit);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					results.add(new AuditResult(rs.getString(1), rs.getLong(2), rs.getString(3), rs.getString(4),
+							rs.getString(5), rs.getLong(6)));
+				}
+			}
+		}
+		return results;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	static class AuditResult {
+		final String subject;
+		final long checked;
+		final String algorithm;
+		final String expected;
+		final String actual;
+		final long bytes;
+
+		AuditResult(String subject, long checked, String algorithm, String expected, String actual, long bytes) {
+			this.subject = subject;
+			this.checked = checked;
+			this.algorithm = algorithm;
+			this.expected = expected;
+			this.actual = actual;
+			this.bytes = bytes;
+		}
+	}
+
+	static class Checkpoint {
+		final long cycleStarted;
+		final long lastId;
+		final boolean done;
+
+		Checkpoint(long cycleStarted, long lastId, boolean done) {
+			this.cycleStarted = cycleStarted;
+			this.lastId = lastId;
+			this.done = done;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.BlankNodeOrIRI;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.Literal;
+import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.Triple;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.trellisldp.api.BinaryMetadata;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.ResourceService;
+
+/**
+ * Computes all configured digests of a binary in one pass over its bytes. Binaries kept by trellis-file are read
+ * straight from the binary-path in memory-mapped chunks; anything else is read from a stream into large buffers.
+ * With more than one algorithm each digest is updated on its own thread, all of them fed the same chunks from a
+ * small ring, so a chunk is read once and reused only after every digest has consumed it.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class FixityEngine {
+	private static final Logger LOGGER = getLogger(FixityEngine.class);
+
+	private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+	@Inject
+	@ConfigProperty(name = "trellis.file.binary-path")
+	Optional<String> binaryPath;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.algorithms", defaultValue = "MD5,SHA-256")
+	List<String> algorithms;
+
+	/** Bytes mapped per chunk of a local binary. */
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.map-chunk-mb", defaultValue = "64")
+	int mapChunkMb;
+
+	/** Chunks in flight between the reader and the digest threads. */
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.ring-size", defaultValue = "4")
+	int ringSize;
+
+	/** Chunk size of tree hash manifests. */
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.tree.chunk-mb", defaultValue = "64")
+	int treeChunkMb;
+
+	/** Binaries from this size on get a tree hash manifest. */
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.tree.min-mb", defaultValue = "1024")
+	long treeMinMb;
+
+	/** Where interrupted tree hash verifications keep the chunks already verified. */
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.tree.checkpoint-directory", defaultValue = "data/treehash-checkpoints")
+	String treeCheckpointDirectory;
+
+	@Inject
+	ResourceService resourceService;
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	private final AtomicInteger threadNo = new AtomicInteger();
+
+	private final ExecutorService hashers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "fixity-digest-" + threadNo.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final ForkJoinPool treePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+	@PreDestroy
+	void shutdown() {
+		hashers.shutdownNow();
+		treePool.shutdownNow();
+	}
+
+	/**
+	 * @return the configured algorithm names, e.g. MD5 and SHA-256
+	 */
+	public List<String> getAlgorithms() {
+		return algorithms;
+	}
+
+	/**
+	 * Finds the file trellis-file keeps for a binary resource.
+	 * @param binaryUri the public binary IRI
+	 * @return the readable local file, or empty if the binary is stored elsewhere
+	 */
+	public Optional<Path> localFile(String binaryUri) {
+		try {
+			String path = URI.create(binaryUri).getPath();
+			return localFile(rdf.createIRI(TRELLIS_DATA_PREFIX + path.substring(1)));
+		} catch (RuntimeException e) {
+			LOGGER.debug("No local file for {}", binaryUri, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Finds the file trellis-file keeps for a binary resource.
+	 * @param internal the internal resource IRI, e.g. trellis:data/submissions/x.tif
+	 * @return the readable local file, or empty if the binary is stored elsewhere
+	 */
+	public Optional<Path> localFile(IRI internal) {
+		if (binaryPath.isEmpty()) return Optional.empty();
+		try {
+			Optional<IRI> location = resourceService.get(internal).toCompletableFuture().join().getBinaryMetadata()
+					.map(BinaryMetadata::getIdentifier);
+			if (location.isEmpty() || !location.get().getIRIString().startsWith("file:")) return Optional.empty();
+			String ssp = URI.create(location.get().getIRIString()).getSchemeSpecificPart().replaceFirst("^/+", "");
+			Path base = Paths.get(binaryPath.get()).toAbsolutePath().normalize();
+			Path file = base.resolve(ssp).normalize();
+			if (!file.startsWith(base) || !Files.isReadable(file)) return Optional.empty();
+			return Optional.of(file);
+		} catch (RuntimeException e) {
+			LOGGER.debug("No local file for {}", internal, e);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return true if the file is large enough for a tree hash manifest
+	 */
+	public boolean needsTreeHash(Path file) throws IOException {
+		return Files.size(file) >= treeMinMb * 1024 * 1024;
+	}
+
+	/**
+	 * Computes the tree hash manifest of a local file on every core.
+	 */
+	public TreeHash treeHash(Path file) throws IOException {
+		return TreeHash.compute(file, (long) treeChunkMb * 1024 * 1024, treePool, n -> {});
+	}
+
+	/**
+	 * Verifies a local file against its tree hash manifest on every core. Verified chunks are checkpointed, so a
+	 * verification that is interrupted, e.g. by a restart, continues where it stopped.
+	 * @param throttle paces the reads
+	 * @return the byte ranges that do not match, empty if the file is intact
+	 */
+	public List<long[]> verifyTree(Path file, TreeHash tree, ReadThrottle throttle) throws IOException {
+		Path checkpoint = Paths.get(treeCheckpointDirectory)
+				.resolve(DigestUtils.sha256Hex(file.toAbsolutePath() + " " + tree.getRoot()));
+		BitSet verified = Files.exists(checkpoint) ? BitSet.valueOf(Files.readAllBytes(checkpoint)) : new BitSet();
+		AtomicLong lastSave = new AtomicLong(System.currentTimeMillis());
+		List<long[]> corrupt = tree.verify(file, treePool, throttle, verified, () -> {
+			long now = System.currentTimeMillis();
+			long last = lastSave.get();
+			if (now - last > 10000 && lastSave.compareAndSet(last, now)) {
+				saveCheckpoint(checkpoint, verified);
+			}
+		});
+		Files.deleteIfExists(checkpoint);
+		return corrupt;
+	}
+
+	private static void saveCheckpoint(Path checkpoint, BitSet verified) {
+		byte[] bits;
+		synchronized (verified) {
+			bits = verified.toByteArray();
+		}
+		try {
+			Files.createDirectories(checkpoint.getParent());
+			Path tmp = Files.createTempFile(checkpoint.getParent(), ".checkpoint", null);
+			Files.write(tmp, bits);
+			Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("Cannot checkpoint tree hash verification in {}", checkpoint, e);
+		}
+	}
+
+	/**
+	 * Reads the PREMIS fixity computed from a binary and stored in its description. Fixity copied from a manifest
+	 * carries a dc:source and is left out.
+	 * @param triples the description
+	 * @return digest values by hash function name, e.g. md5 and sha256
+	 */
+	static Map<String, String> storedFixity(Collection<? extends Triple> triples) {
+		Map<BlankNodeOrIRI, String> types = new HashMap<BlankNodeOrIRI, String>();
+		Map<BlankNodeOrIRI, String> values = new HashMap<BlankNodeOrIRI, String>();
+		Set<BlankNodeOrIRI> sourced = new HashSet<BlankNodeOrIRI>();
+		for (Triple t : triples) {
+			String p = t.getPredicate().getIRIString();
+			if (InlineFixity.DC_SOURCE.equals(p)) {
+				sourced.add(t.getSubject());
+			} else if (InlineFixity.RDF_TYPE.equals(p) && t.getObject() instanceof IRI
+					&& ((IRI) t.getObject()).getIRIString().startsWith(InlineFixity.HASH_FUNCTIONS)) {
+				types.put(t.getSubject(),
+						((IRI) t.getObject()).getIRIString().substring(InlineFixity.HASH_FUNCTIONS.length()));
+			} else if (InlineFixity.RDF_VALUE.equals(p) && t.getObject() instanceof Literal) {
+				values.put(t.getSubject(), ((Literal) t.getObject()).getLexicalForm());
+			}
+		}
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		types.forEach((node, name) -> {
+			if (values.containsKey(node) && !sourced.contains(node)) result.put(name, values.get(node).toLowerCase(Locale.ROOT));
+		});
+		return result;
+	}
+
+	/**
+	 * Digests a local file through memory-mapped chunks.
+	 * @return hex digests by lower case algorithm name, e.g. md5 and sha-256
+	 */
+	public Map<String, String> digest(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = ch.size();
+			final long chunk = Math.min(Integer.MAX_VALUE, (long) mapChunkMb * 1024 * 1024);
+			return digest(new ChunkReader() {
+				long pos = 0;
+
+				@Override
+				public boolean next(Slot slot) throws IOException {
+					if (pos >= size) return false;
+					long len = Math.min(chunk, size - pos);
+					slot.buffer = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+					pos += len;
+					return true;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Digests a local file with paced reads into direct buffers, for background work that must share the disk.
+	 * @param file the file
+	 * @param readSize bytes per read
+	 * @param throttle called before every read with its size, blocks while the I/O budget is used up
+	 * @return hex digests by lower case algorithm name, e.g. md5 and sha-256
+	 */
+	public Map<String, String> digest(Path file, int readSize, ReadThrottle throttle) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			final long size = ch.size();
+			return digest(new ChunkReader() {
+				long pos = 0;
+
+				@Override
+				public boolean next(Slot slot) throws IOException {
+					if (pos >= size) return false;
+					if (slot.buffer == null) {
+						slot.buffer = ByteBuffer.allocateDirect(readSize);
+					}
+					slot.buffer.clear().limit((int) Math.min(readSize, size - pos));
+					throttle.acquire(slot.buffer.remaining());
+					while (slot.buffer.hasRemaining()) {
+						if (ch.read(slot.buffer, pos + slot.buffer.position()) < 0) {
+							throw new IOException("File shrank while digesting: " + file);
+						}
+					}
+					pos += slot.buffer.flip().remaining();
+					return true;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Digests a stream, e.g. a binary fetched over HTTP, through large buffers.
+	 * @return hex digests by lower case algorithm name, e.g. md5 and sha-256
+	 */
+	public Map<String, String> digest(InputStream in) throws IOException {
+		return digest(new ChunkReader() {
+			@Override
+			public boolean next(Slot slot) throws IOException {
+				if (slot.buffer == null) {
+					slot.buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+				}
+				byte[] b = slot.buffer.array();
+				int n = in.readNBytes(b, 0, b.length);
+				if (n <= 0) return false;
+				slot.buffer.clear().limit(n);
+				return true;
+			}
+		});
+	}
+
+	private Map<String, String> digest(ChunkReader reader) throws IOException {
+		List<MessageDigest> digests = new ArrayList<MessageDigest>();
+		for (String a : algorithms) {
+			digests.add(DigestUtils.getDigest(a.trim()));
+		}
+		if (digests.size() == 1) {
+			Slot slot = new Slot();
+			while (reader.next(slot)) {
+				digests.get(0).update(slot.buffer);
+			}
+			return result(digests);
+		}
+
+		// one consumer per digest, every slot is handed to all of them and freed by the last
+		BlockingQueue<Slot> free = new ArrayBlockingQueue<Slot>(ringSize);
+		for (int i = 0; i < ringSize; i++) {
+			free.add(new Slot());
+		}
+		List<BlockingQueue<Slot>> queues = new ArrayList<BlockingQueue<Slot>>();
+		List<Future<?>> consumers = new ArrayList<Future<?>>();
+		for (MessageDigest md : digests) {
+			BlockingQueue<Slot> queue = new ArrayBlockingQueue<Slot>(ringSize + 1);
+			queues.add(queue);
+			consumers.add(hashers.submit(() -> {
+				for (Slot slot = queue.take(); slot != Slot.END; slot = queue.take()) {
+					md.update(slot.buffer.duplicate());
+					if (slot.pending.decrementAndGet() == 0) {
+						free.put(slot);
+					}
+				}
+				return null;
+			}));
+		}
+		boolean complete = false;
+		try {
+			for (Slot slot = take(free, consumers); reader.next(slot); slot = take(free, consumers)) {
+				slot.pending.set(queues.size());
+				for (BlockingQueue<Slot> q : queues) {
+					q.put(slot);
+				}
+			}
+			complete = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			for (int i = 0; i < queues.size(); i++) {
+				if (complete) {
+					queues.get(i).add(Slot.END);
+				} else {
+					consumers.get(i).cancel(true);
+				}
+			}
+		}
+		try {
+			for (Future<?> f : consumers) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException("Digest failed", e.getCause());
+		}
+		return result(digests);
+	}
+
+	/**
+	 * Waits for a free slot. A consumer that stops before the end of the binary never frees its slots, so the
+	 * consumers are checked while waiting and their failure is thrown rather than waiting forever.
+	 */
+	private static Slot take(BlockingQueue<Slot> free, List<Future<?>> consumers)
+			throws InterruptedException, IOException {
+		for (;;) {
+			Slot slot = free.poll(1, TimeUnit.SECONDS);
+			if (slot != null) return slot;
+			for (Future<?> f : consumers) {
+				if (f.isDone()) {
+					try {
+						f.get();
+						throw new IOException("Digest stopped before the end of the binary");
+					} catch (ExecutionException e) {
+						throw new IOException("Digest failed", e.getCause());
+					} catch (CancellationException e) {
+						throw new IOException("Digest cancelled", e);
+					}
+				}
+			}
+		}
+	}
+
+	private static Map<String, String> result(List<MessageDigest> digests) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (MessageDigest md : digests) {
+			result.put(md.getAlgorithm().toLowerCase(Locale.ROOT), Hex.encodeHexString(md.digest()));
+		}
+		return result;
+	}
+
+	/**
+	 * Paces reads against an I/O budget.
+	 */
+	public interface ReadThrottle {
+		void acquire(int bytes) throws IOException;
+	}
+
+	private interface ChunkReader {
+		/**
+		 * Puts the next chunk in the slot's buffer, positioned for reading.
+		 * @return false at the end of the binary
+		 */
+		boolean next(Slot slot) throws IOException;
+	}
+
+	private static class Slot {
+		static final Slot END = new Slot();
+
+		ByteBuffer buffer;
+		final AtomicInteger pending = new AtomicInteger();
+	}
+}
@@ -0,0 +1,191 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * A table of every digest known for a binary, one row per binary, hash function and source: "manifest" for the
+ * digests listed in a submission's MD5 manifest and "computed" for those calculated from the stored bytes. Rows carry
+ * the submission path, e.g. /submissions/ABC123, so a submission is reconciled against its manifest with one indexed
+ * join instead of a SPARQL scan over the descriptions. The PREMIS fixity in the descriptions stays the record of
+ * truth; this index is maintained beside it by {@link HAManifestProcessor} and {@link DigestProcessor}.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class FixityIndex {
+	private static final Logger LOGGER = getLogger(FixityIndex.class);
+
+	static final String MANIFEST = "manifest";
+	static final String COMPUTED = "computed";
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.index.enabled", defaultValue = "true")
+	boolean enabled;
+
+	@Inject
+	DataSource dataSource;
+
+	private volatile boolean ready = false;
+
+	void onStart(@Observes StartupEvent event) {
+		if (!enabled) return;
+		try (Connection c = dataSource.getConnection(); Statement st = c.createStatement()) {
+			st.execute("CREATE TABLE IF NOT EXISTS fixity_index (subject VARCHAR(1024) NOT NULL, "
+					+ "algorithm VARCHAR(32) NOT NULL, source VARCHAR(16) NOT NULL, submission VARCHAR(1024), "
+					+ "value VARCHAR(256) NOT NULL, origin VARCHAR(1024), recorded BIGINT NOT NULL, "
+					+ "PRIMARY KEY (subject, algorithm, source))");
+			st.execute("CREATE INDEX IF NOT EXISTS fixity_index_submission ON fixity_index "
+					+ "(submission, source, subject)");
+			ready = true;
+		} catch (SQLException e) {
+			LOGGER.error("Cannot create fixity index table, index disabled", e);
+		}
+	}
+
+	public boolean isEnabled() {
+		return ready;
+	}
+
+	/**
+	 * Records the digests of one binary from one source, replacing what that source said before.
+	 * @param subject the public binary IRI
+	 * @param source {@link #MANIFEST} or {@link #COMPUTED}
+	 * @param digests hex values by hash function name, e.g. md5 and sha256
+	 * @param origin the manifest IRI or the digest implementation
+	 */
+	void record(String subject, String source, Map<String, String> digests, String origin) {
+		List<Entry> entries = new ArrayList<Entry>(digests.size());
+		digests.forEach((alg, value) -> entries.add(new Entry(subject, alg, value)));
+		recordAll(entries, source, origin);
+	}
+
+	/**
+	 * Records a batch of digests from one source in a single statement batch.
+	 */
+	void recordAll(List<Entry> entries, String source, String origin) {
+		if (!ready || entries.isEmpty()) return;
+		long now = System.currentTimeMillis();
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("INSERT INTO fixity_index "
+						+ "(subject, algorithm, source, submission, value, origin, recorded) VALUES (?, ?, ?, ?, ?, ?, ?) "
+						+ "ON CONFLICT (subject, algorithm, source) DO UPDATE SET submission = EXCLUDED.submission, "
+						+ "value = EXCLUDED.value, origin = EXCLUDED.origin, recorded = EXCLUDED.recorded")) {
+			for (Entry e : entries) {
+				ps.setString(1, e.subject);
+				ps.setString(2, e.algorithm);
+				ps.setString(3, source);
+				ps.setString(4, submission(e.subject));
+				ps.setString(5, e.value.trim().toLowerCase(Locale.ROOT));
+				ps.setString(6, origin);
+				ps.setLong(7, now);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		} catch (SQLException e) {
+			LOGGER.error("Cannot record {} {} digests in the fixity index", entries.size(), source, e);
+		}
+	}
+
+	/**
+	 * Compares the manifest digests of a submission with the computed ones.
+	 * @param submission the submission path, e.g. /submissions/ABC123
+	 * @param limit the most binaries listed per outcome
+	 */
+	Reconciliation reconcile(String submission, int limit) throws SQLException {
+		Reconciliation r = new Reconciliation();
+		try (Connection c = dataSource.getConnection();
+				PreparedStatement ps = c.prepareStatement("SELECT m.subject, m.algorithm, m.value, k.value, m.origin "
+						+ "FROM fixity_index m LEFT JOIN fixity_index k ON k.subject = m.subject "
+						+ "AND k.algorithm = m.algorithm AND k.source = ? "
+						+ "WHERE m.submission = ? AND m.source = ? ORDER BY m.subject")) {
+			ps.setString(1, COMPUTED);
+			ps.setString(2, submission);
+			ps.setString(3, MANIFEST);
+			try (ResultSet rs = ps.executeQuery()) {
+				while (rs.next()) {
+					Outcome o = new Outcome(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4),
+							rs.getString(5));
+					List<Outcome> list = o.actual == null ? r.missing
+							: o.actual.equals(o.expected) ? r.matched : r.mismatched;
+					if (list == r.missing) r.missingCount++;
+					else if (list == r.matched) r.matchedCount++;
+					else r.mismatchedCount++;
+					if (list.size() < limit) list.add(o);
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * @return the submission path of a binary, e.g. /submissions/ABC123, or null outside of submissions
+	 */
+	static String submission(String subject) {
+		try {
+			String[] segs = URI.create(subject).getPath().split("/");
+			if (segs.length < 4 || !DrasticPaths.submissions.path.equals("/" + segs[1] + "/")) return null;
+			return "/" + segs[1] + "/" + segs[2];
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	static class Entry {
+		final String subject;
+		final String algorithm;
+		final String value;
+
+		Entry(String subject, String algorithm, String value) {
+			this.subject = subject;
+			this.algorithm = algorithm;
+			this.value = value;
+		}
+	}
+
+	static class Outcome {
+		final String subject;
+		final String algorithm;
+		final String expected;
+		final String actual;
+		final String manifest;
+
+		Outcome(String subject, String algorithm, String expected, String actual, String manifest) {
+			this.subject = subject;
+			this.algorithm = algorithm;
+			this.expected = expected;
+			this.actual = actual;
+			this.manifest = manifest;
+		}
+	}
+
+	static class Reconciliation {
+		long matchedCount;
+		long mismatchedCount;
+		long missingCount;
+		final List<Outcome> matched = new ArrayList<Outcome>();
+		final List<Outcome> mismatched = new ArrayList<Outcome>();
+		final List<Outcome> missing = new ArrayList<Outcome>();
+	}
+}
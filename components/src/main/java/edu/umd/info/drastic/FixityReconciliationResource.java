@@ -0,0 +1,82 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Reconciles a submission against its MD5 manifest from the {@link FixityIndex}: the binaries whose computed MD5
+ * matches the manifest, those that differ and those listed in the manifest without a computed digest, i.e. not
+ * ingested or not digested yet. Each list holds at most limit binaries, the counts are always complete, e.g.
+ * GET /fixity/reconcile/ABC123?limit=100
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@Path("fixity/reconcile")
+public class FixityReconciliationResource {
+	private static final Logger LOGGER = getLogger(FixityReconciliationResource.class);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Inject
+	FixityIndex index;
+
+	@GET
+	@Path("{submission}")
+	@Produces("application/json")
+	public Response reconcile(@PathParam("submission") String submission,
+			@QueryParam("limit") @DefaultValue("1000") int limit) {
+		if (!index.isEnabled()) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		String path = DrasticPaths.submissions.path + submission;
+		ObjectNode report = mapper.createObjectNode();
+		report.put("submission", path);
+		try {
+			FixityIndex.Reconciliation r = index.reconcile(path, Math.max(0, Math.min(limit, 100000)));
+			ObjectNode counts = report.putObject("counts");
+			counts.put("matched", r.matchedCount);
+			counts.put("mismatched", r.mismatchedCount);
+			counts.put("missing", r.missingCount);
+			list(report.putArray("matched"), r.matched);
+			list(report.putArray("mismatched"), r.mismatched);
+			list(report.putArray("missing"), r.missing);
+		} catch (SQLException e) {
+			LOGGER.error("Cannot reconcile fixity of {}", path, e);
+			return Response.serverError().build();
+		}
+		return Response.ok(report.toString()).build();
+	}
+
+	private static void list(ArrayNode items, List<FixityIndex.Outcome> outcomes) {
+		for (FixityIndex.Outcome o : outcomes) {
+			ObjectNode item = items.addObject();
+			item.put("resource", o.subject);
+			item.put("algorithm", o.algorithm);
+			item.put("expected", o.expected);
+			if (o.actual != null) {
+				item.put("actual", o.actual);
+			}
+			item.put("manifest", o.manifest);
+		}
+	}
+}
@@ -7,16 +7,25 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.Literal;
+import org.apache.commons.rdf.api.RDFTerm;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Acknowledgment;
 import org.eclipse.microprofile.reactive.messaging.Acknowledgment.Strategy;
@@ -43,6 +52,7 @@ import io.smallrye.reactive.messaging.annotations.Blocking;
  * @author jansen
  *
  */
+@ApplicationScoped
 public class GraphToESIndexer {
 	private static final Logger LOGGER = getLogger(GraphToESIndexer.class);
 
@@ -54,6 +64,11 @@ public class GraphToESIndexer {
     @ConfigProperty(name = "trellis.elasticsearch-index-url", defaultValue = "http://localhost:9200/descriptions")
     URI elasticSearchIndexUrl;
     
+    /** Graphs indexed by another consumer, e.g. descriptions by the DescriptionEnrichmentPipeline. */
+    @Inject
+    @ConfigProperty(name = "trellis.elasticsearch.skip-path-prefixes")
+    Optional<List<String>> skipPathPrefixes;
+    
 	public static final Set<String> excludedFulltextPredicates = new HashSet<String>();
     static {
 		excludedFulltextPredicates.add(ICMS.Notes.str);
@@ -82,6 +97,9 @@ public class GraphToESIndexer {
 			//LOGGER.debug("skipping path: {}", graphUri.getPath());
 			return;
 		}
+		if(skipPathPrefixes.orElse(List.of()).stream().anyMatch(graphUri.getPath()::startsWith)) {
+			return;
+		}
 		getSubjectsInGraph(graphUri).forEach(s -> processSubject(s));
 	}
 
@@ -164,6 +182,53 @@ public class GraphToESIndexer {
 		}
 	}
 	
+	/**
+	 * Builds the index document for an archival description (PCDM Collection) from its in-memory graph,
+	 * without querying the triple store.
+	 * @param subject the description IRI
+	 * @param g the description graph, including any enrichments
+	 * @return the Elasticsearch document
+	 */
+	ObjectNode buildDescriptionDocument(IRI subject, Graph g) {
+		ObjectMapper m = new ObjectMapper();
+		ObjectNode es_doc = m.createObjectNode();
+		es_doc.put("uri", subject.getIRIString());
+		g.stream(subject, null, null)
+			.filter(t -> t.getPredicate().getIRIString().startsWith(NPSVocabulary.DCTERMS_NS.getIRIString()))
+			.forEach(t -> {
+				String key = t.getPredicate().getIRIString().substring(NPSVocabulary.DCTERMS_NS.getIRIString().length());
+				if(!es_doc.has(key)) {
+					es_doc.putArray(key);
+				}
+				((ArrayNode)es_doc.get(key)).add(lexical(t.getObject()));
+			});
+		String fulltext = g.stream(subject, null, null)
+			.filter(t -> {
+				String pred = t.getPredicate().getIRIString();
+				return pred.startsWith(NPSVocabulary.ICMS_NS.getIRIString()) &&
+						!excludedFulltextPredicates.contains(pred);
+			}).map(t -> lexical(t.getObject())).collect(Collectors.joining(" "));
+		es_doc.put("fulltext", fulltext);
+		String path = g.stream(subject, NPS.path.iri, null).findFirst()
+			.map(t -> lexical(t.getObject()))
+			.orElseGet(() -> g.stream(subject, ICMS.id.iri, null).findFirst()
+				.map(t -> lexical(t.getObject())).orElse(null));
+		if(path != null) {
+			es_doc.put("pathfacet", path);
+			es_doc.put("path", path);
+			es_doc.put("depth", DescriptionPathEnricher.depth(path));
+		} else {
+			LOGGER.warn("Found description without path: {}", subject);
+		}
+		return es_doc;
+	}
+	
+	private static String lexical(RDFTerm term) {
+		if(term instanceof Literal) return ((Literal)term).getLexicalForm();
+		if(term instanceof IRI) return ((IRI)term).getIRIString();
+		return term.ntriplesString();
+	}
+	
 	private String getThumbnail(URI subjectURI) {
 		String query = "select ?t WHERE { GRAPH ?g { "+ 
 		" <"+subjectURI+"> <http://www.iana.org/assignments/relation/first> ?order . "+
@@ -230,7 +295,40 @@ public class GraphToESIndexer {
 		}
 	}
 	
-	private String postElasticDocument(URI iri, ObjectNode es_doc) {
+	/**
+	 * Indexes many documents with one Elasticsearch bulk request.
+	 * @param docs the documents, keyed by subject
+	 * @return the bulk response body
+	 */
+	String postElasticBulk(Map<URI, ObjectNode> docs) {
+		if(docs.isEmpty()) return null;
+		ObjectMapper m = new ObjectMapper();
+		StringBuilder body = new StringBuilder();
+		docs.forEach((iri, doc) -> {
+			ObjectNode action = m.createObjectNode();
+			action.putObject("index").put("_id", iri.getPath().replace('/', '-'));
+			body.append(action.toString()).append('\n').append(doc.toString()).append('\n');
+		});
+		URI uri = URI.create(this.elasticSearchIndexUrl + "/_bulk");
+		try {
+			HttpClient http = HttpClient.newHttpClient();
+			HttpRequest req = HttpRequest.newBuilder(uri).POST(BodyPublishers.ofString(body.toString()))
+				.header("Accept", "application/json")
+				.header("Content-Type", "application/x-ndjson; charset=utf-8")
+				.build();
+			HttpResponse<String> res = http.send(req, BodyHandlers.ofString());
+			if(res.statusCode() >= 300 || m.readTree(res.body()).path("errors").asBoolean(false)) {
+				throw new CompletionException(new IOException("ES bulk request for " + docs.size()
+						+ " docs failed: " + res.statusCode()));
+			}
+			return res.body();
+		} catch (IOException | InterruptedException e) {
+			LOGGER.error("Cannot POST ES bulk request for {} docs", docs.size(), e);
+			throw new CompletionException(e);
+		}
+	}
+	
+	String postElasticDocument(URI iri, ObjectNode es_doc) {
 		String iriPath = iri.getPath();
 	    URI uri = URI.create(this.elasticSearchIndexUrl + "/_doc/" + iriPath.replace('/', '-'));
 	    //"level": x['icms:level'],
@@ -1,12 +1,10 @@
 package edu.umd.info.drastic;
 
 import static edu.umd.info.drastic.LDPHttpUtil.localhost;
-import static edu.umd.info.drastic.LDPHttpUtil.patchGraph;
 import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -14,36 +12,47 @@ import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
 import org.apache.commons.rdf.api.BlankNode;
-import org.apache.commons.rdf.api.Dataset;
 import org.apache.commons.rdf.api.Graph;
 import org.apache.commons.rdf.api.IRI;
 import org.apache.commons.rdf.api.RDF;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.slf4j.Logger;
 import org.trellisldp.api.RDFFactory;
-import org.trellisldp.vocabulary.Trellis;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.vocabulary.LDP;
 
 import io.smallrye.reactive.messaging.kafka.Record;
 
 /**
- * A {@link RouteBuilder} that forwards the Trellis object activity to Kafka.
+ * Adds the MD5 digests listed in a History &amp; Associates manifest spreadsheet to the descriptions of the files
+ * it lists.
  * <p>
- * Note that for the {@code @Inject} and {@code @ConfigProperty} annotations to work, this class has to be annotated
- * with {@code @ApplicationScoped}.
+ * The first sheet is read row by row with the POI event API, so a manifest of any length is parsed in constant
+ * memory. Which listed files exist is answered once from the containment of the manifest's container. Digests are
+ * collected in batches and each batch is patched by a bounded pool of writers, while the next batch is parsed.
+ * Every listed digest is also recorded in the {@link FixityIndex} for reconciliation.
  */
 @ApplicationScoped
 public class HAManifestProcessor {
@@ -54,6 +63,42 @@ public class HAManifestProcessor {
 
 	private ExecutorService executorService = Executors.newFixedThreadPool(1);
 
+	@Inject
+	@ConfigProperty(name = "trellis.manifest.batch-size", defaultValue = "200")
+	int batchSize;
+
+	@Inject
+	@ConfigProperty(name = "trellis.manifest.concurrency", defaultValue = "8")
+	int concurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.spreadsheet.max-shared-strings-mb", defaultValue = "64")
+	long maxSharedStringsMb;
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	FixityEngine fixityEngine;
+
+	@Inject
+	FixityIndex fixityIndex;
+
+	private ExecutorService writers;
+
+	private final HttpClient http = HttpClient.newHttpClient();
+
+	@PostConstruct
+	void initialize() {
+		writers = Executors.newFixedThreadPool(concurrency);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executorService.shutdown();
+		writers.shutdown();
+	}
+
 	@Incoming("manifest")
     public void process(Record<String, String> record) {
 		if(NPSFilenameUtil.isMD5Sheet(record.key())) {
@@ -70,49 +115,123 @@ public class HAManifestProcessor {
 	}
 
 	private void extractFilenames2MD5Map(URI binaryLoc) {
-		HttpClient http = HttpClient.newHttpClient();
-		HttpRequest req;
 		try {
-			req = HttpRequest.newBuilder(localhost(binaryLoc)).GET().build();
-		} catch (URISyntaxException e1) {
-			LOGGER.error("Cannot make local URI", e1);
-			return;
+			Set<String> existing = containedNames(binaryLoc);
+			ManifestStats stats = new ManifestStats();
+			RowCollector rows = new RowCollector(binaryLoc, existing, stats);
+			// one batch is written while the next is collected
+			SpreadsheetRows.read(binaryLoc, fixityEngine, rows, maxSharedStringsMb << 20);
+			rows.finish();
+			LOGGER.info("Manifest {} processed: {} rows, {} patched, {} not found, {} failed", binaryLoc,
+					stats.rows.get(), stats.patched.get(), stats.missing.get(), stats.failed.get());
+		} catch (Exception e) {
+			LOGGER.error("Got a failure when processing manifest spreadsheet", e);
 		}
-		http.sendAsync(req, HttpResponse.BodyHandlers.ofInputStream())
-			.thenAccept(res -> {
-				InputStream is = res.body();
-				try(Workbook workbook = WorkbookFactory.create(new BufferedInputStream(is))) {
-					LOGGER.debug("Got workbook");
-					Sheet sheet = workbook.getSheetAt(0);
-					boolean md5Seen = false;
-					for (Row row : sheet) {
-						try {
-							Cell f = row.getCell(0);
-							if(f.getCellType() != CellType.STRING) continue;
-							String filename = f.getStringCellValue();
-							if(!filename.contains("\\")) continue;
-							filename = filename.substring(filename.lastIndexOf('\\')+1);
-							if(!NPSFilenameUtil.isHierarchalConvention(filename)) continue;
-							Cell m = row.getCell(1);
-							if(m.getCellType() != CellType.STRING) continue;
-							md5Seen = true;
-							// FIXME: All manifest digests should really be held in that manifest's own graph.
-							addManifestDigest(filename, m.getStringCellValue().trim(), binaryLoc);
-						} catch(Exception e) {
-							if(md5Seen) return;
-							LOGGER.error("Failed to process manifest row", e);
-							 // TODO flag file for error
-						}
-						Thread.sleep(1000 * 1);
-					}
-				} catch (Exception e) {
-					LOGGER.error("Got a failure when processing manifest spreadsheet", e);
-					return;
-				}
-			});
 	}
 
-	private void addManifestDigest(String filename, String md5, URI manifestLoc) throws IOException, InterruptedException, URISyntaxException {
+	/**
+	 * @return the names of the resources in the container the manifest was added to
+	 */
+	private Set<String> containedNames(URI manifestLoc) {
+		String path = manifestLoc.getPath();
+		String container = path.substring(1, Math.max(1, path.lastIndexOf('/')));
+		Resource res = resourceService.get(rdf.createIRI(TRELLIS_DATA_PREFIX + container)).toCompletableFuture()
+				.join();
+		return res.stream(LDP.PreferContainment).filter(t -> LDP.contains.equals(t.getPredicate()))
+				.map(t -> t.getObject())
+				.filter(o -> o instanceof IRI)
+				.map(o -> ((IRI) o).getIRIString())
+				.map(s -> s.substring(s.lastIndexOf('/') + 1))
+				.collect(Collectors.toCollection(HashSet::new));
+	}
+
+	/**
+	 * Picks the file name and MD5 out of each row: a Windows path in the first column and the digest in the second.
+	 */
+	private class RowCollector implements SheetContentsHandler {
+		private final URI manifestLoc;
+		private final Set<String> existing;
+		private final ManifestStats stats;
+		private Map<String, String> batch = new LinkedHashMap<String, String>();
+		private List<FixityIndex.Entry> listed = new ArrayList<FixityIndex.Entry>();
+		private CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+		private String filename;
+		private String md5;
+
+		RowCollector(URI manifestLoc, Set<String> existing, ManifestStats stats) {
+			this.manifestLoc = manifestLoc;
+			this.existing = existing;
+			this.stats = stats;
+		}
+
+		@Override
+		public void startRow(int rowNum) {
+			filename = null;
+			md5 = null;
+		}
+
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			if (cellReference == null || formattedValue == null) return;
+			String column = cellReference.replaceAll("[0-9]", "");
+			if ("A".equals(column)) {
+				filename = formattedValue;
+			} else if ("B".equals(column)) {
+				md5 = formattedValue.trim();
+			}
+		}
+
+		@Override
+		public void endRow(int rowNum) {
+			if (filename == null || md5 == null || md5.isEmpty() || !filename.contains("\\")) return;
+			String name = filename.substring(filename.lastIndexOf('\\')+1);
+			if(!NPSFilenameUtil.isHierarchalConvention(name)) return;
+			stats.rows.incrementAndGet();
+			// every listed file goes in the index, so reconciliation can report those never ingested
+			listed.add(new FixityIndex.Entry(resolve(manifestLoc, name), "md5", md5));
+			if (listed.size() >= batchSize) {
+				fixityIndex.recordAll(listed, FixityIndex.MANIFEST, manifestLoc.toString());
+				listed = new ArrayList<FixityIndex.Entry>();
+			}
+			if (!existing.contains(name)) {
+				LOGGER.debug("skipping non-existent file: {}", name);
+				stats.missing.incrementAndGet();
+				return;
+			}
+			batch.put(name, md5);
+			if (batch.size() >= batchSize) {
+				previous.join(); // at most one batch written while the next is parsed
+				previous = writeBatch(manifestLoc, batch, stats);
+				batch = new LinkedHashMap<String, String>();
+			}
+		}
+
+		void finish() {
+			fixityIndex.recordAll(listed, FixityIndex.MANIFEST, manifestLoc.toString());
+			previous.join();
+			if (!batch.isEmpty()) {
+				writeBatch(manifestLoc, batch, stats).join();
+			}
+		}
+	}
+
+	private CompletableFuture<Void> writeBatch(URI manifestLoc, Map<String, String> digests, ManifestStats stats) {
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>(digests.size());
+		digests.forEach((filename, md5) -> writes.add(CompletableFuture.runAsync(() -> {
+			if (addManifestDigest(filename, md5, manifestLoc)) {
+				stats.patched.incrementAndGet();
+			} else {
+				stats.failed.incrementAndGet();
+			}
+		}, writers)));
+		return CompletableFuture.allOf(writes.toArray(new CompletableFuture[0]));
+	}
+
+	private static String resolve(URI manifestLoc, String filename) {
+		return manifestLoc.resolve(filename).toString();
+	}
+
+	private boolean addManifestDigest(String filename, String md5, URI manifestLoc) {
 		URI fileDescLoc;
 		IRI fileID;
 		try {
@@ -120,23 +239,39 @@ public class HAManifestProcessor {
 			fileID = rdf.createIRI(new URL(manifestLoc.toURL(), filename).toExternalForm());
 		} catch (MalformedURLException | URISyntaxException e) {
 			LOGGER.error("Failed to build binary description url", e);
-			return;
+			return false;
 		}
-		HttpClient http = HttpClient.newHttpClient();
-		HttpResponse<Void> hres = http.send(HttpRequest.newBuilder(localhost(fileDescLoc)).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), BodyHandlers.discarding());
-		if(hres.statusCode() != 200) {
-			LOGGER.debug("skipping non-existent file, response: {}", hres.statusCode());
-			return;
+		// FIXME: All manifest digests should really be held in that manifest's own graph.
+		Graph g = rdf.createGraph();
+		BlankNode fixMD5 = rdf.createBlankNode("fixityMD5");
+		g.add(fileID, rdf.createIRI(InlineFixity.PREMIS_FIXITY), fixMD5);
+		g.add(fixMD5, rdf.createIRI(InlineFixity.RDF_TYPE), rdf.createIRI(InlineFixity.HASH_FUNCTIONS + "md5"));
+		g.add(fixMD5, rdf.createIRI(InlineFixity.RDF_VALUE), rdf.createLiteral(md5));
+		g.add(fixMD5, rdf.createIRI(InlineFixity.DC_CREATOR), rdf.createLiteral("History & Associates"));
+		g.add(fixMD5, rdf.createIRI(InlineFixity.DC_SOURCE), rdf.createIRI(manifestLoc.toString()));
+		String patch = "INSERT { "+ g.toString() +" } WHERE {}";
+		try {
+			HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(fileDescLoc))
+					.method("PATCH", HttpRequest.BodyPublishers.ofString(patch))
+					.header("Content-type", "application/sparql-update").build(), HttpResponse.BodyHandlers.discarding());
+			if (res.statusCode() != 204) {
+				LOGGER.error("Got a failure when patching {}: {}", fileDescLoc, res.statusCode());
+				return false;
+			}
+			return true;
+		} catch (IOException | URISyntaxException e) {
+			LOGGER.error("Exception while patching {}", fileDescLoc, e);
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
-        Dataset d = rdf.createDataset();
-        BlankNode fixMD5 = rdf.createBlankNode("fixityMD5");
-        Graph g = d.getGraph(Trellis.PreferUserManaged).get();
-        g.add(fileID, rdf.createIRI("http://www.loc.gov/standards/premis/rdf/v3/fixity"), fixMD5);
-        g.add(fixMD5, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"), rdf.createIRI("http://id.loc.gov/vocabulary/cryptographicHashFunctions/md5"));
-        g.add(fixMD5, rdf.createIRI("http://www.w3.org/1999/02/22-rdf-syntax-ns#value"), rdf.createLiteral(md5));
-        g.add(fixMD5, rdf.createIRI("http://purl.org/dc/elements/1.1/creator"), rdf.createLiteral("History & Associates"));
-        g.add(fixMD5, rdf.createIRI("http://purl.org/dc/elements/1.1/source"), rdf.createIRI(manifestLoc.toString()));
-        patchGraph(g, fileDescLoc.toASCIIString());
-    }
+	}
 
+	private static class ManifestStats {
+		final AtomicInteger rows = new AtomicInteger();
+		final AtomicInteger patched = new AtomicInteger();
+		final AtomicInteger missing = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+	}
 }
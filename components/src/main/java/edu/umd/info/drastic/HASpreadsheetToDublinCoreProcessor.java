@@ -1,11 +1,12 @@
 package edu.umd.info.drastic;
 
 import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.slf4j.LoggerFactory.getLogger;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -14,39 +15,57 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.slf4j.Logger;
 
 import io.smallrye.reactive.messaging.kafka.Record;
 
 /**
- * A {@link RouteBuilder} that forwards the Trellis object activity to Kafka.
+ * Converts a Dublin Core inventory spreadsheet into Turtle, one resource per row with the dcterms named by the
+ * header row, and stores it next to the inventory.
  * <p>
- * Note that for the {@code @Inject} and {@code @ConfigProperty} annotations to work, this class has to be annotated
- * with {@code @ApplicationScoped}.
+ * Rows are streamed from the sheet with the POI event API and their Turtle is written straight into the body of the
+ * PUT that stores it, so only the current row and a few body chunks are ever held in memory. An inventory of more
+ * than trellis.inventory.rows-per-resource rows is stored as several parts, _EXTRACTED.ttl, _EXTRACTED_2.ttl and so
+ * on, and parts left over from an earlier, longer version are removed.
  */
 @ApplicationScoped
 public class HASpreadsheetToDublinCoreProcessor {
 
 	private static final Logger LOGGER = getLogger(HASpreadsheetToDublinCoreProcessor.class);
 
+	private static final String PREFIXES = "@prefix dcterms: <http://purl.org/dc/terms/> .\n"
+			+ "@prefix xsd:   <http://www.w3.org/2001/XMLSchema#> .\n\n";
+
 	private ExecutorService executorService = Executors.newFixedThreadPool(1);
 
+	@Inject
+	@ConfigProperty(name = "trellis.inventory.rows-per-resource", defaultValue = "10000")
+	int rowsPerResource;
+
+	@Inject
+	@ConfigProperty(name = "trellis.spreadsheet.max-shared-strings-mb", defaultValue = "64")
+	long maxSharedStringsMb;
+
+	@Inject
+	FixityEngine fixityEngine;
+
+	private final HttpClient http = HttpClient.newHttpClient();
+
 	@Incoming("spreadsheet2dc")
     public void process(Record<String, String> record) {
 		if(NPSFilenameUtil.isDCSheet(record.key())) {
@@ -62,94 +81,184 @@ public class HASpreadsheetToDublinCoreProcessor {
 	}
 
 	private void processDCFile(URI binaryLoc) {
-		File sheetFile;
-		File extractedFile;
+		TurtleParts parts = null;
 		try {
-			HttpClient http = HttpClient.newHttpClient();
-			HttpRequest req = HttpRequest.newBuilder(localhost(binaryLoc)).GET().build();
-			sheetFile = File.createTempFile("tmp", ".xlsx");
-			extractedFile = File.createTempFile("tmp", ".ttl");
-			http.send(req, HttpResponse.BodyHandlers.ofFile(sheetFile.toPath()));
-		} catch (IOException | InterruptedException | URISyntaxException e1) {
-			LOGGER.error("Cannot download temp xslx file", e1);
-			return;
+			URL base = NPSFilenameUtil.getSubmissionUrl(binaryLoc.toURL());
+			parts = new TurtleParts(binaryLoc);
+			SpreadsheetRows.read(binaryLoc, fixityEngine, new DublinCoreRows(base, parts),
+					maxSharedStringsMb << 20);
+			parts.finish();
+			LOGGER.debug("Extracted {} rows from {} in {} parts", parts.rows, binaryLoc, parts.part);
+		} catch (Exception e) {
+			if (parts != null) parts.abort();
+			LOGGER.error("Got a failure when processing dublin core spreadsheet {}", binaryLoc, e);
 		}
-		try(Workbook workbook = WorkbookFactory.create(sheetFile)) {
-			Sheet sheet = workbook.getSheetAt(0);
+	}
 
-			URL base = NPSFilenameUtil.getSubmissionUrl(binaryLoc.toURL());
-			try(PrintWriter pw = new PrintWriter(extractedFile)) {
-				writeRDF(pw, sheet, base);
-			}
+	/**
+	 * Maps the header row to dcterms and turns each following row into one resource.
+	 */
+	private class DublinCoreRows implements SheetContentsHandler {
+		private final URL base;
+		private final TurtleParts parts;
+		private final Map<Integer, String> columns2dc = new TreeMap<Integer, String>();
+		private final Map<Integer, String> cells = new TreeMap<Integer, String>();
+		private boolean columnsIdentified = false;
+
+		DublinCoreRows(URL base, TurtleParts parts) {
+			this.base = base;
+			this.parts = parts;
+		}
 
-			URI extractedLoc = new URL(binaryLoc.toURL(), "./"+NPSFilenameUtil.getExtractedDCFilename(binaryLoc.toASCIIString())).toURI();
-			HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofFile(extractedFile.toPath());
-			HttpClient http = HttpClient.newHttpClient();
-			HttpResponse<Void> hres = http.send(HttpRequest.newBuilder(localhost(extractedLoc))
-					.method("PUT", publisher)
-					.header("Link", "<http://www.w3.org/ns/ldp#RDFSource>; rel=\"type\"")
-					.header("Content-Type", "text/turtle")
-					.build(), BodyHandlers.discarding());
-			if(hres.statusCode() != 201) {
-				LOGGER.error("Problem putting extracted RDF: {}", hres.statusCode());
+		@Override
+		public void startRow(int rowNum) {
+			cells.clear();
+		}
+
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			if (cellReference == null || formattedValue == null) return;
+			cells.put(Integer.valueOf(new CellReference(cellReference).getCol()), formattedValue);
+		}
+
+		@Override
+		public void endRow(int rowNum) {
+			String first = cells.get(0);
+			if (first == null || first.isEmpty()) {
+				LOGGER.debug("skipping blank row {}", rowNum);
 				return;
 			}
-		} catch (Exception e) {
-			LOGGER.debug("problem", e);
-			return;
+			if (!columnsIdentified) {
+				cells.forEach((col, name) -> {
+					try {
+						NPSVocabulary.DCTERMS.valueOf(name.toLowerCase());
+						columns2dc.put(col, name.toLowerCase());
+					} catch(IllegalArgumentException ignored) {}
+				});
+				LOGGER.debug("columns identified {}", columns2dc.size());
+				columnsIdentified = true;
+				return;
+			}
+			Map<String, String> dctermsPO = new LinkedHashMap<String, String>();
+			columns2dc.forEach((col, term) -> {
+				if (cells.containsKey(col)) dctermsPO.put(term, cells.get(col));
+			});
+			if (dctermsPO.isEmpty()) return;
+			try {
+				parts.row(URI.create(base.toExternalForm() + "/" + dctermsPO.get("identifier")), dctermsPO);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot write extracted RDF", e);
+			} catch (IllegalArgumentException e) {
+				LOGGER.error("Skipping row {} with unusable identifier: {}", rowNum, dctermsPO.get("identifier"));
+			}
 		}
 	}
 
-	private void writeRDF(Writer out, Sheet sheet, URL base) throws IOException {
-		out.write("@prefix dcterms: <http://purl.org/dc/terms/> .\n");
-		out.write("@prefix xsd:   <http://www.w3.org/2001/XMLSchema#> .\n\n");
-		boolean columnsIdentified = false;
-		Map<Integer, String> columns2dc = new HashMap<Integer, String>();
-		for (Row row : sheet) { // skips empty row already
-			LOGGER.debug("processing row {}", row.getRowNum());
-			if(row.getCell(0) == null) {
-				LOGGER.debug("skipping blank row {}", row.getRowNum());
-				continue;
+	/**
+	 * Streams rows of Turtle into a PUT per part, starting the next part once a part holds rowsPerResource rows.
+	 */
+	private class TurtleParts {
+		private final URI binaryLoc;
+		private int part = 0;
+		private int partRows = 0;
+		private int rows = 0;
+		private PipedBody body;
+		private Writer out;
+		private CompletableFuture<HttpResponse<Void>> put;
+
+		TurtleParts(URI binaryLoc) {
+			this.binaryLoc = binaryLoc;
+		}
+
+		void row(URI doc, Map<String, String> dctermsPO) throws IOException {
+			if (out == null || partRows >= rowsPerResource) {
+				next();
 			}
-			if(row.getCell(0).getCellType() == CellType.STRING && row.getCell(0).getStringCellValue() == "") {
-				LOGGER.debug("skipping blank row {}", row.getRowNum());
-				continue;
+			out.write('<');
+			out.write(doc.toASCIIString());
+			out.write('>');
+			String sep = " ";
+			for (Map.Entry<String, String> e : dctermsPO.entrySet()) {
+				out.write(sep);
+				out.write("dcterms:");
+				out.write(e.getKey());
+				out.write(" \"");
+				writeEscaped(out, e.getValue());
+				out.write(e.getKey().equals("date") ? "\"^^xsd:date" : "\"");
+				sep = ";\n\t";
 			}
-			if(!columnsIdentified) {
-				for(Cell c : row) {
-					if(c.getCellType() == CellType.STRING) {
-						try {
-							NPSVocabulary.DCTERMS.valueOf(c.getStringCellValue().toLowerCase());
-							columns2dc.put(Integer.valueOf(c.getColumnIndex()), c.getStringCellValue().toLowerCase());
-						} catch(IllegalArgumentException ignored) {}
-					}
-				}
-				LOGGER.debug("columns identified {}", columns2dc.size());
-				columnsIdentified = true;
-			} else {
-				Map<String, String> dctermsPO = new HashMap<String, String>();
-				for(Cell c : row) {
-					Integer key = Integer.valueOf(c.getColumnIndex());
-					if(columns2dc.containsKey(key)) {
-						dctermsPO.put(columns2dc.get(key), c.getStringCellValue());
-					}
-				}
-				URI doc;
-				try {
-					doc = new URI(base.toExternalForm()+"/"+dctermsPO.get("identifier"));
-				} catch (URISyntaxException e1) {
-					LOGGER.error("Unexpected", e1);
-					return;
-				}
-				out.write("<" + doc.toASCIIString() + "> ");
-				Optional<String> statements = dctermsPO.entrySet().stream().map((e) -> {
-					String val = e.getKey().equals("date") ? "\""+e.getValue()+"\"^^xsd:date" : "\""+e.getValue().replace("\"", "\\\"")+"\"";
-					return "dcterms:"+e.getKey()+" "+val;
-				}).reduce((a, b) -> { return a+";\n\t"+b; });
-				if(statements.isPresent()) {
-					out.write(statements.get());
-					out.write(" .\n\n");
-				}
+			out.write(" .\n\n");
+			partRows++;
+			rows++;
+		}
+
+		/**
+		 * Completes the last part, an empty inventory still gets an (empty) first part, and removes stale parts.
+		 */
+		void finish() throws IOException, InterruptedException, URISyntaxException {
+			if (out == null) next();
+			complete();
+			for (int stale = part + 1; ; stale++) {
+				HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(partLoc(stale))).DELETE().build(),
+						BodyHandlers.discarding());
+				if (res.statusCode() != 204) break;
+				LOGGER.debug("Removed stale extracted RDF part {}", stale);
+			}
+		}
+
+		void abort() {
+			if (body != null) body.abort();
+		}
+
+		private void next() throws IOException {
+			complete();
+			part++;
+			partRows = 0;
+			body = new PipedBody();
+			try {
+				put = http.sendAsync(HttpRequest.newBuilder(localhost(partLoc(part)))
+						.method("PUT", body.publisher())
+						.header("Link", "<http://www.w3.org/ns/ldp#RDFSource>; rel=\"type\"")
+						.header("Content-Type", "text/turtle")
+						.build(), BodyHandlers.discarding());
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+			out = new BufferedWriter(new OutputStreamWriter(body.out(), UTF_8));
+			out.write(PREFIXES);
+		}
+
+		private void complete() throws IOException {
+			if (out == null) return;
+			out.close();
+			out = null;
+			body = null;
+			int status = put.join().statusCode();
+			if (status != 201 && status != 204) {
+				throw new IOException("Problem putting extracted RDF part " + part + ": " + status);
+			}
+		}
+
+		private URI partLoc(int n) throws IOException {
+			try {
+				return new URL(binaryLoc.toURL(), "./" + NPSFilenameUtil.getExtractedDCFilename(binaryLoc.toASCIIString(), n))
+						.toURI();
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private static void writeEscaped(Writer out, String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': out.write("\\\""); break;
+			case '\\': out.write("\\\\"); break;
+			case '\n': out.write("\\n"); break;
+			case '\r': out.write("\\r"); break;
+			case '\t': out.write("\\t"); break;
+			default: out.write(c);
 			}
 		}
 	}
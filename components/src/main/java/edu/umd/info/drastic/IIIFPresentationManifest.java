@@ -0,0 +1,133 @@
+package edu.umd.info.drastic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds a IIIF Presentation 3 manifest for a paged document, one canvas per page painted with the page's access
+ * image and carrying its thumbnail. The output only depends on the pages given, so an unchanged document always
+ * produces byte-identical JSON.
+ *
+ * @author jansen
+ *
+ */
+public class IIIFPresentationManifest {
+
+	static final String CONTEXT = "http://iiif.io/api/presentation/3/context.json";
+
+	static final String MEDIA_TYPE = "application/ld+json;profile=\"" + CONTEXT + "\"";
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String id;
+	private final String label;
+	private final List<Canvas> canvases = new ArrayList<Canvas>();
+
+	/**
+	 * @param id the manifest IRI
+	 * @param label the document label
+	 */
+	public IIIFPresentationManifest(String id, String label) {
+		this.id = id;
+		this.label = label;
+	}
+
+	/**
+	 * Adds the next page.
+	 * @param pageNo the page number, used as canvas label
+	 * @param access the access image IRI
+	 * @param accessFormat the access image media type
+	 * @param thumbnail the thumbnail IRI, or null
+	 * @param thumbnailFormat the thumbnail media type, or null
+	 * @param width the access image width, or 0 if unknown
+	 * @param height the access image height, or 0 if unknown
+	 * @return this manifest
+	 */
+	public IIIFPresentationManifest page(int pageNo, String access, String accessFormat, String thumbnail,
+			String thumbnailFormat, int width, int height) {
+		canvases.add(new Canvas(pageNo, access, accessFormat, thumbnail, thumbnailFormat, width, height));
+		return this;
+	}
+
+	public ObjectNode toJson() {
+		ObjectNode manifest = mapper.createObjectNode();
+		manifest.put("@context", CONTEXT);
+		manifest.put("id", id);
+		manifest.put("type", "Manifest");
+		manifest.set("label", languageMap(label));
+		manifest.put("behavior", "paged");
+		ArrayNode items = manifest.putArray("items");
+		for (Canvas c : canvases) {
+			String canvasId = id + "/canvas/p" + c.pageNo;
+			ObjectNode canvas = items.addObject();
+			canvas.put("id", canvasId);
+			canvas.put("type", "Canvas");
+			canvas.set("label", languageMap(String.valueOf(c.pageNo)));
+			if (c.width > 0 && c.height > 0) {
+				canvas.put("width", c.width);
+				canvas.put("height", c.height);
+			}
+			if (c.thumbnail != null) {
+				canvas.putArray("thumbnail").add(image(c.thumbnail, c.thumbnailFormat, 0, 0));
+			}
+			ObjectNode page = canvas.putArray("items").addObject();
+			page.put("id", canvasId + "/page");
+			page.put("type", "AnnotationPage");
+			ObjectNode anno = page.putArray("items").addObject();
+			anno.put("id", canvasId + "/page/painting");
+			anno.put("type", "Annotation");
+			anno.put("motivation", "painting");
+			anno.set("body", image(c.access, c.accessFormat, c.width, c.height));
+			anno.put("target", canvasId);
+		}
+		return manifest;
+	}
+
+	@Override
+	public String toString() {
+		return toJson().toString();
+	}
+
+	private static ObjectNode languageMap(String value) {
+		ObjectNode map = mapper.createObjectNode();
+		map.putArray("none").add(value);
+		return map;
+	}
+
+	private static ObjectNode image(String iri, String format, int width, int height) {
+		ObjectNode img = mapper.createObjectNode();
+		img.put("id", iri);
+		img.put("type", "Image");
+		img.put("format", format);
+		if (width > 0 && height > 0) {
+			img.put("width", width);
+			img.put("height", height);
+		}
+		return img;
+	}
+
+	private static class Canvas {
+		final int pageNo;
+		final String access;
+		final String accessFormat;
+		final String thumbnail;
+		final String thumbnailFormat;
+		final int width;
+		final int height;
+
+		Canvas(int pageNo, String access, String accessFormat, String thumbnail, String thumbnailFormat, int width,
+				int height) {
+			this.pageNo = pageNo;
+			this.access = access;
+			this.accessFormat = accessFormat;
+			this.thumbnail = thumbnail;
+			this.thumbnailFormat = thumbnailFormat;
+			this.width = width;
+			this.height = height;
+		}
+	}
+}
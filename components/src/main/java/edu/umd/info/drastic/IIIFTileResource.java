@@ -0,0 +1,75 @@
+package edu.umd.info.drastic;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Serves IIIF level-0 tiles and info.json from the local tile directory. A page image that is replaced gets its
+ * pyramid rewritten at the same paths, so tiles are only cached for trellis.iiif-tiles.max-age seconds and then
+ * revalidated against their ETag; info.json is always revalidated.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@javax.ws.rs.Path(IIIFTileStore.SERVICE_PATH + "{path: .+}")
+public class IIIFTileResource {
+
+	@Inject
+	IIIFTileStore store;
+
+	@Inject
+	@ConfigProperty(name = "trellis.iiif-tiles.max-age", defaultValue = "600")
+	int maxAge;
+
+	@GET
+	public Response get(@PathParam("path") String path, @Context Request request) throws IOException {
+		return serve(path, request, true);
+	}
+
+	@HEAD
+	public Response head(@PathParam("path") String path, @Context Request request) throws IOException {
+		return serve(path, request, false);
+	}
+
+	private Response serve(String path, Request request, boolean body) throws IOException {
+		Path root = store.getRoot();
+		Path file = root.resolve(path).normalize();
+		if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		EntityTag etag = new EntityTag(Long.toHexString(attrs.lastModifiedTime().toMillis()) + "-"
+				+ Long.toHexString(attrs.size()));
+		boolean info = file.getFileName().toString().equals("info.json");
+		CacheControl cc = new CacheControl();
+		if (info) {
+			cc.setNoCache(true);
+		} else {
+			cc.setMaxAge(maxAge);
+			cc.setMustRevalidate(true);
+		}
+		Response.ResponseBuilder rb = request.evaluatePreconditions(etag);
+		if (rb == null) {
+			rb = Response.ok(body ? file.toFile() : null)
+					.type(info ? "application/ld+json;profile=\"" + TilePyramidBuilder.CONTEXT + "\"" : "image/jpeg")
+					.header("Content-Length", attrs.size());
+		}
+		return rb.tag(etag).cacheControl(cc).header("Access-Control-Allow-Origin", "*").build();
+	}
+}
@@ -0,0 +1,157 @@
+package edu.umd.info.drastic;
+
+import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+
+import edu.umd.info.drastic.TilePyramidBuilder.TileSink;
+
+/**
+ * Where IIIF level-0 tile pyramids are kept. In "local" mode tiles are files under a directory, served by
+ * {@link IIIFTileResource} at /iiif/. In "trellis" mode they are binaries in a container next to the page image,
+ * with the intermediate containers created as needed.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class IIIFTileStore {
+	private static final Logger LOGGER = getLogger(IIIFTileStore.class);
+
+	static final String SERVICE_PATH = "iiif/";
+
+	@Inject
+	@ConfigProperty(name = "trellis.iiif-tiles.enabled", defaultValue = "false")
+	boolean enabled;
+
+	@Inject
+	@ConfigProperty(name = "trellis.iiif-tiles.store", defaultValue = "local")
+	String store;
+
+	@Inject
+	@ConfigProperty(name = "trellis.iiif-tiles.directory", defaultValue = "data/iiif-tiles")
+	String directory;
+
+	@Inject
+	@ConfigProperty(name = "trellis.iiif-tiles.tile-size", defaultValue = "512")
+	int tileSize;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	Path getRoot() {
+		return Paths.get(directory).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Gets the image service id for a page image.
+	 * @param imageLoc the page image IRI
+	 * @return the IIIF image service id
+	 */
+	public String serviceId(String imageLoc) throws MalformedURLException {
+		URL image = new URL(imageLoc);
+		if ("trellis".equals(store)) {
+			return NPSFilenameUtil.getImageServiceURL(imageLoc);
+		}
+		return new URL(image, "/" + SERVICE_PATH + key(image)).toExternalForm();
+	}
+
+	/**
+	 * Opens a sink for the pyramid of a page image.
+	 * @param imageLoc the page image IRI
+	 */
+	public TileSink open(String imageLoc) throws IOException {
+		if ("trellis".equals(store)) {
+			return new TrellisSink(serviceId(imageLoc));
+		}
+		Path base = getRoot().resolve(key(new URL(imageLoc))).normalize();
+		if (!base.startsWith(getRoot())) {
+			throw new IOException("Tile path outside of tile directory: " + imageLoc);
+		}
+		return (path, data, mediaType) -> {
+			Path file = base.resolve(path);
+			Files.createDirectories(file.getParent());
+			Path tmp = Files.createTempFile(file.getParent(), ".tile", null);
+			Files.write(tmp, data);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		};
+	}
+
+	private static String key(URL image) {
+		String path = image.getPath().substring(1);
+		int dot = path.lastIndexOf('.');
+		return dot > path.lastIndexOf('/') ? path.substring(0, dot) : path;
+	}
+
+	/** Puts each tile as a binary, creating the containers on its path first. */
+	private static class TrellisSink implements TileSink {
+		private final HttpClient http = HttpClient.newHttpClient();
+		private final String base;
+		private final Set<String> containers = ConcurrentHashMap.newKeySet();
+
+		TrellisSink(String base) {
+			this.base = base;
+		}
+
+		@Override
+		public void put(String path, byte[] data, String mediaType) throws IOException {
+			try {
+				String parent = base;
+				ensureContainer(parent);
+				String[] segs = path.split("/");
+				for (int i = 0; i < segs.length - 1; i++) {
+					parent = parent + "/" + segs[i];
+					ensureContainer(parent);
+				}
+				HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(base + "/" + path))
+						.PUT(BodyPublishers.ofByteArray(data))
+						.header("Link", "<" + NPSVocabulary.LDP_NonRDFSource.getIRIString() + ">; rel=\"type\"")
+						.header("Content-Type", mediaType).build(), BodyHandlers.discarding());
+				if (res.statusCode() >= 300) {
+					throw new IOException("Failed to put tile " + path + ": " + res.statusCode());
+				}
+			} catch (InterruptedException | URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void ensureContainer(String loc) throws IOException, InterruptedException, URISyntaxException {
+			if (!containers.add(loc)) return;
+			HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(loc))
+					.method("HEAD", BodyPublishers.noBody()).build(), BodyHandlers.discarding());
+			if (res.statusCode() == 200) return;
+			res = http.send(HttpRequest.newBuilder(localhost(loc)).PUT(BodyPublishers.noBody())
+					.header("Link", "<http://www.w3.org/ns/ldp#BasicContainer>; rel=\"type\"")
+					.header("Content-Type", "text/turtle").build(), BodyHandlers.discarding());
+			if (res.statusCode() >= 300) {
+				LOGGER.warn("Could not create tile container {}: {}", loc, res.statusCode());
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.BlankNode;
+import org.apache.commons.rdf.api.BlankNodeOrIRI;
+import org.apache.commons.rdf.api.Dataset;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.Quad;
+import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.vocabulary.Trellis;
+
+/**
+ * Digests binaries while they are written to the binary store and hands the digests over to the write of the
+ * binary's description, so PREMIS fixity is stored together with the description and the upload is never read back.
+ * The digests wait here, keyed by binary location, between the two writes of one request.
+ *
+ * @see InlineFixityBinaryService
+ * @see InlineFixityResourceService
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class InlineFixity {
+	private static final Logger LOGGER = getLogger(InlineFixity.class);
+
+	static final String PREMIS_FIXITY = "http://www.loc.gov/standards/premis/rdf/v3/fixity";
+	static final String HASH_FUNCTIONS = "http://id.loc.gov/vocabulary/cryptographicHashFunctions/";
+	static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+	static final String RDF_VALUE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#value";
+	static final String DC_CREATOR = "http://purl.org/dc/elements/1.1/creator";
+	static final String DC_SOURCE = "http://purl.org/dc/elements/1.1/source";
+
+	/** Digests not picked up by a description write within this time are dropped. */
+	private static final long PENDING_MS = 10 * 60 * 1000;
+
+	@Inject
+	@ConfigProperty(name = "trellis.fixity.inline", defaultValue = "true")
+	boolean enabled;
+
+	@Inject
+	FixityEngine engine;
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Wraps an upload stream so that reading it computes the configured digests.
+	 */
+	DigestingStream digesting(InputStream in) {
+		List<MessageDigest> digests = new ArrayList<MessageDigest>();
+		for (String a : engine.getAlgorithms()) {
+			digests.add(DigestUtils.getDigest(a.trim()));
+		}
+		return new DigestingStream(in, digests);
+	}
+
+	/**
+	 * Keeps the digests of a stored binary until its description is written.
+	 */
+	void stored(IRI binaryLocation, Map<String, String> digests) {
+		long now = System.currentTimeMillis();
+		pending.values().removeIf(p -> now - p.created > PENDING_MS);
+		pending.put(binaryLocation.getIRIString(), new Pending(digests, now));
+	}
+
+	/**
+	 * Adds the fixity of a just stored binary to its description, replacing any earlier fixity.
+	 * @param resource the internal resource IRI
+	 * @param binaryLocation the binary location
+	 * @param dataset the description about to be written
+	 */
+	void describe(IRI resource, IRI binaryLocation, Dataset dataset) {
+		Pending p = pending.remove(binaryLocation.getIRIString());
+		if (p == null) return;
+		IRI fixity = rdf.createIRI(PREMIS_FIXITY);
+		Optional<BlankNodeOrIRI> graph = Optional.of(Trellis.PreferUserManaged);
+		List<Quad> old = new ArrayList<Quad>();
+		dataset.stream(graph, resource, fixity, null).forEach(q -> {
+			old.add(q);
+			if (q.getObject() instanceof BlankNodeOrIRI) {
+				dataset.stream(graph, (BlankNodeOrIRI) q.getObject(), null, null)
+						.forEach(old::add);
+			}
+		});
+		old.forEach(dataset::remove);
+		for (Map.Entry<String, String> digest : p.digests.entrySet()) {
+			String name = DigestProcessor.hashFunctionName(digest.getKey());
+			BlankNode fix = rdf.createBlankNode();
+			dataset.add(Trellis.PreferUserManaged, resource, fixity, fix);
+			dataset.add(Trellis.PreferUserManaged, fix, rdf.createIRI(RDF_TYPE), rdf.createIRI(HASH_FUNCTIONS + name));
+			dataset.add(Trellis.PreferUserManaged, fix, rdf.createIRI(RDF_VALUE), rdf.createLiteral(digest.getValue()));
+			dataset.add(Trellis.PreferUserManaged, fix, rdf.createIRI(DC_CREATOR),
+					rdf.createLiteral("java.security.MessageDigest"));
+		}
+		LOGGER.debug("Stored inline fixity of {}: {}", resource, p.digests);
+	}
+
+	/**
+	 * An upload stream that updates every digest with the bytes read through it.
+	 */
+	static class DigestingStream extends FilterInputStream {
+		private final List<MessageDigest> digests;
+
+		DigestingStream(InputStream in, List<MessageDigest> digests) {
+			super(in);
+			this.digests = digests;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				for (MessageDigest md : digests) {
+					md.update((byte) b);
+				}
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				for (MessageDigest md : digests) {
+					md.update(b, off, n);
+				}
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes must still be digested
+			byte[] buf = new byte[8192];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+				if (r < 0) break;
+				skipped += r;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * @return hex digests by lower case algorithm name, once the stream has been read to the end
+		 */
+		Map<String, String> digests() {
+			Map<String, String> result = new LinkedHashMap<String, String>();
+			for (MessageDigest md : digests) {
+				result.put(md.getAlgorithm().toLowerCase(Locale.ROOT), Hex.encodeHexString(md.digest()));
+			}
+			return result;
+		}
+	}
+
+	private static class Pending {
+		final Map<String, String> digests;
+		final long created;
+
+		Pending(Map<String, String> digests, long created) {
+			this.digests = digests;
+			this.created = created;
+		}
+	}
+}
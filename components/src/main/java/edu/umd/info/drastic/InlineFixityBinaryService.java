@@ -0,0 +1,64 @@
+package edu.umd.info.drastic;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Priority;
+import javax.decorator.Decorator;
+import javax.decorator.Delegate;
+import javax.inject.Inject;
+import javax.interceptor.Interceptor;
+
+import org.trellisldp.api.BinaryMetadata;
+import org.trellisldp.api.BinaryService;
+
+/**
+ * Computes the configured digests of an upload while the binary service writes it, and removes an upload that
+ * failed the verification of its Digest header.
+ *
+ * @author jansen
+ *
+ */
+@Decorator
+@Priority(Interceptor.Priority.APPLICATION)
+public abstract class InlineFixityBinaryService implements BinaryService {
+
+	@Inject
+	@Delegate
+	BinaryService delegate;
+
+	@Inject
+	InlineFixity fixity;
+
+	@Override
+	public CompletionStage<Void> setContent(BinaryMetadata metadata, InputStream stream) {
+		if (!fixity.isEnabled()) {
+			return purgeOnMismatch(metadata, delegate.setContent(metadata, stream));
+		}
+		InlineFixity.DigestingStream digesting = fixity.digesting(stream);
+		return purgeOnMismatch(metadata, delegate.setContent(metadata, digesting))
+				.thenRun(() -> fixity.stored(metadata.getIdentifier(), digesting.digests()));
+	}
+
+	/**
+	 * Removes a binary that was written in full before its supplied digest turned out wrong, and passes the 409 on.
+	 */
+	private CompletionStage<Void> purgeOnMismatch(BinaryMetadata metadata, CompletionStage<Void> write) {
+		return write.handle((v, err) -> err).thenCompose(err -> {
+			if (err == null) return CompletableFuture.completedFuture(null);
+			Throwable cause = err;
+			while (cause.getCause() != null && !(cause instanceof DigestCheckRequestFilter.DigestMismatchException)) {
+				cause = cause.getCause();
+			}
+			if (!(cause instanceof DigestCheckRequestFilter.DigestMismatchException)) {
+				return CompletableFuture.failedFuture(err);
+			}
+			final Throwable mismatch = cause;
+			return delegate.purgeContent(metadata.getIdentifier()).handle((p, purgeErr) -> {
+				throw new CompletionException(mismatch);
+			});
+		});
+	}
+}
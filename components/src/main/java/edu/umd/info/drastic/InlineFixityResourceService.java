@@ -0,0 +1,47 @@
+package edu.umd.info.drastic;
+
+import java.util.concurrent.CompletionStage;
+
+import javax.annotation.Priority;
+import javax.decorator.Decorator;
+import javax.decorator.Delegate;
+import javax.inject.Inject;
+import javax.interceptor.Interceptor;
+
+import org.apache.commons.rdf.api.Dataset;
+import org.trellisldp.api.Metadata;
+import org.trellisldp.api.ResourceService;
+
+/**
+ * Adds the digests computed during an upload to the description written with the binary.
+ *
+ * @author jansen
+ *
+ */
+@Decorator
+@Priority(Interceptor.Priority.APPLICATION)
+public abstract class InlineFixityResourceService implements ResourceService {
+
+	@Inject
+	@Delegate
+	ResourceService delegate;
+
+	@Inject
+	InlineFixity fixity;
+
+	@Override
+	public CompletionStage<Void> create(Metadata metadata, Dataset dataset) {
+		describe(metadata, dataset);
+		return delegate.create(metadata, dataset);
+	}
+
+	@Override
+	public CompletionStage<Void> replace(Metadata metadata, Dataset dataset) {
+		describe(metadata, dataset);
+		return delegate.replace(metadata, dataset);
+	}
+
+	private void describe(Metadata metadata, Dataset dataset) {
+		metadata.getBinary().ifPresent(b -> fixity.describe(metadata.getIdentifier(), b.getIdentifier(), dataset));
+	}
+}
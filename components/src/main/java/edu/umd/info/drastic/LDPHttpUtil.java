@@ -78,28 +78,40 @@ public class LDPHttpUtil {
 				.header("Accept", "application/n-triples")
 				.build();
 			String body = http.send(req, BodyHandlers.ofString()).body();
-			Model model = ModelFactory.createDefaultModel().read(IOUtils.toInputStream(body, "UTF-8"), iri,
-					"N-TRIPLES");
-			return JenaCommonsRDF.fromJena(model.getGraph());
+			return toGraph(body, iri);
 		} catch (IOException | InterruptedException | URISyntaxException e) {
 			LOGGER.error("Cannot get triples for {}", iri, e);
 			throw new CompletionException(e);
 		}
 	}
 	
+	static Graph toGraph(String ntriples, String iri) throws IOException {
+		Model model = ModelFactory.createDefaultModel().read(IOUtils.toInputStream(ntriples, "UTF-8"), iri,
+				"N-TRIPLES");
+		return JenaCommonsRDF.fromJena(model.getGraph());
+	}
+	
 	static void patchGraph(Graph graph, String location) {
-	    String patch = "INSERT { "+ graph.toString() +" } WHERE {}";
-		HttpResponse<Void> response;
 		try {
-			HttpClient http = HttpClient.newHttpClient();
-			URI localDescLoc = localhost(location);
-			response = http.send(HttpRequest.newBuilder(localDescLoc).method("PATCH", HttpRequest.BodyPublishers.ofString(patch))
-				.header("Content-type", "application/sparql-update").build(), HttpResponse.BodyHandlers.discarding());
-			if(response.statusCode() != 204) {
-				LOGGER.error("Got a failure when patching binary description: {}", response.statusCode());
-			}
+			patch(graph, location);
 		} catch (IOException | InterruptedException | URISyntaxException e) {
-			LOGGER.error("Exception while patching graph {}\n{}", location, patch, e);
+			LOGGER.error("Exception while patching graph {}", location, e);
+		}
+	}
+
+	/**
+	 * Adds the triples of a graph to a resource.
+	 * @throws IOException if the request fails or Trellis does not answer 204
+	 */
+	static void patch(Graph graph, String location) throws IOException, InterruptedException, URISyntaxException {
+		String patch = "INSERT { "+ graph.toString() +" } WHERE {}";
+		HttpClient http = HttpClient.newHttpClient();
+		URI localDescLoc = localhost(location);
+		HttpResponse<Void> response = http.send(HttpRequest.newBuilder(localDescLoc)
+				.method("PATCH", HttpRequest.BodyPublishers.ofString(patch))
+				.header("Content-type", "application/sparql-update").build(), HttpResponse.BodyHandlers.discarding());
+		if (response.statusCode() != 204) {
+			throw new IOException("Got " + response.statusCode() + " when patching " + location);
 		}
 	}
 }
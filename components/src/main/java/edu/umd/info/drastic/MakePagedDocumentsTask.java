@@ -1,38 +1,60 @@
 package edu.umd.info.drastic;
 
 import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static edu.umd.info.drastic.LDPHttpUtil.toGraph;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
 import javax.inject.Inject;
 
 import org.apache.commons.rdf.api.BlankNode;
+import org.apache.commons.rdf.api.BlankNodeOrIRI;
 import org.apache.commons.rdf.api.Dataset;
 import org.apache.commons.rdf.api.Graph;
 import org.apache.commons.rdf.api.IRI;
 import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.Triple;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.reactive.messaging.Incoming;
 import org.slf4j.Logger;
 import org.trellisldp.api.RDFFactory;
+import org.trellisldp.vocabulary.LDP;
 import org.trellisldp.vocabulary.Trellis;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -45,6 +67,7 @@ import edu.umd.info.drastic.NPSVocabulary.NPS;
 import edu.umd.info.drastic.NPSVocabulary.ORE;
 import edu.umd.info.drastic.NPSVocabulary.PCDM;
 
+@ApplicationScoped
 public class MakePagedDocumentsTask {
 	private static final Logger LOGGER = getLogger(MakePagedDocumentsTask.class);
 
@@ -52,55 +75,171 @@ public class MakePagedDocumentsTask {
 	@ConfigProperty(name = "trellis.triplestore-query-url", defaultValue = "http://localhost:3030/ds/query")
 	URI triplestoreQueryUrl;
 
+	@Inject
+	@ConfigProperty(name = "trellis.paged-documents.concurrency", defaultValue = "4")
+	int concurrency;
+
+	@Inject
+	DerivativePolicy policy;
+
+	@Inject
+	DerivativeProfiles profiles;
+
+	@Inject
+	SubtreeEnumerator subtree;
+
+	@Inject
+	FixityEngine fixity;
+
 	private final RDF rdf = RDFFactory.getInstance();
 
 	private ExecutorService executorService = Executors.newFixedThreadPool(1);
 
+	private ExecutorService buildService;
+
+	@PostConstruct
+	void initialize() {
+		buildService = Executors.newFixedThreadPool(concurrency);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		buildService.shutdown();
+		executorService.shutdown();
+	}
+
+	/**
+	 * Builds or refreshes the paged documents of a submission. File lists are indexed into hash sets, documents
+	 * are built in parallel on a bounded pool and only documents whose pages, access images or thumbnails differ
+	 * from their stored PCDM graph are PUT again.
+	 * @param request the submission container IRI, or a JSON object with "submission" and the "documents" to build
+	 */
 	@Incoming("makePagedDocuments")
-	public void makePagedDocuments(final String submissionUri) {
-		LOGGER.debug("make paged docs task: {}", submissionUri);
-		CompletableFuture.supplyAsync(() -> getPageFiles(submissionUri), executorService).thenAccept(lists -> {
-			String lastDocId = null;
-			int lastPageNo = 1;
-			List<String> pageFiles = lists.get("pageFiles");
-			LOGGER.debug("Got page files: {}", pageFiles);
-			List<String> docPages = new ArrayList<String>();
-			for (String f : pageFiles) {
-				String docid = NPSFilenameUtil.getPageDocumentID(f);
-				if (lastDocId == null)
-					lastDocId = docid;
-				if (!lastDocId.equals(docid)) {
-					Map<String, List<String>> doclists = new HashMap<String, List<String>>();
-					doclists.put("pageAccessFiles", lists.get("pageAccessFiles"));
-					doclists.put("pageThumbnailFiles", lists.get("pageThumbnailFiles"));
-					doclists.put("pageFiles", docPages);
-					makeDoc(submissionUri, lastDocId, doclists);
-					docPages.clear();
-					lastDocId = docid;
-				}
-				int pageNo = NPSFilenameUtil.getPageNumber(f);
-				for (int i = lastPageNo; i + 1 < pageNo; i++) {
-					docPages.add(null); // add a missing page
-				}
-				lastPageNo = pageNo;
-				docPages.add(f);
+	public void makePagedDocuments(final String request) {
+		LOGGER.debug("make paged docs task: {}", request);
+		final String submissionUri;
+		final Set<String> only;
+		if (request.startsWith("{")) {
+			try {
+				JsonNode req = new ObjectMapper().readTree(request);
+				submissionUri = req.get("submission").asText();
+				only = new HashSet<String>();
+				req.path("documents").forEach(n -> only.add(n.asText()));
+			} catch (JsonProcessingException | NullPointerException e) {
+				LOGGER.error("cannot parse paged document request: {}", request, e);
+				return;
 			}
-			if (docPages.size() > 0) { // process last document
-				Map<String, List<String>> doclists = new HashMap<String, List<String>>();
-				doclists.put("pageAccessFiles", lists.get("pageAccessFiles"));
-				doclists.put("pageThumbnailFiles", lists.get("pageThumbnailFiles"));
-				doclists.put("pageFiles", docPages);
-				makeDoc(submissionUri, lastDocId, doclists);
+		} else {
+			submissionUri = request;
+			only = null;
+		}
+		CompletableFuture.supplyAsync(() -> getPageFiles(submissionUri), executorService).thenAccept(lists -> {
+			if (lists == null) return;
+			Map<String, String> pageAccessFiles = byPageStem(lists.get("pageAccessFiles"));
+			Map<String, String> pageThumbnailFiles = byPageStem(lists.get("pageThumbnailFiles"));
+			Map<String, List<String>> docs = groupPagesByDocument(lists.get("pageFiles"));
+			if (only != null) {
+				docs.keySet().retainAll(only);
 			}
+			LOGGER.debug("Got {} page files in {} documents", lists.get("pageFiles").size(), docs.size());
+			List<CompletableFuture<Boolean>> builds = docs.entrySet().stream()
+				.map(e -> CompletableFuture.supplyAsync(() -> 
+					makeDoc(submissionUri, e.getKey(), e.getValue(), pageAccessFiles, pageThumbnailFiles), buildService))
+				.collect(Collectors.toList());
+			CompletableFuture.allOf(builds.toArray(new CompletableFuture[0])).thenRun(() -> {
+				long changed = builds.stream().filter(CompletableFuture::join).count();
+				LOGGER.info("Paged documents for {}: {} rebuilt, {} unchanged", submissionUri, changed,
+						builds.size() - changed);
+			});
 		});
 	}
 
-	private void makeDoc(String submissionUri, String docId, Map<String, List<String>> mixedPageFiles) {
+	/**
+	 * Indexes derivatives by the page they were made from, whatever their format.
+	 */
+	static Map<String, String> byPageStem(List<String> derivatives) {
+		Map<String, String> index = new HashMap<String, String>();
+		for (String d : derivatives) {
+			String stem = NPSFilenameUtil.getPageStem(d);
+			if (stem != null) {
+				index.put(stem, d);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Groups sorted page files by document, with null entries for missing page numbers.
+	 * @param pageFiles the sorted page file IRIs
+	 * @return the pages of each document, by document id
+	 */
+	static Map<String, List<String>> groupPagesByDocument(List<String> pageFiles) {
+		Map<String, List<String>> docs = new LinkedHashMap<String, List<String>>();
+		for (String f : pageFiles) {
+			List<String> docPages = docs.computeIfAbsent(NPSFilenameUtil.getPageDocumentID(f),
+					k -> new ArrayList<String>());
+			int pageNo = NPSFilenameUtil.getPageNumber(f);
+			while (docPages.size() + 1 < pageNo) {
+				docPages.add(null); // add a missing page
+			}
+			docPages.add(f);
+		}
+		return docs;
+	}
+
+	/**
+	 * Puts the paged document if its page list differs from the stored one.
+	 * @return true if the document was written
+	 */
+	private boolean makeDoc(String submissionUri, String docId, List<String> pageFiles,
+			Map<String, String> pageAccessFiles, Map<String, String> pageThumbnailFiles) {
 		try {
-		List<String> pageFiles = mixedPageFiles.get("pageFiles");
-		List<String> pageAccessFiles = mixedPageFiles.get("pageAccessFiles");
-		List<String> pageThumbnailFiles = mixedPageFiles.get("pageThumbnailFiles");
 		IRI doc = rdf.createIRI(submissionUri + docId);
+		List<PageEntry> pages = new ArrayList<PageEntry>(pageFiles.size());
+		for (String f : pageFiles) {
+			if (f == null) {
+				pages.add(new PageEntry(null, null, null));
+				continue;
+			}
+			String accessFileUrl = null;
+			String thumbFileUrl = null;
+			try {
+				String stem = NPSFilenameUtil.getPageStem(f);
+				accessFileUrl = pageAccessFiles.get(stem);
+				thumbFileUrl = pageThumbnailFiles.get(stem);
+				boolean lazy = !policy.isEager(f);
+				if (accessFileUrl == null && lazy) {
+					accessFileUrl = DerivativeResource.url(f, DerivativeCache.Kind.access);
+				}
+				if (thumbFileUrl == null && lazy) {
+					thumbFileUrl = DerivativeResource.url(f, DerivativeCache.Kind.thumbnail);
+				}
+			} catch (IllegalArgumentException e) {
+				LOGGER.error("Unexpected argument exception", e);
+			}
+			pages.add(new PageEntry(f, accessFileUrl, thumbFileUrl));
+		}
+
+		HttpClient http = HttpClient.newHttpClient();
+		HttpResponse<String> existing = http.send(HttpRequest.newBuilder(localhost(doc.getIRIString())).GET()
+				.header("Prefer", "return=representation;")
+				.header("Accept", "application/n-triples")
+				.build(), BodyHandlers.ofString());
+		String etag = null;
+		if (existing.statusCode() == 200) {
+			Graph prior = toGraph(existing.body(), doc.getIRIString());
+			etag = existing.headers().firstValue("ETag").orElse(null);
+			if (pages.equals(readPages(doc, prior))) {
+				LOGGER.debug("paged document unchanged: {}", doc);
+				// the document only links a manifest that was stored, so no request is needed to check for one
+				if (!prior.contains(doc, NPS.hasPresentationManifest.iri, null) && putManifest(http, doc, docId, pages)) {
+					linkManifest(http, doc, etag);
+				}
+				return false;
+			}
+		}
+		boolean manifestStored = putManifest(http, doc, docId, pages);
+
 		Dataset d = rdf.createDataset();
 		Graph g = d.getGraph(Trellis.PreferUserManaged).get();
 		g.add(doc, org.trellisldp.vocabulary.RDF.type, PCDM.Object.iri);
@@ -115,35 +254,31 @@ public class MakePagedDocumentsTask {
 			folder = new URL(new URL(doc.getIRIString()), "/description/" + folderPath);
 		} catch (MalformedURLException e1) {
 			LOGGER.error("Failed to build folder description url", e1);
-			return;
+			return false;
 		}
 		g.add(rdf.createIRI(folder.toExternalForm()), PCDM.hasMember.iri, doc);
+		if (manifestStored) {
+			g.add(doc, NPS.hasPresentationManifest.iri,
+					rdf.createIRI(NPSFilenameUtil.getPresentationManifestURL(doc.getIRIString())));
+		}
 		List<BlankNode> proxyOrder = new ArrayList<BlankNode>();
-		for (int i = 0; i < pageFiles.size(); i++) {
+		for (int i = 0; i < pages.size(); i++) {
+			PageEntry entry = pages.get(i);
 			IRI pageFile = null;
-			if (pageFiles.get(i) == null) {
+			if (entry.file == null) {
 				pageFile = NPSVocabulary.NPS.MissingPageFile.iri;
 			} else {
-				pageFile = rdf.createIRI(pageFiles.get(i));
+				pageFile = rdf.createIRI(entry.file);
 			}
 			BlankNode page = rdf.createBlankNode();
 			g.add(doc, PCDM.hasMember.iri, page);
 			g.add(page, org.trellisldp.vocabulary.RDF.type, PCDM.Object.iri);
 			g.add(page, PCDM.hasFile.iri, pageFile);
-			try {
-				String accessFileUrl = NPSFilenameUtil.getAccessImageURL(pageFile.getIRIString());
-				if (pageAccessFiles.contains(accessFileUrl)) {
-					LOGGER.debug("found access file: {}", accessFileUrl);
-					g.add(page, NPS.hasAccess.iri, rdf.createIRI(accessFileUrl));
-				}
-				String thumbFileUrl = NPSFilenameUtil.getThumbnailImageURL(pageFile.getIRIString());
-				LOGGER.debug(thumbFileUrl);
-				if (pageThumbnailFiles.contains(thumbFileUrl)) {
-					LOGGER.debug("found thumbnail file: {}", thumbFileUrl);
-					g.add(page, NPS.hasThumbnail.iri, rdf.createIRI(thumbFileUrl));
-				}
-			} catch (IllegalArgumentException e) {
-				LOGGER.error("Unexpected argument exception", e);
+			if (entry.access != null) {
+				g.add(page, NPS.hasAccess.iri, rdf.createIRI(entry.access));
+			}
+			if (entry.thumbnail != null) {
+				g.add(page, NPS.hasThumbnail.iri, rdf.createIRI(entry.thumbnail));
 			}
 			BlankNode proxy = rdf.createBlankNode();
 			proxyOrder.add(proxy);
@@ -153,34 +288,223 @@ public class MakePagedDocumentsTask {
 			if (i == 0) {
 				g.add(doc, IANA.first.iri, proxy);
 			}
-			if (i == pageFiles.size() - 1) {
+			if (i == pages.size() - 1) {
 				g.add(doc, IANA.last.iri, proxy);
 			}
 		}
 		for (int i = 0; i < proxyOrder.size(); i++) {
-			try {
+			if (i > 0) {
 				g.add(proxyOrder.get(i), IANA.prev.iri, proxyOrder.get(i - 1));
-			} catch (IndexOutOfBoundsException ignored) {
 			}
-			try {
+			if (i + 1 < proxyOrder.size()) {
 				g.add(proxyOrder.get(i), IANA.next.iri, proxyOrder.get(i + 1));
-			} catch (IndexOutOfBoundsException ignored) {
 			}
 		}
 		String body = g.toString();
-		LOGGER.debug("creating doc: {}", body);
-		HttpClient http = HttpClient.newHttpClient();
-
-			http.send(HttpRequest.newBuilder(localhost(doc.getIRIString())).method("PUT", BodyPublishers.ofString(body))
-					.header("Link", "<http://www.w3.org/ns/ldp#RDFSource>; rel=\"type\"")
-					.header("Content-Type", "text/turtle").build(), BodyHandlers.discarding());
+		LOGGER.debug("creating doc: {}", doc);
+		HttpRequest.Builder put = HttpRequest.newBuilder(localhost(doc.getIRIString())).method("PUT", BodyPublishers.ofString(body))
+				.header("Link", "<http://www.w3.org/ns/ldp#RDFSource>; rel=\"type\"")
+				.header("Content-Type", "text/turtle");
+		if (etag != null) {
+			put.header("If-Match", etag);
+		}
+		HttpResponse<Void> res = http.send(put.build(), BodyHandlers.discarding());
+		if (res.statusCode() >= 300) {
+			LOGGER.error("Failed to put paged document {}: {}", doc, res.statusCode());
+			return false;
+		}
+		return true;
 		} catch (Exception e) {
 			LOGGER.error("Failed to put turtle for paged document", e);
-			return;
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the IIIF Presentation manifest of a paged document as a binary next to it, so that viewers can open the
+	 * document with one cacheable request. The manifest is written before the document that links it, and only
+	 * rewritten when the document changed or does not link it yet.
+	 * @return true if the manifest was stored
+	 */
+	private boolean putManifest(HttpClient http, IRI doc, String docId, List<PageEntry> pages)
+			throws IOException, InterruptedException, URISyntaxException {
+		String manifestUrl = NPSFilenameUtil.getPresentationManifestURL(doc.getIRIString());
+		IIIFPresentationManifest manifest = new IIIFPresentationManifest(manifestUrl, docId);
+		for (int i = 0; i < pages.size(); i++) {
+			PageEntry entry = pages.get(i);
+			if (entry.access == null) continue; // nothing to paint yet
+			// on-demand derivatives must not be generated just to be measured, read the page header instead
+			boolean onDemand = entry.access.equals(DerivativeResource.url(entry.file, DerivativeCache.Kind.access));
+			int[] size = onDemand ? headerSize(http, entry.file)
+					: entry.access.endsWith(".png") ? pngSize(http, entry.access) : headerSize(http, entry.access);
+			if (onDemand && size[0] > 0) {
+				size = profiles.get(DerivativeCache.Kind.access, entry.file).scaledSize(size[0], size[1]);
+			}
+			manifest.page(i + 1, entry.access, format(entry.file, entry.access, DerivativeCache.Kind.access),
+					entry.thumbnail, format(entry.file, entry.thumbnail, DerivativeCache.Kind.thumbnail),
+					size[0], size[1]);
+		}
+		HttpRequest.Builder put = HttpRequest.newBuilder(localhost(manifestUrl))
+				.method("PUT", BodyPublishers.ofString(manifest.toString()))
+				.header("Link", "<" + NPSVocabulary.LDP_NonRDFSource.getIRIString() + ">; rel=\"type\"")
+				.header("Content-Type", IIIFPresentationManifest.MEDIA_TYPE);
+		HttpResponse<Void> res = http.send(put.build(), BodyHandlers.discarding());
+		if (res.statusCode() >= 300) {
+			LOGGER.error("Failed to put presentation manifest {}: {}", manifestUrl, res.statusCode());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Links the manifest from an unchanged document, with the ETag the document was read with.
+	 */
+	private void linkManifest(HttpClient http, IRI doc, String etag)
+			throws IOException, InterruptedException, URISyntaxException {
+		String update = "INSERT DATA { " + doc.ntriplesString() + " " + NPS.hasPresentationManifest.iri.ntriplesString()
+				+ " <" + NPSFilenameUtil.getPresentationManifestURL(doc.getIRIString()) + "> }";
+		HttpRequest.Builder patch = HttpRequest.newBuilder(localhost(doc.getIRIString()))
+				.method("PATCH", BodyPublishers.ofString(update))
+				.header("Content-Type", "application/sparql-update");
+		if (etag != null) {
+			patch.header("If-Match", etag);
+		}
+		HttpResponse<Void> res = http.send(patch.build(), BodyHandlers.discarding());
+		if (res.statusCode() >= 300) {
+			LOGGER.warn("Failed to link presentation manifest from {}: {}", doc, res.statusCode());
+		}
+	}
+
+	private String format(String file, String derivative, DerivativeCache.Kind kind) {
+		if (derivative == null) return null;
+		return derivative.equals(DerivativeResource.url(file, kind)) ? profiles.get(kind, file).mediaType()
+				: DerivativeProfile.mediaTypeOf(derivative);
+	}
+
+	/**
+	 * Reads the width and height from the IHDR chunk of a PNG, fetching only its first bytes.
+	 * @return width and height, or zeros when unknown
+	 */
+	static int[] pngSize(HttpClient http, String pngUrl) {
+		try {
+			HttpResponse<InputStream> res = http.send(HttpRequest.newBuilder(localhost(pngUrl))
+					.header("Range", "bytes=0-23").build(), BodyHandlers.ofInputStream());
+			try (InputStream in = res.body()) {
+				if (res.statusCode() != 200 && res.statusCode() != 206) return new int[2];
+				byte[] b = in.readNBytes(24);
+				if (b.length < 24 || b[12] != 'I' || b[13] != 'H' || b[14] != 'D' || b[15] != 'R') return new int[2];
+				ByteBuffer buf = ByteBuffer.wrap(b);
+				return new int[] { buf.getInt(16), buf.getInt(20) };
+			}
+		} catch (IOException | InterruptedException | URISyntaxException e) {
+			LOGGER.warn("Cannot read image size of {}", pngUrl, e);
+			return new int[2];
+		}
+	}
+
+	/**
+	 * Reads the width and height from the header of a page image, reading no further than the header. Images kept by
+	 * trellis-file are read in place, others over HTTP.
+	 * @return width and height, or zeros when unknown
+	 */
+	int[] headerSize(HttpClient http, String imageUrl) {
+		Optional<Path> local = fixity.localFile(imageUrl);
+		if (local.isPresent()) {
+			try (ImageInputStream iis = new FileImageInputStream(local.get().toFile())) {
+				return headerSize(iis);
+			} catch (IOException e) {
+				LOGGER.warn("Cannot read image size of {}", local.get(), e);
+				return new int[2];
+			}
+		}
+		try {
+			HttpResponse<InputStream> res = http.send(HttpRequest.newBuilder(localhost(imageUrl)).build(),
+					BodyHandlers.ofInputStream());
+			try (InputStream in = res.body(); ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+				if (res.statusCode() != 200) return new int[2];
+				return headerSize(iis);
+			}
+		} catch (IOException | InterruptedException | URISyntaxException e) {
+			LOGGER.warn("Cannot read image size of {}", imageUrl, e);
+			return new int[2];
+		}
+	}
+
+	private static int[] headerSize(ImageInputStream iis) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+		if (!readers.hasNext()) return new int[2];
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(iis, true, true);
+			return new int[] { reader.getWidth(0), reader.getHeight(0) };
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Reads the page list of a stored paged document by following its proxy chain.
+	 */
+	private List<PageEntry> readPages(IRI doc, Graph g) {
+		List<PageEntry> pages = new ArrayList<PageEntry>();
+		BlankNodeOrIRI proxy = object(g, doc, IANA.first.iri);
+		long limit = g.size();
+		while (proxy != null && pages.size() <= limit) {
+			BlankNodeOrIRI page = object(g, proxy, ORE.proxyFor.iri);
+			String file = null;
+			if (page != null) {
+				BlankNodeOrIRI f = object(g, page, PCDM.hasFile.iri);
+				if (f instanceof IRI && !NPS.MissingPageFile.iri.equals(f)) {
+					file = ((IRI) f).getIRIString();
+				}
+			}
+			pages.add(new PageEntry(file, iriString(object(g, page, NPS.hasAccess.iri)),
+					iriString(object(g, page, NPS.hasThumbnail.iri))));
+			proxy = object(g, proxy, IANA.next.iri);
+		}
+		return pages;
+	}
+
+	private static BlankNodeOrIRI object(Graph g, BlankNodeOrIRI s, IRI p) {
+		if (s == null) return null;
+		return g.stream(s, p, null).map(Triple::getObject).filter(o -> o instanceof BlankNodeOrIRI)
+				.map(BlankNodeOrIRI.class::cast).findFirst().orElse(null);
+	}
+
+	private static String iriString(BlankNodeOrIRI node) {
+		return node instanceof IRI ? ((IRI) node).getIRIString() : null;
+	}
+
+	/** A page of a paged document: the page file and whichever derivatives exist. */
+	private static class PageEntry {
+		final String file;
+		final String access;
+		final String thumbnail;
+
+		PageEntry(String file, String access, String thumbnail) {
+			this.file = file;
+			this.access = access;
+			this.thumbnail = thumbnail;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof PageEntry)) return false;
+			PageEntry p = (PageEntry) o;
+			return Objects.equals(file, p.file) && Objects.equals(access, p.access)
+					&& Objects.equals(thumbnail, p.thumbnail);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(file, access, thumbnail);
 		}
 	}
 
 	private Map<String, List<String>> getPageFiles(String submissionUri) {
+		if (subtree.isEnabled()) {
+			return getPageFilesFromSubtree(submissionUri);
+		}
 		String q = "select ?o FROM <" + NPS.containsGraph.str + "> WHERE { <" + submissionUri
 				+ "> <http://www.w3.org/ns/ldp#contains>*/<http://www.w3.org/ns/ldp#contains> ?o. }";
 		HttpClient http = HttpClient.newHttpClient();
@@ -201,18 +525,34 @@ public class MakePagedDocumentsTask {
 			LOGGER.error("cannot parse activitystream", e);
 			return null;
 		}
-		List<String> pageFiles = StreamSupport
-				.stream(((ArrayNode) as.get("results").get("bindings")).spliterator(), false).map(n -> {
-					return n.get("o").get("value").asText();
-				}).filter(NPSFilenameUtil.PAGE_FILE_PREDICATE).sorted().collect(Collectors.toList());
-		List<String> pageAccessFiles = StreamSupport
-				.stream(((ArrayNode) as.get("results").get("bindings")).spliterator(), false).map(n -> {
-					return n.get("o").get("value").asText();
-				}).filter(NPSFilenameUtil.PAGE_ACCESS_FILE_PREDICATE).sorted().collect(Collectors.toList());
-		List<String> pageThumbnailFiles = StreamSupport
-				.stream(((ArrayNode) as.get("results").get("bindings")).spliterator(), false).map(n -> {
-					return n.get("o").get("value").asText();
-				}).filter(NPSFilenameUtil.PAGE_THUMBNAIL_FILE_PREDICATE).sorted().collect(Collectors.toList());
+		return pageLists(StreamSupport
+				.stream(((ArrayNode) as.get("results").get("bindings")).spliterator(), false)
+				.map(n -> n.get("o").get("value").asText()).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Lists the binaries of a submission with one query on the resource table instead of the triplestore.
+	 */
+	private Map<String, List<String>> getPageFilesFromSubtree(String submissionUri) {
+		String base = SubtreeEnumerator.base(submissionUri);
+		List<String> binaries = new ArrayList<String>();
+		try {
+			subtree.enumerate(new SubtreeEnumerator.Query(SubtreeEnumerator.internal(submissionUri))
+					.models(List.of(LDP.NonRDFSource)), e -> binaries.add(e.external(base)));
+		} catch (SQLException e) {
+			LOGGER.error("Cannot enumerate submission contents", e);
+			return null;
+		}
+		return pageLists(binaries);
+	}
+
+	private static Map<String, List<String>> pageLists(List<String> contained) {
+		List<String> pageFiles = contained.stream()
+				.filter(NPSFilenameUtil.PAGE_FILE_PREDICATE).sorted().collect(Collectors.toList());
+		List<String> pageAccessFiles = contained.stream()
+				.filter(NPSFilenameUtil.PAGE_ACCESS_FILE_PREDICATE).sorted().collect(Collectors.toList());
+		List<String> pageThumbnailFiles = contained.stream()
+				.filter(NPSFilenameUtil.PAGE_THUMBNAIL_FILE_PREDICATE).sorted().collect(Collectors.toList());
 		Map<String, List<String>> result = new HashMap<String, List<String>>();
 		result.put("pageFiles", pageFiles);
 		result.put("pageAccessFiles", pageAccessFiles);
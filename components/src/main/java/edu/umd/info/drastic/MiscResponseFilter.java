@@ -13,7 +13,10 @@
  */
 package edu.umd.info.drastic;
 
+import static javax.ws.rs.HttpMethod.GET;
 import static javax.ws.rs.HttpMethod.HEAD;
+import static javax.ws.rs.core.HttpHeaders.CACHE_CONTROL;
+import static javax.ws.rs.core.HttpHeaders.ETAG;
 import static javax.ws.rs.core.HttpHeaders.VARY;
 import static javax.ws.rs.core.Response.Status.Family.SUCCESSFUL;
 import static org.slf4j.LoggerFactory.getLogger;
@@ -23,6 +26,7 @@ import java.io.IOException;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerResponseContext;
 import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.ext.Provider;
 
 import org.slf4j.Logger;
@@ -33,10 +37,31 @@ public class MiscResponseFilter implements ContainerResponseFilter {
 	@SuppressWarnings("unused")
     private static final Logger LOGGER = getLogger(MiscRequestFilter.class);
 
+    private static final String MANIFEST_SUFFIX = NPSFilenameUtil.getPresentationManifestURL("");
+
     @Override
     public void filter(final ContainerRequestContext req, final ContainerResponseContext res) throws IOException {
         if (HEAD.equals(req.getMethod()) && SUCCESSFUL.equals(res.getStatusInfo().getFamily())) {
             res.getHeaders().add(VARY, "Accept-Encoding");
         }
+        if ((GET.equals(req.getMethod()) || HEAD.equals(req.getMethod()))
+                && req.getUriInfo().getPath().endsWith(MANIFEST_SUFFIX)
+                && !req.getUriInfo().getQueryParameters().containsKey("ext")) {
+            strengthenETag(res);
+        }
+    }
+
+    /**
+     * Presentation manifests are binaries that are only ever replaced whole, so their validator can be strong and
+     * caches may keep them as long as they revalidate.
+     */
+    private static void strengthenETag(final ContainerResponseContext res) {
+        final Object etag = res.getHeaders().getFirst(ETAG);
+        if (etag == null) return;
+        final EntityTag tag = etag instanceof EntityTag ? (EntityTag) etag : EntityTag.valueOf(etag.toString());
+        if (tag.isWeak()) {
+            res.getHeaders().putSingle(ETAG, new EntityTag(tag.getValue()));
+        }
+        res.getHeaders().putSingle(CACHE_CONTROL, "public, no-cache");
     }
 }
@@ -21,9 +21,10 @@ public class NPSFilenameUtil {
 	private static Pattern md5Sheets = Pattern.compile(".*_MD5\\.xlsx$");
 	private static Pattern dcSheets = Pattern.compile("(.*/)?(.*)inventory\\.xlsx$");
 	private static Pattern pageFile = Pattern.compile("(.*/)?(.*_P\\d\\d\\d)\\.tif{1,2}$");
-	private static Pattern pageAccessFile = Pattern.compile("(.*/)?(.*_P\\d\\d\\d)_ACCESS\\.png$");
-	private static Pattern pageThumbnailFile = Pattern.compile("(.*/)?(.*_P\\d\\d\\d)_THUMBNAIL\\.png$");
+	private static Pattern pageAccessFile = Pattern.compile("(.*/)?(.*_P\\d\\d\\d)_ACCESS\\.(png|jpg|webp)$");
+	private static Pattern pageThumbnailFile = Pattern.compile("(.*/)?(.*_P\\d\\d\\d)_THUMBNAIL\\.(png|jpg|webp)$");
 	private static Pattern pageFileDocId = Pattern.compile("(.*/)?(.*_D\\d\\d)_P\\d\\d\\d\\.tif{1,2}$");
+	private static Pattern pageStem = Pattern.compile("(.*/)?((.*_D\\d\\d)_P\\d\\d\\d)(\\.tif{1,2}|_(ACCESS|THUMBNAIL)\\.(png|jpg|webp))$");
 	
 	public static Predicate<String> PAGE_FILE_PREDICATE = pageFile.asMatchPredicate();
 	public static Predicate<String> PAGE_ACCESS_FILE_PREDICATE = pageAccessFile.asMatchPredicate();
@@ -75,23 +76,53 @@ public class NPSFilenameUtil {
 	}
 
 	public static String getExtractedDCFilename(String binaryLoc) {
+		return getExtractedDCFilename(binaryLoc, 1);
+	}
+
+	/**
+	 * Names the parts of a large inventory's extracted RDF, the first part keeps the single file name.
+	 * @param part the part number, from 1
+	 */
+	public static String getExtractedDCFilename(String binaryLoc, int part) {
 		Matcher m = dcSheets.matcher(binaryLoc);
 		if(m.find()) {
-			return m.group(2)+"inventory_EXTRACTED.ttl";
+			return m.group(2)+"inventory_EXTRACTED"+(part > 1 ? "_"+part : "")+".ttl";
 		} else {
 			throw new IllegalArgumentException("Cannot find pattern.");
 		}
 	}
 	
 	public static String getAccessImageURL(String binaryLoc) {
+		return getDerivativeURL(binaryLoc, "ACCESS", "png");
+	}
+
+	/**
+	 * Gets the location of a page image derivative, e.g. X_P001_ACCESS.jpg for X_P001.tif.
+	 * @param binaryLoc the page image
+	 * @param suffix the derivative suffix, without underscore
+	 * @param extension the file extension, without dot
+	 * @return the derivative location
+	 */
+	public static String getDerivativeURL(String binaryLoc, String suffix, String extension) {
 		Matcher m = pageFile.matcher(binaryLoc);
 		if(m.find()) {
-			return m.group(1) + m.group(2)+"_ACCESS.png";
+			return (m.group(1) == null ? "" : m.group(1)) + m.group(2) + "_" + suffix + "." + extension;
 		} else {
 			throw new IllegalArgumentException("Cannot find pattern.");
 		}
 	}
 
+	/**
+	 * Gets the location of a page image or derivative without suffix or extension, shared by the page and all of
+	 * its derivatives.
+	 * @param f a page image or derivative
+	 * @return the page stem, or null if this is not a page image or derivative
+	 */
+	public static String getPageStem(String f) {
+		Matcher m = pageStem.matcher(f);
+		return m.matches() ? (m.group(1) == null ? "" : m.group(1)) + m.group(2) : null;
+	}
+
 	public static Object isPageFile(String i) {
 		return pageFile.matcher(i).matches();
 	}
@@ -109,20 +140,53 @@ public class NPSFilenameUtil {
 		}
 	}
 
+	/**
+	 * Gets the document ID for a page file or one of its derivatives.
+	 * @param f a page TIFF, access image or thumbnail IRI
+	 * @return the document ID, or null if this is not a page file or derivative
+	 */
+	public static String getPageOrDerivativeDocumentID(String f) {
+		Matcher m = pageStem.matcher(f);
+		return m.matches() ? m.group(3) : null;
+	}
+
+	/**
+	 * Gets the page ID shared by a page file and its derivatives.
+	 * @param f a page TIFF, access image or thumbnail IRI
+	 * @return the page ID, or null if this is not a page file or derivative
+	 */
+	public static String getPageOrDerivativePageID(String f) {
+		Matcher m = pageStem.matcher(f);
+		return m.matches() ? m.group(2) : null;
+	}
+
 	public static int getPageNumber(String f) {
 		List<String> parts = getPathParts(f);
 		return Integer.valueOf(parts.get(6).substring(1));
 	}
 
 	public static String getThumbnailImageURL(String binaryLoc) {
+		return getDerivativeURL(binaryLoc, "THUMBNAIL", "png");
+	}
+
+	public static String getImageServiceURL(String binaryLoc) {
 		Matcher m = pageFile.matcher(binaryLoc);
 		if(m.find()) {
-			return m.group(1) + m.group(2)+"_THUMBNAIL.png";
+			return (m.group(1) == null ? "" : m.group(1)) + m.group(2) + "_IIIF";
 		} else {
 			throw new IllegalArgumentException("Cannot find pattern.");
 		}
 	}
 
+	/**
+	 * Gets the IIIF Presentation manifest location for a paged document. The manifest is a sibling of the document.
+	 * @param docLoc the paged document IRI
+	 * @return the manifest IRI
+	 */
+	public static String getPresentationManifestURL(String docLoc) {
+		return docLoc + "_MANIFEST.json";
+	}
+
 	public static void getFolderID(String docId) {
 		// TODO Auto-generated method stub
 		
@@ -55,7 +55,7 @@ public class NPSVocabulary {
 	
 	public static final IRI NPS_NS = rdf.createIRI("https://example.nps.gov/2021/nps-workflow#");
 	public static enum NPS {
-		containsGraph, MissingPageFile, path, hasAccess, hasThumbnail, hasProposedEntity, entityType, entityText;
+		containsGraph, MissingPageFile, path, depth, hasAccess, hasThumbnail, hasImageService, hasPresentationManifest, hasProposedEntity, entityType, entityText, TreeHashSHA256, chunkSize, chunkDigests;
 		
 		public IRI iri;
 		public String str;
@@ -186,7 +186,7 @@ public class NPSVocabulary {
 	
 	public static final IRI DRASTIC_NS = rdf.createIRI("http://github.com/DRAS-TIC/drastic-trellis#");
 	public static enum DRASTIC_AGENTS {
-		crawler;
+		crawler, bulkImport;
 		
 		public IRI iri;
 		public String str;
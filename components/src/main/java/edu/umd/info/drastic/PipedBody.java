@@ -0,0 +1,164 @@
+package edu.umd.info.drastic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A request body written by an encoder while the HTTP client sends it. The encoder writes to {@link #out()} on its
+ * own thread and the client pulls from a small bounded queue of chunks, so encoding and upload overlap and at most a
+ * few chunks are held in memory. If the client stops reading, e.g. because the server answered early, the encoder's
+ * next write fails instead of blocking.
+ *
+ * @author jansen
+ *
+ */
+class PipedBody {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private static final int QUEUE_CHUNKS = 16;
+
+	private static final byte[] EOF = new byte[0];
+
+	private static final byte[] ERROR = new byte[0];
+
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(QUEUE_CHUNKS);
+
+	private volatile boolean closed = false;
+
+	private final OutputStream out = new ChunkOutputStream();
+
+	/**
+	 * @return the stream the encoder writes to, must be closed to end the body
+	 */
+	OutputStream out() {
+		return out;
+	}
+
+	/**
+	 * @return a publisher for a single request
+	 */
+	BodyPublisher publisher() {
+		return BodyPublishers.ofInputStream(() -> new ChunkInputStream());
+	}
+
+	/**
+	 * Ends the body with an error, so a half written body is never stored, and makes further writes fail. Called
+	 * when encoding fails or the request is over before the body was sent.
+	 */
+	void abort() {
+		closed = true;
+		chunks.clear();
+		chunks.offer(ERROR);
+	}
+
+	private class ChunkOutputStream extends OutputStream {
+		private byte[] buf = new byte[CHUNK_SIZE];
+		private int count = 0;
+		private boolean finished = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buf.length) {
+				flushChunk();
+			}
+			buf[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buf.length) {
+					flushChunk();
+				}
+				int n = Math.min(len, buf.length - count);
+				System.arraycopy(b, off, buf, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (count == 0) return;
+			byte[] chunk = count == buf.length ? buf : Arrays.copyOf(buf, count);
+			put(chunk);
+			buf = new byte[CHUNK_SIZE];
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (finished) return;
+			finished = true;
+			flushChunk();
+			put(EOF);
+		}
+
+		private void put(byte[] chunk) throws IOException {
+			try {
+				while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+					if (closed) {
+						throw new IOException("Upload ended before the body was written");
+					}
+				}
+				if (closed) {
+					throw new IOException("Upload ended before the body was written");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private class ChunkInputStream extends InputStream {
+		private byte[] current = null;
+		private int pos = 0;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (current == null || pos == current.length) {
+				if (current == EOF) return -1;
+				if (current == ERROR) throw new IOException("Body was not completely written");
+				try {
+					current = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				pos = 0;
+				if (current == EOF) return -1;
+				if (current == ERROR) throw new IOException("Body was not completely written");
+			}
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			if (current != EOF) {
+				closed = true;
+				chunks.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,507 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.rdf.api.BlankNodeOrIRI;
+import org.apache.commons.rdf.api.Dataset;
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.RDFTerm;
+import org.apache.commons.rdf.api.Triple;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.slf4j.Logger;
+import org.trellisldp.api.AuditService;
+import org.trellisldp.api.Metadata;
+import org.trellisldp.api.RDFFactory;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.api.Session;
+import org.trellisldp.vocabulary.LDP;
+import org.trellisldp.vocabulary.Trellis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import edu.umd.info.drastic.NPSVocabulary.DRASTIC_AGENTS;
+import edu.umd.info.drastic.NPSVocabulary.ICMS;
+import edu.umd.info.drastic.NPSVocabulary.PCDM;
+
+/**
+ * Bulk import of a whole Rediscovery export. The export XML is streamed: each child of the document root is one
+ * ICMS record and each child element of a record is one ICMS field, named as in the export (e.g.
+ * Collection_x0020_Title). The record's id field is its path under /description/.
+ *
+ * The export is spooled to a temporary file and imported as a job; the POST answers 202 with the job, which is
+ * polled at bulk/rediscovery/{id}. Records are written in batches straight to the resource service, bypassing the
+ * HTTP layer and its per-resource event cascade, but with the same creation or update audit trail, attributed to the
+ * bulk import agent. The record graphs only carry ICMS, Dublin Core and path statements, none of them managed by the
+ * server, so they cannot break the LDP constraints the HTTP layer checks. Within a batch, records are written
+ * parent first, and a parent container missing from the repository and the export is created, empty, before its
+ * children. The bulk enricher chain (icms2dcterms, ner and path by default) is applied in memory before the write,
+ * so no PATCH follows. Each batch is then added to the triple store with one SPARQL update, indexed with one
+ * Elasticsearch bulk request and announced with one notification on the description-batches topic. Records that
+ * are stored but could not be indexed are counted as unindexed.
+ *
+ * Example:
+ *   curl -X POST -H "Content-Type: application/xml" --data-binary @export.xml http://localhost:8080/bulk/rediscovery
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@Path("bulk/rediscovery")
+public class RediscoveryBulkImportResource {
+	private static final Logger LOGGER = getLogger(RediscoveryBulkImportResource.class);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final RDF rdf = RDFFactory.getInstance();
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	AuditService auditService;
+
+	@Inject
+	DescriptionEnrichmentPipeline pipeline;
+
+	@Inject
+	TripleStoreRouter triplestore;
+
+	@Inject
+	GraphToESIndexer indexer;
+
+	@Inject
+	@Channel("description-batches-out")
+	Emitter<String> batchEmitter;
+
+	@Inject
+	@ConfigProperty(name = "trellis.http.base-url")
+	Optional<String> baseUrl;
+
+	@Inject
+	@ConfigProperty(name = "trellis.bulk-import.batch-size", defaultValue = "500")
+	int batchSize;
+
+	@Inject
+	@ConfigProperty(name = "trellis.bulk-import.concurrency", defaultValue = "8")
+	int concurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.bulk-import.enrichers", defaultValue = "icms2dcterms,ner,path")
+	List<String> enricherNames;
+
+	@Inject
+	@ConfigProperty(name = "trellis.bulk-import.retain-minutes", defaultValue = "1440")
+	long retainMinutes;
+
+	private ExecutorService executorService;
+
+	private ExecutorService imports;
+
+	private ExecutorService batches;
+
+	private List<DescriptionEnricher> chain;
+
+	private final ConcurrentMap<String, ImportJob> jobs = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	void initialize() {
+		executorService = Executors.newFixedThreadPool(concurrency);
+		imports = Executors.newSingleThreadExecutor();
+		batches = Executors.newSingleThreadExecutor();
+		chain = pipeline.resolve(enricherNames);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		imports.shutdownNow();
+		batches.shutdown();
+		executorService.shutdown();
+	}
+
+	@POST
+	@Consumes({ "application/xml", "text/xml" })
+	@Produces("application/json")
+	public Response importExport(InputStream body, @Context UriInfo uriInfo) {
+		String base = baseUrl.orElse(uriInfo.getBaseUri().toString());
+		if (!base.endsWith("/")) base = base + "/";
+		java.nio.file.Path export;
+		try {
+			export = Files.createTempFile("rediscovery-", ".xml");
+			Files.copy(body, export, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			LOGGER.error("Cannot spool Rediscovery export", e);
+			return Response.serverError().build();
+		}
+		evictFinished();
+		ImportJob job = new ImportJob(UUID.randomUUID().toString());
+		jobs.put(job.id, job);
+		String jobBase = base;
+		imports.submit(() -> run(job, jobBase, export));
+		return Response.accepted(job.toJson()).location(uriInfo.getAbsolutePathBuilder().path(job.id).build())
+				.build();
+	}
+
+	@GET
+	@Path("{id}")
+	@Produces("application/json")
+	public Response status(@PathParam("id") String id) {
+		ImportJob job = jobs.get(id);
+		if (job == null) return Response.status(Response.Status.NOT_FOUND).build();
+		return Response.ok(job.toJson()).build();
+	}
+
+	private void evictFinished() {
+		Instant cutoff = Instant.now().minus(Duration.ofMinutes(retainMinutes));
+		jobs.values().removeIf(j -> j.finished != null && j.finished.isBefore(cutoff));
+	}
+
+	private void run(ImportJob job, String base, java.nio.file.Path export) {
+		try (InputStream in = Files.newInputStream(export)) {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			XMLStreamReader xml = factory.createXMLStreamReader(in);
+			List<Map<String, List<String>>> batch = new ArrayList<>(batchSize);
+			CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+			Map<String, List<String>> record = null;
+			String field = null;
+			StringBuilder text = new StringBuilder();
+			int depth = 0;
+			while (xml.hasNext()) {
+				switch (xml.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					if (depth == 2) {
+						record = new LinkedHashMap<>();
+					} else if (depth == 3) {
+						field = xml.getLocalName();
+						text.setLength(0);
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (depth == 3) text.append(xml.getText());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == 3 && record != null) {
+						String value = text.toString().trim();
+						if (!value.isEmpty()) {
+							record.computeIfAbsent(field, k -> new ArrayList<>()).add(value);
+						}
+					} else if (depth == 2 && record != null) {
+						batch.add(record);
+						record = null;
+						if (batch.size() >= batchSize) {
+							previous.join(); // at most one batch written while the next is parsed
+							previous = writeBatch(job, base, batch);
+							batch = new ArrayList<>(batchSize);
+						}
+					}
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+			xml.close();
+			previous.join();
+			if (!batch.isEmpty()) {
+				writeBatch(job, base, batch).join();
+			}
+			job.state = "finished";
+		} catch (XMLStreamException e) {
+			LOGGER.error("Cannot parse Rediscovery export", e);
+			job.state = "failed";
+			job.error = "Cannot parse Rediscovery export: " + e.getMessage();
+		} catch (Exception e) {
+			LOGGER.error("Rediscovery bulk import failed", e);
+			job.state = "failed";
+			job.error = e.getMessage();
+		} finally {
+			job.finished = Instant.now();
+			try {
+				Files.deleteIfExists(export);
+			} catch (IOException e) {
+				LOGGER.warn("Cannot remove spooled export {}", export, e);
+			}
+		}
+		LOGGER.info("Rediscovery bulk import {}: {}", job.id, job.toJson());
+	}
+
+	private CompletableFuture<Void> writeBatch(ImportJob job, String base, List<Map<String, List<String>>> records) {
+		return CompletableFuture.runAsync(() -> writeBatchNow(job, base, records), batches);
+	}
+
+	private void writeBatchNow(ImportJob job, String base, List<Map<String, List<String>>> records) {
+		int batchNo = job.batches.incrementAndGet();
+		Map<IRI, CompletableFuture<Graph>> enriched = new LinkedHashMap<>();
+		for (Map<String, List<String>> r : records) {
+			String id = r.containsKey("id") ? r.get("id").get(0) : null;
+			if (id == null) {
+				LOGGER.warn("Skipping Rediscovery record without id: {}", r);
+				job.failed.incrementAndGet();
+				continue;
+			}
+			IRI iri = rdf.createIRI(base + "description" + (id.startsWith("/") ? id : "/" + id));
+			Graph g = rdf.createGraph();
+			g.add(iri, org.trellisldp.vocabulary.RDF.type, ICMS.RediscoveryExport.iri);
+			r.forEach((name, values) -> {
+				IRI pred = rdf.createIRI(NPSVocabulary.ICMS_NS.getIRIString() + name);
+				values.forEach(v -> g.add(iri, pred, rdf.createLiteral(v)));
+			});
+			enriched.put(iri, CompletableFuture.supplyAsync(() -> {
+				pipeline.enrich(chain, iri, g);
+				return g;
+			}, executorService));
+		}
+		Map<IRI, Graph> graphs = new LinkedHashMap<>();
+		enriched.forEach((iri, g) -> graphs.put(iri, g.join()));
+
+		// parents before children: one level of the tree at a time
+		TreeMap<Integer, List<IRI>> levels = new TreeMap<>();
+		graphs.keySet().forEach(iri -> levels.computeIfAbsent(depth(iri), k -> new ArrayList<>()).add(iri));
+		List<IRI> stored = new ArrayList<>();
+		Set<IRI> replaced = ConcurrentHashMap.newKeySet();
+		for (List<IRI> level : levels.values()) {
+			Map<IRI, IRI> internal = new LinkedHashMap<>();
+			for (IRI iri : level) {
+				IRI i = (IRI) toInternal(base, iri);
+				internal.put(iri, i);
+				try {
+					ensureContainer(job, parent(i));
+				} catch (RuntimeException e) {
+					LOGGER.error("Cannot create the parent of {}", iri, e);
+				}
+			}
+			List<CompletableFuture<IRI>> writes = level.stream()
+					.map(iri -> CompletableFuture.supplyAsync(() -> store(base, iri, internal.get(iri), graphs.get(iri),
+							replaced),
+							executorService))
+					.collect(Collectors.toList());
+			for (CompletableFuture<IRI> w : writes) {
+				try {
+					IRI iri = w.join();
+					stored.add(iri);
+					job.containers.add(internal.get(iri).getIRIString());
+				} catch (CompletionException e) {
+					job.failed.incrementAndGet();
+				}
+			}
+		}
+		job.stored.addAndGet(stored.size());
+		if (!stored.isEmpty()) {
+			index(job, stored, replaced, graphs);
+			batchEmitter.send(notification(batchNo, stored));
+		}
+		LOGGER.debug("Rediscovery bulk import batch {}: {} stored", batchNo, stored.size());
+	}
+
+	private static int depth(IRI iri) {
+		String s = iri.getIRIString();
+		if (s.endsWith("/")) s = s.substring(0, s.length() - 1);
+		return (int) s.chars().filter(c -> c == '/').count();
+	}
+
+	/**
+	 * @return the parent of an internal IRI, the repository root for top level resources
+	 */
+	private IRI parent(IRI internal) {
+		String path = internal.getIRIString();
+		if (path.endsWith("/")) path = path.substring(0, path.length() - 1);
+		int slash = path.lastIndexOf('/');
+		return rdf.createIRI(slash < TRELLIS_DATA_PREFIX.length() ? TRELLIS_DATA_PREFIX : path.substring(0, slash));
+	}
+
+	/**
+	 * Creates a missing container, and its missing ancestors, as an empty basic container.
+	 */
+	private void ensureContainer(ImportJob job, IRI container) {
+		String path = container.getIRIString();
+		if (path.length() <= TRELLIS_DATA_PREFIX.length() || job.containers.contains(path)) return;
+		Resource existing = resourceService.get(container).toCompletableFuture().join();
+		if (existing == Resource.MISSING_RESOURCE || existing == Resource.DELETED_RESOURCE) {
+			ensureContainer(job, parent(container));
+			Dataset dataset = rdf.createDataset();
+			auditService.creation(container, session).forEach(dataset::add);
+			resourceService.create(Metadata.builder(container).interactionModel(LDP.BasicContainer)
+					.container(parent(container)).build(), dataset).toCompletableFuture().join();
+			job.createdContainers.incrementAndGet();
+			LOGGER.debug("Created missing container {}", container);
+		}
+		job.containers.add(path);
+	}
+
+	/**
+	 * Creates or replaces a description.
+	 * @param replaced receives the IRI if a description was there before
+	 */
+	private IRI store(String base, IRI iri, IRI internal, Graph g, Set<IRI> replaced) {
+		Dataset dataset = rdf.createDataset();
+		g.stream().forEach(t -> dataset.add(Trellis.PreferUserManaged, (BlankNodeOrIRI) toInternal(base, t.getSubject()),
+				t.getPredicate(), toInternal(base, t.getObject())));
+		Metadata metadata = Metadata.builder(internal).interactionModel(LDP.BasicContainer).container(parent(internal))
+				.build();
+		return resourceService.get(internal).thenCompose(existing -> {
+			if (existing == Resource.MISSING_RESOURCE || existing == Resource.DELETED_RESOURCE) {
+				auditService.creation(internal, session).forEach(dataset::add);
+				return resourceService.create(metadata, dataset);
+			}
+			auditService.update(internal, session).forEach(dataset::add);
+			replaced.add(iri);
+			return resourceService.replace(metadata, dataset);
+		}).thenApply(v -> iri).exceptionally(err -> {
+			LOGGER.error("Cannot store description {}", iri, err);
+			throw new IllegalStateException(err);
+		}).toCompletableFuture().join();
+	}
+
+	private RDFTerm toInternal(String base, RDFTerm term) {
+		if (term instanceof IRI && ((IRI) term).getIRIString().startsWith(base)) {
+			return rdf.createIRI(TRELLIS_DATA_PREFIX + ((IRI) term).getIRIString().substring(base.length()));
+		}
+		return term;
+	}
+
+	private void index(ImportJob job, List<IRI> stored, Set<IRI> replaced, Map<IRI, Graph> graphs) {
+		Map<String, List<Triple>> triples = new LinkedHashMap<>();
+		List<Triple> contains = new ArrayList<>();
+		Map<URI, ObjectNode> docs = new LinkedHashMap<>();
+		for (IRI iri : stored) {
+			Graph g = graphs.get(iri);
+			triples.put(iri.getIRIString(), g.stream().collect(Collectors.toList()));
+			String s = iri.getIRIString();
+			contains.add(rdf.createTriple(rdf.createIRI(s.substring(0, s.lastIndexOf('/'))), LDP.contains, iri));
+			if (g.contains(iri, org.trellisldp.vocabulary.RDF.type, PCDM.Collection.iri)) {
+				docs.put(URI.create(s), indexer.buildDescriptionDocument(iri, g));
+			}
+		}
+		try {
+			triplestore.createAll(triples, contains,
+					replaced.stream().map(IRI::getIRIString).collect(Collectors.toSet()));
+			indexer.postElasticBulk(docs);
+		} catch (IOException | RuntimeException e) {
+			job.unindexed.addAndGet(stored.size());
+			LOGGER.error("Cannot index bulk import batch", e);
+		}
+	}
+
+	private String notification(int batchNo, List<IRI> stored) {
+		ObjectNode as = mapper.createObjectNode();
+		as.put("@context", "https://www.w3.org/ns/activitystreams");
+		as.put("id", "urn:uuid:" + UUID.randomUUID());
+		as.putArray("type").add("Create");
+		as.putArray("actor").add(DRASTIC_AGENTS.bulkImport.str);
+		as.put("published", Instant.now().toString());
+		ObjectNode object = as.putObject("object");
+		object.put("type", "Collection");
+		object.put("batch", batchNo);
+		object.put("totalItems", stored.size());
+		ArrayNode items = object.putArray("items");
+		stored.forEach(iri -> items.add(iri.getIRIString()));
+		return as.toString();
+	}
+
+	/** The bulk import agent, for the audit trail. */
+	private final Session session = new Session() {
+		private final IRI identifier = rdf.createIRI("urn:uuid:" + UUID.randomUUID());
+		private final Instant created = Instant.now();
+
+		@Override
+		public IRI getIdentifier() {
+			return identifier;
+		}
+
+		@Override
+		public IRI getAgent() {
+			return DRASTIC_AGENTS.bulkImport.iri;
+		}
+
+		@Override
+		public Optional<IRI> getDelegatedBy() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Instant getCreated() {
+			return created;
+		}
+	};
+
+	private static class ImportJob {
+		final String id;
+		final Instant started = Instant.now();
+		volatile Instant finished = null;
+		volatile String state = "running";
+		volatile String error = null;
+		final AtomicInteger batches = new AtomicInteger();
+		final AtomicInteger stored = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger unindexed = new AtomicInteger();
+		final AtomicInteger createdContainers = new AtomicInteger();
+		/** Containers known to exist, internal IRIs. */
+		final Set<String> containers = ConcurrentHashMap.newKeySet();
+
+		ImportJob(String id) {
+			this.id = id;
+		}
+
+		String toJson() {
+			ObjectNode json = mapper.createObjectNode().put("id", id).put("state", state)
+					.put("started", started.toString());
+			if (finished != null) json.put("finished", finished.toString());
+			if (error != null) json.put("error", error);
+			return json.put("batches", batches.get()).put("stored", stored.get()).put("failed", failed.get())
+					.put("unindexed", unindexed.get()).put("createdContainers", createdContainers.get()).toString();
+		}
+	}
+}
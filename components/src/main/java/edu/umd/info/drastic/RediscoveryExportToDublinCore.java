@@ -41,15 +41,28 @@ import edu.umd.info.drastic.NPSVocabulary.PCDM;
  * work, this class has to be annotated with {@code @ApplicationScoped}.
  */
 @ApplicationScoped
-public class RediscoveryExportToDublinCore {
+public class RediscoveryExportToDublinCore implements DescriptionEnricher {
 
 	private static final Logger LOGGER = getLogger(RediscoveryExportToDublinCore.class);
 
 	private final RDF rdf = RDFFactory.getInstance();
 
+	@Override
+	public String name() {
+		return "icms2dcterms";
+	}
+
+	@Override
+	public void enrich(IRI id, Graph description, Graph additions) {
+		if (description.contains(id, org.trellisldp.vocabulary.RDF.type, ICMS.RediscoveryExport.iri)) {
+			createStatements(id, description, additions);
+		}
+	}
+
 	/**
-	 * Processes a newly CREATEd ICMS archival hierarchy record (collection, subgroup, series, subseries, box, folder, item)
-	 * Converts some ICMS fields into Dublin Core Terms.
+	 * Processes a newly CREATEd, or re-announced, ICMS archival hierarchy record (collection, subgroup, series, subseries, box, folder, item)
+	 * Converts some ICMS fields into Dublin Core Terms. The icms2dc channel is disabled by configuration while the
+	 * {@link DescriptionEnrichmentPipeline} applies this mapping as one of its enrichers.
 	 * 
 	 * @param record
 	 */
@@ -65,13 +78,15 @@ public class RediscoveryExportToDublinCore {
 			boolean isRE = StreamSupport.stream(((ArrayNode) js.at("/object/type")).spliterator(), false).map(JsonNode::asText)
 					.anyMatch(t -> ICMS.RediscoveryExport.str.equals(t));
 			String op = ((ArrayNode)js.at("/type")).get(1).asText();
-			if ( "Create".equals(op) && 
+			if ( ("Create".equals(op) || ResourceNotifications.isReannouncement(js)) && 
 					(isRE || 
 					(iri.getIRIString().contains("/description/") && !iri.getIRIString().endsWith("/description/")))) {
 				Graph priorGraph = getGraph(iri.getIRIString());
 				if (priorGraph.contains(iri, org.trellisldp.vocabulary.RDF.type, ICMS.RediscoveryExport.iri)) {
 					//LOGGER.debug("Starting DC processing for {}", iri.getIRIString());
-					Graph g = createStatements(iri, priorGraph);
+					Dataset d = rdf.createDataset();
+					Graph g = d.getGraph(Trellis.PreferUserManaged).get(); // holds new statements
+					createStatements(iri, priorGraph, g);
 					patchGraph(g, iri.getIRIString());
 				} else {
 					LOGGER.warn("Found  a resource matching \"/description/*\" w/o RediscoveryExport predicate: {}",
@@ -83,10 +98,8 @@ public class RediscoveryExportToDublinCore {
 		}
 	}
 
-	private Graph createStatements(IRI id, Graph p) {
+	private void createStatements(IRI id, Graph p, Graph g) {
 		// LOGGER.debug("Will attempt to patch RediscoveryExport with Dublin Core: {}", key);
-		Dataset d = rdf.createDataset();
-		Graph g = d.getGraph(Trellis.PreferUserManaged).get(); // holds new statements
 		// Add PCDM Collection type
 		g.add(id, org.trellisldp.vocabulary.RDF.type, PCDM.Collection.iri);
 
@@ -114,7 +127,6 @@ public class RediscoveryExportToDublinCore {
 				});
 			}
 		}
-		return g;
 	}
 
 	public static class Transform {
@@ -0,0 +1,105 @@
+package edu.umd.info.drastic;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Starts, lists and cancels reprocessing jobs, e.g.
+ * POST /reprocess {"subtree": "https://host/submissions/ABC123", "targets": ["fixity"], "rate": 50}
+ * with optional "depth" and "pattern" (a glob over resource paths, as *.tif). The response is 202 with the job.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+@Path("reprocess")
+public class ReprocessResource {
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@Inject
+	ReprocessingEngine engine;
+
+	@POST
+	@Consumes("application/json")
+	@Produces("application/json")
+	public Response start(String body) {
+		if (!engine.isEnabled()) {
+			return Response.status(Response.Status.NOT_FOUND).build();
+		}
+		JsonNode req;
+		try {
+			req = mapper.readTree(body);
+		} catch (IOException e) {
+			return badRequest("Not a JSON request");
+		}
+		String subtree = req.path("subtree").asText(null);
+		if (subtree == null || !subtree.matches("https?://.+")) {
+			return badRequest("subtree must be a resource IRI");
+		}
+		List<String> targets = new ArrayList<String>();
+		req.path("targets").forEach(t -> targets.add(t.asText()));
+		try {
+			ReprocessingEngine.Job job = engine.start(subtree, targets, req.path("rate").asDouble(100),
+					req.path("depth").asInt(Integer.MAX_VALUE), req.path("pattern").asText(null));
+			return Response.accepted(json(job).toString()).build();
+		} catch (IllegalArgumentException e) {
+			return badRequest(e.getMessage());
+		}
+	}
+
+	@GET
+	@Produces("application/json")
+	public Response list() {
+		ObjectNode report = mapper.createObjectNode();
+		ArrayNode targets = report.putArray("targets");
+		engine.targets().forEach(targets::add);
+		ArrayNode jobs = report.putArray("jobs");
+		engine.jobs().values().forEach(j -> jobs.add(json(j)));
+		return Response.ok(report.toString()).build();
+	}
+
+	@DELETE
+	@Path("{id}")
+	@Produces("application/json")
+	public Response cancel(@PathParam("id") String id) {
+		return engine.cancel(id).map(j -> Response.ok(json(j).toString()).build())
+				.orElse(Response.status(Response.Status.NOT_FOUND).build());
+	}
+
+	private static ObjectNode json(ReprocessingEngine.Job job) {
+		ObjectNode node = mapper.createObjectNode();
+		node.put("id", job.id);
+		node.put("subtree", job.subtree);
+		ArrayNode targets = node.putArray("targets");
+		job.targets.forEach(targets::add);
+		node.put("rate", job.rate);
+		node.put("started", job.started.toString());
+		if (job.finished != null) node.put("finished", job.finished.toString());
+		node.put("state", job.state);
+		node.put("visited", job.visited.get());
+		node.put("sent", job.sent.get());
+		node.put("missing", job.missing.get());
+		return node;
+	}
+
+	private static Response badRequest(String message) {
+		return Response.status(Response.Status.BAD_REQUEST).entity(message).build();
+	}
+}
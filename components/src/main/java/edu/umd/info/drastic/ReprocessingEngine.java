@@ -0,0 +1,232 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.eclipse.microprofile.reactive.messaging.Message;
+import org.eclipse.microprofile.reactive.messaging.OnOverflow;
+import org.slf4j.Logger;
+import org.trellisldp.vocabulary.LDP;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import io.smallrye.reactive.messaging.kafka.api.OutgoingKafkaRecordMetadata;
+
+/**
+ * Re-announces the resources of a subtree to a chosen set of processors, e.g. only fixity, at a chosen rate. Each
+ * processor that can be targeted also listens on its own topic, reprocess.&lt;processor&gt;, so a job reaches just the
+ * selected consumer groups instead of everything on objects or new-binaries. The messages are the activity streams
+ * Trellis sends for an update, with the resource's real types and ETag, keyed by resource like the router's.
+ * <p>
+ * Binary processors (trellis.reprocess.binary-targets) only get the NonRDFSources of the subtree; the Elasticsearch
+ * index is reached through the triplestore processor, which hands the new graphs on to the indexer. Processors that
+ * take a bare resource IRI instead of an activity stream are listed in trellis.reprocess.iri-targets. The messages
+ * name the crawler as actor, which processors that only act on new resources take as a request to run again, see
+ * {@link ResourceNotifications#isReannouncement}. Finished jobs are listed for trellis.reprocess.retain-minutes.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class ReprocessingEngine {
+	private static final Logger LOGGER = getLogger(ReprocessingEngine.class);
+
+	static final String TOPIC_PREFIX = "reprocess.";
+
+	@Inject
+	@ConfigProperty(name = "trellis.reprocess.binary-targets")
+	List<String> binaryTargets;
+
+	@Inject
+	@ConfigProperty(name = "trellis.reprocess.object-targets")
+	List<String> objectTargets;
+
+	@Inject
+	@ConfigProperty(name = "trellis.reprocess.iri-targets", defaultValue = "desc-ner-in,authrec-index")
+	List<String> iriTargets;
+
+	@Inject
+	@ConfigProperty(name = "trellis.reprocess.max-rate", defaultValue = "1000")
+	double maxRate;
+
+	@Inject
+	@ConfigProperty(name = "trellis.reprocess.retain-minutes", defaultValue = "1440")
+	long retainMinutes;
+
+	@Inject
+	SubtreeEnumerator subtree;
+
+	@Inject
+	ResourceNotifications notifications;
+
+	@Inject
+	@Channel("reprocess-out")
+	@OnOverflow(value = OnOverflow.Strategy.BUFFER, bufferSize = 10000)
+	Emitter<String> emitter;
+
+	private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+	private final AtomicInteger threadNo = new AtomicInteger();
+
+	private final ExecutorService runners = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "reprocess-" + threadNo.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	});
+
+	@PreDestroy
+	void shutdown() {
+		jobs.values().forEach(j -> j.cancelled = true);
+		runners.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return subtree.isEnabled();
+	}
+
+	/**
+	 * @return the processors a job can target
+	 */
+	public Set<String> targets() {
+		Set<String> all = new LinkedHashSet<String>(objectTargets);
+		all.addAll(binaryTargets);
+		return all;
+	}
+
+	/**
+	 * A reprocessing job and its progress.
+	 */
+	public static class Job {
+		public final String id;
+		public final String subtree;
+		public final Set<String> targets;
+		public final double rate;
+		public final int depth;
+		public final String pattern;
+		public final Instant started = Instant.now();
+		public volatile Instant finished = null;
+		public final AtomicLong visited = new AtomicLong();
+		public final AtomicLong sent = new AtomicLong();
+		public final AtomicLong missing = new AtomicLong();
+		public volatile String state = "running";
+		volatile boolean cancelled = false;
+
+		Job(String id, String subtree, Set<String> targets, double rate, int depth, String pattern) {
+			this.id = id;
+			this.subtree = subtree;
+			this.targets = targets;
+			this.rate = rate;
+			this.depth = depth;
+			this.pattern = pattern;
+		}
+	}
+
+	/**
+	 * Starts a job, unless the same job is already running.
+	 * @param subtreeIri the public IRI of the subtree root
+	 * @param targets the processors to send to, all known to {@link #targets()}
+	 * @param rate resources per second, capped at trellis.reprocess.max-rate
+	 * @param depth the depth to go to, children of the root are depth 1
+	 * @param pattern a glob over the resource paths, or null
+	 * @return the running job
+	 */
+	public Job start(String subtreeIri, Collection<String> targets, double rate, int depth, String pattern) {
+		Set<String> selected = new LinkedHashSet<String>(targets);
+		if (selected.isEmpty() || !targets().containsAll(selected)) {
+			throw new IllegalArgumentException("Targets must be some of " + targets());
+		}
+		evictFinished();
+		String id = DigestUtils.sha1Hex(subtreeIri + "|" + selected + "|" + depth + "|" + pattern).substring(0, 16);
+		Job job = new Job(id, subtreeIri, selected, Math.max(0.1, Math.min(rate, maxRate)), depth, pattern);
+		Job running = jobs.compute(id, (k, old) -> old != null && "running".equals(old.state) ? old : job);
+		if (running != job) return running;
+		runners.submit(() -> run(job));
+		return job;
+	}
+
+	public Optional<Job> cancel(String id) {
+		Job job = jobs.get(id);
+		if (job != null) job.cancelled = true;
+		return Optional.ofNullable(job);
+	}
+
+	public Map<String, Job> jobs() {
+		evictFinished();
+		return jobs;
+	}
+
+	private void evictFinished() {
+		Instant cutoff = Instant.now().minus(Duration.ofMinutes(retainMinutes));
+		jobs.values().removeIf(j -> j.finished != null && j.finished.isBefore(cutoff));
+	}
+
+	private void run(Job job) {
+		RateLimiter limiter = RateLimiter.create(job.rate);
+		String base = SubtreeEnumerator.base(job.subtree);
+		boolean binariesOnly = binaryTargets.containsAll(job.targets);
+		SubtreeEnumerator.Query q = new SubtreeEnumerator.Query(SubtreeEnumerator.internal(job.subtree))
+				.maxDepth(job.depth);
+		if (binariesOnly) q.models(List.of(LDP.NonRDFSource));
+		if (job.pattern != null) q.pathGlob(job.pattern);
+		try {
+			subtree.enumerate(q, e -> {
+				if (job.cancelled) throw new CancellationException();
+				job.visited.incrementAndGet();
+				boolean binary = LDP.NonRDFSource.equals(e.interactionModel);
+				String iri = e.external(base);
+				if (iri.contains("?")) return;
+				limiter.acquire();
+				Optional<String> message = notifications.update(iri);
+				if (message.isEmpty()) {
+					job.missing.incrementAndGet();
+					return;
+				}
+				for (String target : job.targets) {
+					if (!binary && binaryTargets.contains(target)) continue;
+					OutgoingKafkaRecordMetadata<String> metadata = OutgoingKafkaRecordMetadata.<String> builder()
+							.withKey(iri)
+							.withTopic(TOPIC_PREFIX + target)
+							.build();
+					String payload = iriTargets.contains(target) ? iri : message.get();
+					emitter.send(Message.of(payload).addMetadata(metadata));
+				}
+				job.sent.incrementAndGet();
+			});
+			job.state = "finished";
+		} catch (CancellationException e) {
+			job.state = "cancelled";
+		} catch (Exception e) {
+			job.state = "failed";
+			LOGGER.error("Reprocessing {} of {} failed", job.id, job.subtree, e);
+		}
+		job.finished = Instant.now();
+		LOGGER.info("Reprocessing {} of {} for {} {}: {} resources sent", job.id, job.subtree, job.targets, job.state,
+				job.sent.get());
+	}
+
+	private static class CancellationException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,98 @@
+package edu.umd.info.drastic;
+
+import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static edu.umd.info.drastic.NPSVocabulary.DRASTIC_AGENTS.crawler;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.apache.commons.rdf.api.IRI;
+import org.slf4j.Logger;
+import org.trellisldp.api.NotificationSerializationService;
+import org.trellisldp.api.Resource;
+import org.trellisldp.api.ResourceService;
+import org.trellisldp.common.SimpleNotification;
+import org.trellisldp.vocabulary.AS;
+import org.trellisldp.vocabulary.PROV;
+import org.trellisldp.vocabulary.RDF;
+import org.trellisldp.vocabulary.Trellis;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Builds the activity stream Trellis would have sent for an update of an existing resource, for crawls and
+ * reprocessing that re-announce resources: the object types are the interaction model and the resource's rdf:types,
+ * and the object state is the ETag the resource is served with.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class ResourceNotifications {
+	private static final Logger LOGGER = getLogger(ResourceNotifications.class);
+
+	@Inject
+	ResourceService resourceService;
+
+	@Inject
+	NotificationSerializationService serializer;
+
+	private final HttpClient http = HttpClient.newHttpClient();
+
+	/**
+	 * @param externalIri the public resource IRI
+	 * @return the serialized Update notification, or empty if the resource is gone
+	 */
+	public Optional<String> update(String externalIri) {
+		IRI internal = SubtreeEnumerator.internal(externalIri);
+		Resource res = resourceService.get(internal).toCompletableFuture().join();
+		if (res == Resource.MISSING_RESOURCE || res == Resource.DELETED_RESOURCE) return Optional.empty();
+		List<IRI> types = new ArrayList<IRI>();
+		types.add(res.getInteractionModel());
+		res.stream(Trellis.PreferUserManaged)
+				.filter(t -> internal.equals(t.getSubject()) && RDF.type.equals(t.getPredicate()))
+				.map(t -> t.getObject()).filter(o -> o instanceof IRI && !types.contains(o))
+				.forEach(o -> types.add((IRI) o));
+		SimpleNotification n = new SimpleNotification(externalIri, crawler.iri, List.of(PROV.Activity, AS.Update),
+				types, etag(externalIri));
+		return Optional.of(serializer.serialize(n));
+	}
+
+	/**
+	 * @param activityStream a parsed notification
+	 * @return true if this is a crawl or reprocessing re-announcing a resource, which asks processors that only act
+	 *         on new resources to run again
+	 */
+	public static boolean isReannouncement(JsonNode activityStream) {
+		JsonNode actor = activityStream.path("actor");
+		if (actor.isTextual()) return crawler.str.equals(actor.asText());
+		for (JsonNode a : actor) {
+			if (crawler.str.equals(a.asText())) return true;
+		}
+		return false;
+	}
+
+	private String etag(String externalIri) {
+		try {
+			HttpResponse<Void> res = http.send(HttpRequest.newBuilder(localhost(externalIri))
+					.method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+			return res.headers().firstValue("ETag").orElse(null);
+		} catch (IOException | URISyntaxException e) {
+			LOGGER.warn("Cannot get the ETag of {}", externalIri, e);
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
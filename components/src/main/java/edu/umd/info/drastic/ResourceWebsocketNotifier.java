@@ -3,10 +3,7 @@ package edu.umd.info.drastic;
 import static org.slf4j.LoggerFactory.getLogger;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
@@ -15,6 +12,7 @@ import javax.websocket.OnMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
+import org.eclipse.microprofile.config.ConfigProvider;
 import org.eclipse.microprofile.reactive.messaging.Acknowledgment;
 import org.eclipse.microprofile.reactive.messaging.Acknowledgment.Strategy;
 import org.eclipse.microprofile.reactive.messaging.Channel;
@@ -26,7 +24,6 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import io.smallrye.reactive.messaging.annotations.Blocking;
 import io.smallrye.reactive.messaging.kafka.Record;
 
 @ApplicationScoped
@@ -35,8 +32,9 @@ public class ResourceWebsocketNotifier {
 	
 	private static final Logger LOGGER = getLogger(ResourceWebsocketNotifier.class);
 
-	// Map of IRI to the queue of sessions interested.
-	private static ConcurrentMap<String, Queue<Session>> subscribers = new ConcurrentHashMap<>();
+	// Subscriptions of all sessions, shared by the endpoint instances.
+	private static final WebsocketFanout fanout = new WebsocketFanout(ConfigProvider.getConfig()
+			.getOptionalValue("trellis.websocket.max-queued", Integer.class).orElse(64));
 	
 	@Inject @Channel("makePagedDocuments") Emitter<String> emitter;
 
@@ -57,36 +55,35 @@ public class ResourceWebsocketNotifier {
 		}
 		String id = as.at("/subscribe").asText();
 		// subscribe this session
-		Queue<Session> sessions = subscribers.get(id);
-		if (sessions == null) {
-			sessions = new ArrayBlockingQueue<>(1000);
-			Queue<Session> actual = subscribers.putIfAbsent(id, sessions);
-			if(actual != null) {
-				sessions = actual;
-			}
-		}
-		if(!sessions.contains(s)) {
-			sessions.add(s);
-		}
+		fanout.subscribe(s.getId(), new SessionSink(s), id);
 	}
 	
 	@OnClose
 	public void onClose(Session s) {
-		for(Queue<Session> q : subscribers.values()) {
-			q.remove(s);
-		}
+		fanout.remove(s.getId());
 	}
 	
 	@Incoming("websocket")
-	@Blocking
 	@Acknowledgment(Strategy.PRE_PROCESSING)
     public void process(Record<String, String> record) {
-		Queue<Session> sessions = subscribers.get(record.key());
-		if(sessions == null) return;
-		for(Session s : sessions) {
-		   	if(s.isOpen()) {
-		   		s.getAsyncRemote().sendText(record.value());
-		   	}
+		fanout.publish(record.key(), record.value());
+	}
+
+	private static class SessionSink implements WebsocketFanout.Sink {
+		private final Session session;
+
+		SessionSink(Session session) {
+			this.session = session;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return session.isOpen();
+		}
+
+		@Override
+		public void send(String text, Consumer<Throwable> done) {
+			session.getAsyncRemote().sendText(text, result -> done.accept(result.getException()));
 		}
 	}
 }
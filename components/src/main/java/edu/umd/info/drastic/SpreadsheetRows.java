@@ -0,0 +1,122 @@
+package edu.umd.info.drastic;
+
+import static edu.umd.info.drastic.LDPHttpUtil.localhost;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.slf4j.Logger;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ * Streams the rows of the first sheet of an XLSX binary to a POI {@link SheetContentsHandler}, in constant memory
+ * whatever the number of rows. The workbook is opened in place from the local binary store; a binary stored
+ * elsewhere is first downloaded to a temporary file, as the zip container cannot be read from a stream.
+ * <p>
+ * The exception is the shared strings table, which POI holds in memory in full: a workbook whose shared strings
+ * part is larger uncompressed than the limit the caller passes is refused with an IOException before anything is
+ * loaded, instead of risking the heap of every processor on one oversized upload. Sheets written by Excel keep
+ * repeated cell text there, so the limit is on distinct text, not on rows.
+ *
+ * @author jansen
+ *
+ */
+class SpreadsheetRows {
+	private static final Logger LOGGER = getLogger(SpreadsheetRows.class);
+
+	private SpreadsheetRows() {
+	}
+
+	/**
+	 * Reads the first sheet of a spreadsheet binary.
+	 * @param binaryLoc the public binary IRI
+	 * @param engine finds the binary in the local binary store
+	 * @param rows receives the rows and cells
+	 * @param maxSharedStrings the largest uncompressed shared strings part to load, in bytes
+	 */
+	static void read(URI binaryLoc, FixityEngine engine, SheetContentsHandler rows, long maxSharedStrings)
+			throws Exception {
+		Optional<Path> local = engine.localFile(binaryLoc.toString());
+		if (local.isPresent()) {
+			read(local.get(), rows, maxSharedStrings);
+			return;
+		}
+		Path download = Files.createTempFile("sheet-", ".xlsx");
+		try {
+			download(binaryLoc, download);
+			read(download, rows, maxSharedStrings);
+		} finally {
+			try {
+				Files.deleteIfExists(download);
+			} catch (IOException e) {
+				LOGGER.warn("Cannot remove downloaded spreadsheet {}", download, e);
+			}
+		}
+	}
+
+	static void read(Path sheet, SheetContentsHandler rows, long maxSharedStrings) throws Exception {
+		try (OPCPackage pkg = OPCPackage.open(sheet.toFile(), PackageAccess.READ)) {
+			for (PackagePart part : pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType())) {
+				if (size(part, maxSharedStrings) > maxSharedStrings) {
+					throw new IOException("Shared strings of " + sheet + " exceed " + maxSharedStrings
+							+ " bytes, save the sheet with fewer distinct cell texts or raise the limit");
+				}
+			}
+			XSSFReader reader = new XSSFReader(pkg);
+			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+			XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+			if (!sheets.hasNext()) return;
+			try (InputStream in = sheets.next()) {
+				XMLReader parser = XMLHelper.newXMLReader();
+				parser.setContentHandler(
+						new XSSFSheetXMLHandler(reader.getStylesTable(), strings, rows, new DataFormatter(), false));
+				parser.parse(new InputSource(in));
+			}
+		}
+	}
+
+	/**
+	 * @return the uncompressed size of a part, counted up to just past the limit if the zip entry does not say
+	 */
+	private static long size(PackagePart part, long limit) throws IOException {
+		long size = part.getSize();
+		if (size >= 0) return size;
+		try (InputStream in = part.getInputStream()) {
+			byte[] buf = new byte[8192];
+			long count = 0;
+			for (int n; count <= limit && (n = in.read(buf)) >= 0;) {
+				count += n;
+			}
+			return count;
+		}
+	}
+
+	private static void download(URI binaryLoc, Path file)
+			throws IOException, InterruptedException, URISyntaxException {
+		HttpResponse<Path> res = HttpClient.newHttpClient().send(
+				HttpRequest.newBuilder(localhost(binaryLoc)).GET().build(), HttpResponse.BodyHandlers.ofFile(file));
+		if (res.statusCode() != 200) {
+			throw new IOException("Cannot get spreadsheet " + binaryLoc + ", response: " + res.statusCode());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package edu.umd.info.drastic;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
+
+/**
+ * Scales the strips of a {@link StripedImageSource} into a smaller image as they are decoded, top to bottom, so a
+ * derivative that is not encoded from strips can be made in the same pass that feeds the tile pyramid. Each strip is
+ * halved until it is within twice its share of the result, then drawn with bilinear interpolation.
+ *
+ * @author jansen
+ *
+ */
+class StripScaler implements Consumer<BufferedImage> {
+
+	private final BufferedImage target;
+	private final double scaleY;
+	private int y = 0;
+
+	/**
+	 * @param source the image the strips come from
+	 * @param profile the derivative, for its size
+	 */
+	StripScaler(StripedImageSource source, DerivativeProfile profile) {
+		int[] size = profile.scaledSize(source.getWidth(), source.getHeight());
+		this.target = new BufferedImage(size[0], size[1], BufferedImage.TYPE_INT_ARGB);
+		this.scaleY = (double) size[1] / source.getHeight();
+	}
+
+	@Override
+	public void accept(BufferedImage strip) {
+		int top = (int) Math.round(y * scaleY);
+		y += strip.getHeight();
+		int rows = (int) Math.round(y * scaleY) - top;
+		if (rows <= 0) return;
+		BufferedImage image = strip;
+		while (image.getWidth() / 2 >= target.getWidth() && image.getHeight() / 2 >= rows) {
+			image = draw(image, new BufferedImage(image.getWidth() / 2, image.getHeight() / 2,
+					BufferedImage.TYPE_INT_ARGB), 0, image.getWidth() / 2, image.getHeight() / 2);
+		}
+		draw(image, target, top, target.getWidth(), rows);
+	}
+
+	/**
+	 * @return the scaled image, complete once every strip was seen
+	 */
+	BufferedImage image() {
+		return target;
+	}
+
+	private static BufferedImage draw(BufferedImage image, BufferedImage dest, int top, int w, int h) {
+		Graphics2D g = dest.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(image, 0, top, w, h, null);
+		} finally {
+			g.dispose();
+		}
+		return dest;
+	}
+}
@@ -0,0 +1,314 @@
+package edu.umd.info.drastic;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+
+import org.w3c.dom.Node;
+
+/**
+ * A full resolution view of the first image in an {@link ImageReader} that decodes on demand, one horizontal strip at
+ * a time. Image writers that pull rows through {@link #getData(Rectangle)}, like the PNG writer, can then encode an
+ * image of any size while only one strip of decoded pixels is held in memory. The strip height is chosen so that a
+ * strip stays within the given byte budget.
+ * <p>
+ * A compressed TIFF can only be decoded from the start of one of its own strips or tiles, so strips are whole
+ * multiples of the file's RowsPerStrip or TileLength; otherwise every region read would inflate the same stored strip
+ * again, which for a single strip LZW or Deflate file makes the decode quadratic. When one stored strip is larger than
+ * the budget, as in a single strip file, each strip is one stored strip and the image is decoded once, whole; the
+ * bytes actually held are given by {@link #heldBytes(ImageReader, long)} so that admission can account for them.
+ *
+ * Not thread safe, like the reader it wraps.
+ *
+ * @author jansen
+ *
+ */
+public class StripedImageSource implements RenderedImage {
+
+	private static final String TIFF_METADATA = "javax_imageio_tiff_image_1.0";
+
+	private final ImageReader reader;
+	private final int width;
+	private final int height;
+	private final int stripHeight;
+	private final ImageTypeSpecifier type;
+	private final SampleModel sampleModel;
+
+	private int stripY = -1;
+	private BufferedImage strip;
+	private Consumer<BufferedImage> stripListener;
+
+	/**
+	 * @param reader a reader with its input set
+	 * @param stripBytes the approximate decoded bytes allowed per strip
+	 * @throws IOException if the image header cannot be read
+	 */
+	public StripedImageSource(ImageReader reader, long stripBytes) throws IOException {
+		this.reader = reader;
+		this.width = reader.getWidth(0);
+		this.height = reader.getHeight(0);
+		ImageTypeSpecifier raw = reader.getRawImageType(0);
+		this.type = raw != null ? raw : reader.getImageTypes(0).next();
+		this.sampleModel = type.getSampleModel(width, height);
+		this.stripHeight = stripHeight(width, height, bytesPerPixel(type), storedRows(reader), stripBytes);
+	}
+
+	private static int stripHeight(int width, int height, int bytesPerPixel, int storedRows, long stripBytes) {
+		long rowBytes = Math.max(1, (long) width * bytesPerPixel);
+		long rows = Math.max(storedRows, (stripBytes / rowBytes) / storedRows * storedRows);
+		return (int) Math.max(1, Math.min(height, rows));
+	}
+
+	/**
+	 * Gets the decoded bytes held per strip for an image and strip budget, which is more than the budget when a
+	 * stored strip or row of tiles is.
+	 * @param reader a reader with its input set
+	 * @param stripBytes the approximate decoded bytes allowed per strip
+	 */
+	static long heldBytes(ImageReader reader, long stripBytes) throws IOException {
+		int w = reader.getWidth(0);
+		ImageTypeSpecifier raw = reader.getRawImageType(0);
+		int bpp = raw != null ? bytesPerPixel(raw) : 4;
+		return (long) w * bpp * stripHeight(w, reader.getHeight(0), bpp, storedRows(reader), stripBytes);
+	}
+
+	/**
+	 * Gets the rows of the units a compressed TIFF is stored in, its TileLength or RowsPerStrip, which a region
+	 * read decodes whole. Other images, and uncompressed TIFFs, can be read from any row.
+	 */
+	static int storedRows(ImageReader reader) throws IOException {
+		if (reader.getOriginatingProvider() == null
+				|| !TIFF_METADATA.equals(reader.getOriginatingProvider().getNativeImageMetadataFormatName())) {
+			return 1;
+		}
+		IIOMetadata metadata = reader.getImageMetadata(0);
+		if (metadata == null) return 1;
+		long compression = 1;
+		long rowsPerStrip = Integer.MAX_VALUE;
+		long tileLength = 0;
+		Node ifd = metadata.getAsTree(TIFF_METADATA).getFirstChild();
+		for (Node field = ifd == null ? null : ifd.getFirstChild(); field != null; field = field.getNextSibling()) {
+			Node number = field.getAttributes() == null ? null : field.getAttributes().getNamedItem("number");
+			if (number == null) continue;
+			switch (number.getNodeValue()) {
+			case "259":
+				compression = fieldValue(field, compression);
+				break;
+			case "278":
+				rowsPerStrip = fieldValue(field, rowsPerStrip);
+				break;
+			case "323":
+				tileLength = fieldValue(field, tileLength);
+				break;
+			default:
+			}
+		}
+		if (compression == 1) return 1;
+		long rows = tileLength > 0 ? tileLength : rowsPerStrip;
+		return (int) Math.max(1, Math.min(rows, reader.getHeight(0)));
+	}
+
+	/**
+	 * Gets the first value of a TIFFField node, e.g. &lt;TIFFField&gt;&lt;TIFFShorts&gt;&lt;TIFFShort value="8"/&gt;.
+	 */
+	private static long fieldValue(Node field, long otherwise) {
+		Node values = field.getFirstChild();
+		Node value = values == null ? null : values.getFirstChild();
+		Node attr = value == null || value.getAttributes() == null ? null
+				: value.getAttributes().getNamedItem("value");
+		if (attr == null) return otherwise;
+		try {
+			return Long.parseLong(attr.getNodeValue());
+		} catch (NumberFormatException e) {
+			return otherwise;
+		}
+	}
+
+	/**
+	 * Estimates decoded bytes per pixel of an image type, rounded up to whole bytes.
+	 */
+	static int bytesPerPixel(ImageTypeSpecifier type) {
+		int bits = 0;
+		for (int b = 0; b < type.getNumBands(); b++) {
+			bits += type.getBitsPerBand(b);
+		}
+		return Math.max(1, (bits + 7) / 8);
+	}
+
+	int getStripHeight() {
+		return stripHeight;
+	}
+
+	/**
+	 * Sees every strip as it is decoded. A writer that pulls rows top to bottom, like the PNG writer, decodes each
+	 * strip exactly once and in order, so other outputs can be built in the same pass.
+	 * @param listener receives each decoded strip
+	 */
+	public void setStripListener(Consumer<BufferedImage> listener) {
+		this.stripListener = listener;
+	}
+
+	/**
+	 * Decodes every strip in order without encoding anything, for strip listeners.
+	 */
+	public void drain() {
+		for (int y = 0; y < height; y += stripHeight) {
+			getData(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+		}
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		Rectangle r = rect.intersection(getBounds());
+		int y0 = (r.y / stripHeight) * stripHeight;
+		if (r.y + r.height <= y0 + stripHeight) {
+			if (stripY != y0) {
+				strip = decode(new Rectangle(0, y0, width, Math.min(stripHeight, height - y0)));
+				stripY = y0;
+				if (stripListener != null) {
+					stripListener.accept(strip);
+				}
+			}
+			WritableRaster raster = strip.getRaster();
+			return raster.createChild(r.x, r.y - y0, r.width, r.height, r.x, r.y, null);
+		}
+		// spans strips, decode exactly what was asked for
+		return decode(r).getRaster().createTranslatedChild(r.x, r.y);
+	}
+
+	private BufferedImage decode(Rectangle region) {
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(region);
+		param.setDestinationType(type);
+		try {
+			return reader.read(0, param);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Rectangle getBounds() {
+		return new Rectangle(0, 0, width, height);
+	}
+
+	@Override
+	public Raster getData() {
+		return getData(getBounds());
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null) {
+			raster = Raster.createWritableRaster(sampleModel, null);
+		}
+		Rectangle r = raster.getBounds().intersection(getBounds());
+		for (int y = r.y; y < r.y + r.height; y += stripHeight) {
+			Raster part = getData(new Rectangle(r.x, y, r.width, Math.min(stripHeight, r.y + r.height - y)));
+			raster.setRect(part);
+		}
+		return raster;
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		return getData();
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return java.awt.Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return type.getColorModel();
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return height;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+}
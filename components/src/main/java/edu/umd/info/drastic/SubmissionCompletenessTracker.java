@@ -0,0 +1,250 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.reactive.messaging.Channel;
+import org.eclipse.microprofile.reactive.messaging.Emitter;
+import org.eclipse.microprofile.reactive.messaging.Incoming;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.quarkus.runtime.StartupEvent;
+import io.smallrye.reactive.messaging.kafka.Record;
+
+/**
+ * Tracks page TIFFs and their ACCESS and THUMBNAIL derivatives per document and requests paged document assembly
+ * for exactly those documents that have become complete, i.e. every page seen has both derivatives. A document is
+ * only requested once it has stayed complete for the settle period, so that pages still arriving and a lagging
+ * triplestore do not cause repeated rebuilds. A later change to a requested document starts a new round.
+ * <p>
+ * What has been seen is kept in two tables in the Trellis database, paged_document and paged_document_file, so all
+ * nodes of the consumer group share one view of each document wherever the records for its files land, and nothing
+ * is lost in a restart: records are acknowledged only once they are recorded. Each node sweeps the tables; a
+ * document is marked requested with a conditional update, so only one node requests it.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class SubmissionCompletenessTracker {
+	private static final Logger LOGGER = getLogger(SubmissionCompletenessTracker.class);
+
+	static final String PAGE = "page";
+	static final String ACCESS = "access";
+	static final String THUMBNAIL = "thumbnail";
+
+	@Inject
+	@ConfigProperty(name = "trellis.paged-documents.auto", defaultValue = "true")
+	boolean auto;
+
+	@Inject
+	@ConfigProperty(name = "trellis.paged-documents.settle-ms", defaultValue = "30000")
+	long settleMs;
+
+	@Inject
+	@ConfigProperty(name = "trellis.paged-documents.sweep-ms", defaultValue = "5000")
+	long sweepMs;
+
+	@Inject
+	@Channel("makePagedDocuments")
+	Emitter<String> emitter;
+
+	@Inject
+	DerivativePolicy policy;
+
+	@Inject
+	DataSource dataSource;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private ScheduledExecutorService scheduler;
+
+	void onStart(@Observes StartupEvent event) {
+		if (!auto) return;
+		try (Connection c = dataSource.getConnection(); Statement st = c.createStatement()) {
+			st.execute("CREATE TABLE IF NOT EXISTS paged_document (submission VARCHAR(1024) NOT NULL, "
+					+ "document VARCHAR(512) NOT NULL, derivatives BOOLEAN NOT NULL, last_change BIGINT NOT NULL, "
+					+ "requested BOOLEAN NOT NULL, PRIMARY KEY (submission, document))");
+			st.execute("CREATE INDEX IF NOT EXISTS paged_document_pending ON paged_document (last_change) "
+					+ "WHERE NOT requested");
+			st.execute("CREATE TABLE IF NOT EXISTS paged_document_file (submission VARCHAR(1024) NOT NULL, "
+					+ "document VARCHAR(512) NOT NULL, page VARCHAR(512) NOT NULL, kind VARCHAR(16) NOT NULL, "
+					+ "PRIMARY KEY (submission, document, page, kind))");
+		} catch (SQLException e) {
+			throw new IllegalStateException("Cannot create paged document tracking tables", e);
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()), sweepMs, sweepMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		if (scheduler != null) scheduler.shutdown();
+	}
+
+	@Incoming("completeness-binaries")
+	public void binary(Record<String, String> record) throws SQLException {
+		if (!auto) return;
+		String pageId = NPSFilenameUtil.getPageOrDerivativePageID(record.key());
+		String[] doc = document(record.key());
+		if (pageId == null || doc == null) return;
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("INSERT INTO paged_document_file "
+					+ "(submission, document, page, kind) VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING")) {
+				ps.setString(1, doc[0]);
+				ps.setString(2, doc[1]);
+				ps.setString(3, pageId);
+				ps.setString(4, kind(record.key()));
+				ps.executeUpdate();
+			}
+			changed(c, doc, policy.isEager(record.key()));
+		}
+	}
+
+	@Incoming("completeness-objects")
+	public void object(Record<String, String> record) throws SQLException {
+		if (!auto || NPSFilenameUtil.getPageOrDerivativePageID(record.key()) == null) return;
+		JsonNode as;
+		try {
+			as = mapper.readTree(record.value());
+		} catch (JsonProcessingException e) {
+			LOGGER.error("cannot parse activitystream", e);
+			return;
+		}
+		JsonNode types = as.at("/type");
+		if (!types.isArray() || StreamSupport.stream(((ArrayNode) types).spliterator(), false)
+				.noneMatch(t -> "Delete".equals(t.asText()))) {
+			return;
+		}
+		String[] doc = document(record.key());
+		if (doc == null) return;
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("DELETE FROM paged_document_file "
+					+ "WHERE submission = ? AND document = ? AND page = ? AND kind = ?")) {
+				ps.setString(1, doc[0]);
+				ps.setString(2, doc[1]);
+				ps.setString(3, NPSFilenameUtil.getPageOrDerivativePageID(record.key()));
+				ps.setString(4, kind(record.key()));
+				if (ps.executeUpdate() == 0) return;
+			}
+			changed(c, doc, policy.isEager(record.key()));
+		}
+	}
+
+	/**
+	 * Starts the settle period of a document over, and a new round if it was requested.
+	 */
+	private static void changed(Connection c, String[] doc, boolean derivatives) throws SQLException {
+		try (PreparedStatement ps = c.prepareStatement("INSERT INTO paged_document "
+				+ "(submission, document, derivatives, last_change, requested) VALUES (?, ?, ?, ?, FALSE) "
+				+ "ON CONFLICT (submission, document) DO UPDATE SET last_change = EXCLUDED.last_change, "
+				+ "derivatives = EXCLUDED.derivatives, requested = FALSE")) {
+			ps.setString(1, doc[0]);
+			ps.setString(2, doc[1]);
+			ps.setBoolean(3, derivatives);
+			ps.setLong(4, System.currentTimeMillis());
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Requests paged documents for the documents that are complete and have settled, one request per submission.
+	 * @param now the time to measure the settle period up to
+	 * @return the documents requested by submission
+	 */
+	Map<String, List<String>> sweep(long now) {
+		Map<String, List<String>> ready = new TreeMap<>();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement select = c.prepareStatement("SELECT d.submission, d.document, d.last_change "
+					+ "FROM paged_document d WHERE NOT d.requested AND d.last_change <= ? "
+					+ "AND EXISTS (SELECT 1 FROM paged_document_file p WHERE p.submission = d.submission "
+					+ "AND p.document = d.document AND p.kind = ?) "
+					+ "AND (NOT d.derivatives OR NOT EXISTS (SELECT 1 FROM paged_document_file p "
+					+ "WHERE p.submission = d.submission AND p.document = d.document AND p.kind = ? "
+					+ "AND (SELECT COUNT(*) FROM paged_document_file f WHERE f.submission = p.submission "
+					+ "AND f.document = p.document AND f.page = p.page AND f.kind IN (?, ?)) < 2))");
+					PreparedStatement mark = c.prepareStatement("UPDATE paged_document SET requested = TRUE "
+							+ "WHERE submission = ? AND document = ? AND last_change = ? AND NOT requested")) {
+				select.setLong(1, now - settleMs);
+				select.setString(2, PAGE);
+				select.setString(3, PAGE);
+				select.setString(4, ACCESS);
+				select.setString(5, THUMBNAIL);
+				try (ResultSet rs = select.executeQuery()) {
+					while (rs.next()) {
+						// another node, or a change since the select, wins
+						mark.setString(1, rs.getString(1));
+						mark.setString(2, rs.getString(2));
+						mark.setLong(3, rs.getLong(3));
+						if (mark.executeUpdate() == 1) {
+							ready.computeIfAbsent(rs.getString(1), k -> new ArrayList<>()).add(rs.getString(2));
+						}
+					}
+				}
+			}
+			for (Map.Entry<String, List<String>> e : ready.entrySet()) {
+				ObjectNode req = mapper.createObjectNode();
+				req.put("submission", e.getKey());
+				ArrayNode docs = req.putArray("documents");
+				e.getValue().forEach(docs::add);
+				LOGGER.info("Requesting {} completed paged documents for {}", e.getValue().size(), e.getKey());
+				emitter.send(mapper.writeValueAsString(req));
+			}
+		} catch (Exception e) {
+			LOGGER.error("Paged document completeness sweep failed", e);
+		}
+		return ready;
+	}
+
+	/**
+	 * @return the submission URL, with a trailing slash, and the document ID of a page or derivative binary
+	 */
+	private static String[] document(String binaryUri) {
+		String docId = NPSFilenameUtil.getPageOrDerivativeDocumentID(binaryUri);
+		if (docId == null) return null;
+		try {
+			return new String[] { NPSFilenameUtil.getSubmissionUrl(new URL(binaryUri)).toExternalForm() + "/", docId };
+		} catch (MalformedURLException | ArrayIndexOutOfBoundsException e) {
+			LOGGER.debug("not a submission binary: {}", binaryUri);
+			return null;
+		}
+	}
+
+	private static String kind(String binaryUri) {
+		if (NPSFilenameUtil.PAGE_ACCESS_FILE_PREDICATE.test(binaryUri)) {
+			return ACCESS;
+		} else if (NPSFilenameUtil.PAGE_THUMBNAIL_FILE_PREDICATE.test(binaryUri)) {
+			return THUMBNAIL;
+		}
+		return PAGE;
+	}
+}
@@ -0,0 +1,232 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+import static org.trellisldp.api.TrellisUtils.TRELLIS_DATA_PREFIX;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.trellisldp.api.RDFFactory;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Enumerates a containment subtree straight from the trellis-jdbc resource table, with one recursive query over
+ * the parent column (is_part_of) that is streamed through a server-side cursor, trellis.subtree.fetch-size rows at
+ * a time. Results can be limited by depth, interaction model and a glob over the resource path, and can be ordered
+ * by IRI and started after a given IRI, so a long walk resumes where it stopped.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class SubtreeEnumerator {
+	private static final Logger LOGGER = getLogger(SubtreeEnumerator.class);
+
+	private static final RDF rdf = RDFFactory.getInstance();
+
+	@Inject
+	@ConfigProperty(name = "trellis.subtree.enabled", defaultValue = "true")
+	boolean enabled;
+
+	@Inject
+	@ConfigProperty(name = "trellis.subtree.fetch-size", defaultValue = "5000")
+	int fetchSize;
+
+	@Inject
+	DataSource dataSource;
+
+	void onStart(@Observes StartupEvent event) {
+		if (!enabled) return;
+		// resource is trellis-jdbc's table and may be large: the index is built concurrently, without blocking
+		// writes, and in the background, without holding up startup
+		Thread t = new Thread(this::indexParents, "subtree-index");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Indexes the resource table by parent, which every step of the recursion looks children up by.
+	 */
+	private void indexParents() {
+		try (Connection c = dataSource.getConnection(); Statement st = c.createStatement()) {
+			// CREATE INDEX CONCURRENTLY cannot run inside a transaction
+			c.setAutoCommit(true);
+			// an interrupted concurrent build leaves an invalid index, which IF NOT EXISTS would keep
+			try (ResultSet rs = st.executeQuery("SELECT i.indisvalid FROM pg_class c JOIN pg_index i "
+					+ "ON i.indexrelid = c.oid WHERE c.relname = 'resource_is_part_of_subtree'")) {
+				if (rs.next() && !rs.getBoolean(1)) {
+					LOGGER.info("Rebuilding the invalid resource parent index");
+					st.execute("DROP INDEX CONCURRENTLY IF EXISTS resource_is_part_of_subtree");
+				}
+			}
+			st.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS resource_is_part_of_subtree ON resource (is_part_of)");
+		} catch (SQLException e) {
+			LOGGER.warn("Cannot index resource parents, subtree enumeration will be slow", e);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * A query over a subtree, built by chaining.
+	 */
+	public static class Query {
+		final String root;
+		int maxDepth = Integer.MAX_VALUE;
+		final List<String> models = new ArrayList<String>();
+		String pathGlob = null;
+		boolean ordered = false;
+		String after = null;
+
+		/**
+		 * @param root the internal IRI of the subtree root, e.g. trellis:data/submissions/ABC123
+		 */
+		public Query(IRI root) {
+			this.root = root.getIRIString();
+		}
+
+		/** Children of the root are depth 1; depth 0 is the root alone. */
+		public Query maxDepth(int depth) {
+			this.maxDepth = depth;
+			return this;
+		}
+
+		public Query models(Collection<IRI> interactionModels) {
+			interactionModels.forEach(m -> models.add(m.getIRIString()));
+			return this;
+		}
+
+		/** A glob over the path below trellis:data/, * for any characters and ? for one, e.g. *_P???.tif */
+		public Query pathGlob(String glob) {
+			this.pathGlob = glob;
+			return this;
+		}
+
+		/** Orders by IRI and starts after the given one, if not null. */
+		public Query orderedAfter(String internalIri) {
+			this.ordered = true;
+			this.after = internalIri;
+			return this;
+		}
+	}
+
+	/**
+	 * A resource in a subtree.
+	 */
+	public static class Entry {
+		public final IRI subject;
+		public final IRI interactionModel;
+		public final int depth;
+
+		Entry(IRI subject, IRI interactionModel, int depth) {
+			this.subject = subject;
+			this.interactionModel = interactionModel;
+			this.depth = depth;
+		}
+
+		/**
+		 * @param base the public base URL, without trailing slash
+		 */
+		public String external(String base) {
+			return base + "/" + subject.getIRIString().substring(TRELLIS_DATA_PREFIX.length());
+		}
+	}
+
+	/**
+	 * Streams the subtree to a consumer, on the calling thread.
+	 * @return the number of resources passed on
+	 */
+	public long enumerate(Query q, Consumer<Entry> consumer) throws SQLException {
+		StringBuilder sql = new StringBuilder("WITH RECURSIVE subtree (subject, interaction_model, depth) AS ("
+				+ "SELECT subject, interaction_model, 0 FROM resource WHERE subject = ? AND NOT deleted "
+				+ "UNION ALL "
+				+ "SELECT r.subject, r.interaction_model, s.depth + 1 FROM resource r "
+				+ "JOIN subtree s ON r.is_part_of = s.subject WHERE NOT r.deleted AND s.depth < ?) "
+				+ "SELECT subject, interaction_model, depth FROM subtree WHERE TRUE");
+		if (!q.models.isEmpty()) {
+			sql.append(" AND interaction_model IN (").append(String.join(",", q.models.stream().map(m -> "?")
+					.toArray(String[]::new))).append(")");
+		}
+		if (q.pathGlob != null) sql.append(" AND subject LIKE ? ESCAPE '\\'");
+		if (q.after != null) sql.append(" AND subject > ?");
+		if (q.ordered) sql.append(" ORDER BY subject");
+		long count = 0;
+		try (Connection c = dataSource.getConnection()) {
+			boolean autoCommit = c.getAutoCommit();
+			c.setAutoCommit(false); // Postgres only uses a cursor inside a transaction
+			try (PreparedStatement ps = c.prepareStatement(sql.toString(), ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY)) {
+				ps.setFetchSize(fetchSize);
+				int i = 1;
+				ps.setString(i++, q.root);
+				ps.setInt(i++, q.maxDepth);
+				for (String m : q.models) {
+					ps.setString(i++, m);
+				}
+				if (q.pathGlob != null) ps.setString(i++, TRELLIS_DATA_PREFIX + likePattern(q.pathGlob));
+				if (q.after != null) ps.setString(i++, q.after);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						consumer.accept(new Entry(rdf.createIRI(rs.getString(1)),
+								rdf.createIRI(rs.getString(2)), rs.getInt(3)));
+						count++;
+					}
+				}
+			} finally {
+				c.rollback();
+				c.setAutoCommit(autoCommit);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the internal IRI for a public resource IRI, e.g. trellis:data/submissions/ABC123
+	 */
+	static IRI internal(String external) {
+		String path = URI.create(external).getPath();
+		if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+		return rdf.createIRI(TRELLIS_DATA_PREFIX + (path.isEmpty() ? "" : path.substring(1)));
+	}
+
+	/**
+	 * @return the public base URL of a resource IRI, scheme and authority
+	 */
+	static String base(String external) {
+		URI uri = URI.create(external);
+		return uri.getScheme() + "://" + uri.getRawAuthority();
+	}
+
+	static String likePattern(String glob) {
+		StringBuilder like = new StringBuilder(glob.length() + 8);
+		for (char ch : glob.toCharArray()) {
+			switch (ch) {
+			case '*': like.append('%'); break;
+			case '?': like.append('_'); break;
+			case '%': case '_': case '\\': like.append('\\').append(ch); break;
+			default: like.append(ch);
+			}
+		}
+		return like.toString();
+	}
+}
@@ -0,0 +1,292 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.Timer;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import edu.umd.info.drastic.NPSVocabulary.TIKA;
+
+/**
+ * A shared client for the Tika named entity recognition service. Callers enqueue description text and get back a
+ * future for the entities found. Requests are pipelined over one pooled HTTP client, with the number of requests in
+ * flight adjusted from observed Tika latency (additive increase, multiplicative decrease). When callers outpace Tika,
+ * short descriptions waiting in the queue are packed into a single multi-paragraph request and each phrase is given
+ * back to the descriptions where it occurs as whole words, by its character offsets in the packed text.
+ *
+ * Queue depth, in-flight requests and time-to-entities are published as metrics.
+ *
+ * @author jansen
+ *
+ */
+@ApplicationScoped
+public class TikaNERClient {
+	private static final Logger LOGGER = getLogger(TikaNERClient.class);
+
+	/** Separates packed descriptions so that entities never span two of them. */
+	static final String BATCH_SEPARATOR = "\n\n\n";
+
+	@Inject
+	@ConfigProperty(name = "trellis.tika-baseurl", defaultValue = "http://tika:9998")
+	URI tikaBaseURL;
+
+	@Inject
+	@ConfigProperty(name = "trellis.tika-ner.min-concurrency", defaultValue = "1")
+	int minConcurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.tika-ner.max-concurrency", defaultValue = "16")
+	int maxConcurrency;
+
+	@Inject
+	@ConfigProperty(name = "trellis.tika-ner.target-latency-ms", defaultValue = "1000")
+	long targetLatencyMs;
+
+	/** Descriptions shorter than this may be packed together. Zero disables packing. */
+	@Inject
+	@ConfigProperty(name = "trellis.tika-ner.batch-max-chars", defaultValue = "8000")
+	int batchMaxChars;
+
+	@Inject
+	MetricRegistry metrics;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private volatile int limit;
+
+	private ExecutorService executorService;
+
+	private HttpClient http;
+
+	private Timer timeToEntities;
+
+	@PostConstruct
+	void initialize() {
+		limit = Math.max(1, minConcurrency);
+		executorService = Executors.newFixedThreadPool(Math.max(2, maxConcurrency / 4));
+		http = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(5))
+				.version(HttpClient.Version.HTTP_1_1)
+				.executor(executorService)
+				.build();
+		timeToEntities = metrics.timer("tika-ner-time-to-entities");
+		metrics.gauge("tika-ner-queue-depth", queued, AtomicInteger::get);
+		metrics.gauge("tika-ner-in-flight", inFlight, AtomicInteger::get);
+		metrics.gauge("tika-ner-concurrency-limit", this, c -> c.limit);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * Queues a description for named entity recognition.
+	 * @param fulltext the description text
+	 * @return the proposed entity phrases for each entity type
+	 */
+	public CompletableFuture<Map<TIKA, List<String>>> extract(String fulltext) {
+		Pending p = new Pending(fulltext);
+		queue.add(p);
+		queued.incrementAndGet();
+		dispatch();
+		return p.result;
+	}
+
+	private synchronized void dispatch() {
+		while (!queue.isEmpty() && inFlight.get() < limit) {
+			inFlight.incrementAndGet();
+			send(nextBatch());
+		}
+	}
+
+	private List<Pending> nextBatch() {
+		List<Pending> batch = new ArrayList<>();
+		int chars = 0;
+		Pending p;
+		while ((p = queue.peek()) != null) {
+			int len = p.text.length();
+			if (!batch.isEmpty() && (len >= batchMaxChars || chars + len > batchMaxChars)) {
+				break;
+			}
+			queue.poll();
+			queued.decrementAndGet();
+			batch.add(p);
+			chars += len + BATCH_SEPARATOR.length();
+			if (len >= batchMaxChars) {
+				break; // long descriptions always go alone
+			}
+		}
+		return batch;
+	}
+
+	private void send(List<Pending> batch) {
+		String body = batch.size() == 1 ? batch.get(0).text
+				: batch.stream().map(p -> p.text).reduce((a, b) -> a + BATCH_SEPARATOR + b).get();
+		HttpRequest req = HttpRequest.newBuilder(tikaBaseURL.resolve("/meta"))
+				.PUT(BodyPublishers.ofString(body))
+				.header("Accept", "application/json")
+				.build();
+		long start = System.nanoTime();
+		http.sendAsync(req, BodyHandlers.ofString()).whenComplete((res, err) -> {
+			long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+			inFlight.decrementAndGet();
+			adjustLimit(err == null && res.statusCode() == 200, elapsedMs);
+			try {
+				if (err != null) {
+					fail(batch, err);
+				} else if (res.statusCode() != 200) {
+					fail(batch, new IOException("Tika NER request failed with status " + res.statusCode()));
+				} else {
+					complete(batch, res);
+				}
+			} finally {
+				dispatch();
+			}
+		});
+	}
+
+	private synchronized void adjustLimit(boolean ok, long elapsedMs) {
+		int l = limit;
+		if (!ok || elapsedMs > targetLatencyMs) {
+			limit = Math.max(minConcurrency, Math.max(1, l * 3 / 4));
+		} else if (l < maxConcurrency) {
+			limit = l + 1;
+		}
+		if (l != limit) {
+			LOGGER.debug("Tika NER concurrency {} -> {} ({} ms)", l, limit, elapsedMs);
+		}
+	}
+
+	private void complete(List<Pending> batch, HttpResponse<String> res) {
+		Map<TIKA, List<String>> entities;
+		try {
+			entities = parse(res.body());
+		} catch (IOException e) {
+			fail(batch, e);
+			return;
+		}
+		List<String> texts = new ArrayList<>();
+		batch.forEach(p -> texts.add(p.text));
+		List<Map<TIKA, List<String>>> split = attribute(texts, entities);
+		for (int i = 0; i < batch.size(); i++) {
+			Pending p = batch.get(i);
+			timeToEntities.update(Duration.ofNanos(System.nanoTime() - p.enqueued));
+			p.result.complete(split.get(i));
+		}
+	}
+
+	/**
+	 * Splits the entities found in packed descriptions back to the descriptions. Each occurrence of a phrase as whole
+	 * words in the packed text is located by its offset, and the phrase goes to the description that offset falls in,
+	 * so a phrase is not given to a description that merely contains it inside a longer word.
+	 * @param texts the descriptions, in the order they were packed with {@link #BATCH_SEPARATOR}
+	 * @param entities the entities found in the packed text
+	 * @return the entities of each description
+	 */
+	static List<Map<TIKA, List<String>>> attribute(List<String> texts, Map<TIKA, List<String>> entities) {
+		List<Map<TIKA, List<String>>> result = new ArrayList<>();
+		if (texts.size() == 1) {
+			result.add(new EnumMap<>(entities));
+			return result;
+		}
+		String packed = String.join(BATCH_SEPARATOR, texts);
+		int[] starts = new int[texts.size()];
+		for (int i = 1; i < texts.size(); i++) {
+			starts[i] = starts[i - 1] + texts.get(i - 1).length() + BATCH_SEPARATOR.length();
+		}
+		texts.forEach(t -> result.add(new EnumMap<>(TIKA.class)));
+		for (Map.Entry<TIKA, List<String>> e : entities.entrySet()) {
+			for (String phrase : e.getValue()) {
+				for (int at = packed.indexOf(phrase); at >= 0; at = packed.indexOf(phrase, at + 1)) {
+					int end = at + phrase.length();
+					if (!isWordBoundary(packed, at) || !isWordBoundary(packed, end)) continue;
+					int i = Arrays.binarySearch(starts, at);
+					i = i >= 0 ? i : -i - 2;
+					if (end > starts[i] + texts.get(i).length()) continue;
+					List<String> phrases = result.get(i).computeIfAbsent(e.getKey(), k -> new ArrayList<>());
+					if (!phrases.contains(phrase)) phrases.add(phrase);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean isWordBoundary(String text, int offset) {
+		return offset == 0 || offset == text.length() || !Character.isLetterOrDigit(text.charAt(offset - 1))
+				|| !Character.isLetterOrDigit(text.charAt(offset));
+	}
+
+	private void fail(List<Pending> batch, Throwable err) {
+		LOGGER.warn("Tika NER request for {} description(s) failed", batch.size(), err);
+		for (Pending p : batch) {
+			p.result.completeExceptionally(err instanceof CompletionException ? err : new CompletionException(err));
+		}
+	}
+
+	Map<TIKA, List<String>> parse(String json) throws IOException {
+		JsonNode js = mapper.readTree(json);
+		Map<TIKA, List<String>> result = new EnumMap<>(TIKA.class);
+		for (TIKA key : TIKA.values()) {
+			JsonNode n = js.get(key.name());
+			if (n == null) continue;
+			List<String> phrases = new ArrayList<>();
+			if (n.isArray()) {
+				n.forEach(v -> phrases.add(v.asText()));
+			} else {
+				phrases.add(n.asText());
+			}
+			phrases.removeIf(phrase -> phrase.trim().length() == 0);
+			if (!phrases.isEmpty()) {
+				result.put(key, phrases);
+			}
+		}
+		return result;
+	}
+
+	private static class Pending {
+		final String text;
+		final long enqueued = System.nanoTime();
+		final CompletableFuture<Map<TIKA, List<String>>> result = new CompletableFuture<>();
+
+		Pending(String text) {
+			this.text = text;
+		}
+	}
+}
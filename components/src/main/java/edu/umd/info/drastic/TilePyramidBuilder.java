@@ -0,0 +1,195 @@
+package edu.umd.info.drastic;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Builds a static IIIF Image API 3 level-0 tile pyramid from rows of an image delivered top to bottom, in a single
+ * pass. Each level buffers one row of tiles; when that row is full its tiles are written and the row is averaged
+ * 2x2 into the next level down, until a level fits in a single tile. Memory is therefore about twice one row of
+ * full resolution tiles, whatever the image height.
+ *
+ * Tiles are written with canonical v3 paths ({x},{y},{w},{h}/{w},{h}/0/default.jpg), followed by info.json.
+ *
+ * @author jansen
+ *
+ */
+public class TilePyramidBuilder {
+
+	static final String CONTEXT = "http://iiif.io/api/image/3/context.json";
+
+	/** Receives the pyramid files. */
+	public interface TileSink {
+		void put(String path, byte[] data, String mediaType) throws IOException;
+	}
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String id;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final TileSink sink;
+	private final List<Level> levels = new ArrayList<Level>();
+
+	/**
+	 * @param id the image service id, written to info.json
+	 * @param width full image width
+	 * @param height full image height
+	 * @param tileSize tile edge length in pixels
+	 * @param sink where tiles go
+	 */
+	public TilePyramidBuilder(String id, int width, int height, int tileSize, TileSink sink) {
+		this.id = id;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.sink = sink;
+		int w = width, h = height, scale = 1;
+		while (true) {
+			levels.add(new Level(w, h, scale));
+			if (w <= tileSize && h <= tileSize) break;
+			w = (w + 1) / 2;
+			h = (h + 1) / 2;
+			scale *= 2;
+		}
+	}
+
+	/**
+	 * Estimates the bytes held while building, for admission control.
+	 */
+	static long estimateBytes(int width, int tileSize) {
+		return 2L * 2 * tileSize * (long) width * 4;
+	}
+
+	/**
+	 * Adds the next rows of the full resolution image.
+	 * @param rows the rows, as wide as the image, continuing where the last call left off
+	 */
+	public void accept(BufferedImage rows) throws IOException {
+		int[] rgb = rows.getRGB(0, 0, rows.getWidth(), rows.getHeight(), null, 0, rows.getWidth());
+		accept(0, rgb, rows.getHeight());
+	}
+
+	/**
+	 * Writes any remaining partial rows and info.json.
+	 */
+	public void finish() throws IOException {
+		for (int i = 0; i < levels.size(); i++) {
+			if (levels.get(i).filled > 0) {
+				emit(i);
+			}
+		}
+		sink.put("info.json", info().toString().getBytes("UTF-8"), "application/ld+json;profile=\"" + CONTEXT + "\"");
+	}
+
+	private void accept(int index, int[] rgb, int rows) throws IOException {
+		Level level = levels.get(index);
+		int offset = 0;
+		while (offset < rows) {
+			int n = Math.min(rows - offset, tileSize - level.filled);
+			System.arraycopy(rgb, offset * level.width, level.band, level.filled * level.width, n * level.width);
+			level.filled += n;
+			offset += n;
+			if (level.filled == tileSize || level.bandY + level.filled == level.height) {
+				emit(index);
+			}
+		}
+	}
+
+	private void emit(int index) throws IOException {
+		Level level = levels.get(index);
+		int rows = level.filled;
+		for (int x = 0; x < level.width; x += tileSize) {
+			int tw = Math.min(tileSize, level.width - x);
+			BufferedImage tile = new BufferedImage(tw, rows, BufferedImage.TYPE_INT_RGB);
+			tile.setRGB(0, 0, tw, rows, level.band, x, level.width);
+			byte[] jpg = encode(tile);
+			int s = level.scale;
+			int rx = x * s, ry = level.bandY * s;
+			int rw = Math.min(tileSize * s, width - rx), rh = Math.min(tileSize * s, height - ry);
+			sink.put(rx + "," + ry + "," + rw + "," + rh + "/" + tw + "," + rows + "/0/default.jpg", jpg, "image/jpeg");
+			if (rw == width && rh == height) {
+				sink.put("full/" + tw + "," + rows + "/0/default.jpg", jpg, "image/jpeg");
+			}
+		}
+		if (index + 1 < levels.size()) {
+			int nw = levels.get(index + 1).width;
+			int nrows = (rows + 1) / 2;
+			accept(index + 1, halve(level.band, level.width, rows, nw, nrows), nrows);
+		}
+		level.bandY += rows;
+		level.filled = 0;
+	}
+
+	/**
+	 * Averages 2x2 blocks of packed RGB pixels; odd edges repeat the last row or column.
+	 */
+	static int[] halve(int[] src, int w, int h, int nw, int nh) {
+		int[] dst = new int[nw * nh];
+		for (int y = 0; y < nh; y++) {
+			int y0 = 2 * y, y1 = Math.min(h - 1, y0 + 1);
+			for (int x = 0; x < nw; x++) {
+				int x0 = 2 * x, x1 = Math.min(w - 1, x0 + 1);
+				int a = src[y0 * w + x0], b = src[y0 * w + x1], c = src[y1 * w + x0], d = src[y1 * w + x1];
+				int r = (((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) / 4;
+				int g = (((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) / 4;
+				int bl = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) / 4;
+				dst[y * nw + x] = (r << 16) | (g << 8) | bl;
+			}
+		}
+		return dst;
+	}
+
+	private static byte[] encode(BufferedImage tile) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(tile, "jpg", out);
+		return out.toByteArray();
+	}
+
+	ObjectNode info() {
+		ObjectNode info = mapper.createObjectNode();
+		info.put("@context", CONTEXT);
+		info.put("id", id);
+		info.put("type", "ImageService3");
+		info.put("protocol", "http://iiif.io/api/image");
+		info.put("profile", "level0");
+		info.put("width", width);
+		info.put("height", height);
+		ObjectNode tiles = info.putArray("tiles").addObject();
+		tiles.put("width", tileSize);
+		tiles.put("height", tileSize);
+		ArrayNode scaleFactors = tiles.putArray("scaleFactors");
+		levels.forEach(l -> scaleFactors.add(l.scale));
+		Level smallest = levels.get(levels.size() - 1);
+		ObjectNode size = info.putArray("sizes").addObject();
+		size.put("width", smallest.width);
+		size.put("height", smallest.height);
+		return info;
+	}
+
+	private class Level {
+		final int width;
+		final int height;
+		final int scale;
+		final int[] band;
+		int filled = 0;
+		int bandY = 0;
+
+		Level(int width, int height, int scale) {
+			this.width = width;
+			this.height = height;
+			this.scale = scale;
+			this.band = new int[width * Math.min(tileSize, height)];
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package edu.umd.info.drastic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.BlankNode;
+import org.apache.commons.rdf.api.BlankNodeOrIRI;
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.Literal;
+import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.Triple;
+import org.trellisldp.api.RDFFactory;
+
+import edu.umd.info.drastic.FixityEngine.ReadThrottle;
+import edu.umd.info.drastic.NPSVocabulary.NPS;
+
+/**
+ * A chunk-level fixity manifest: the SHA-256 of every fixed-size chunk of a binary and the Merkle root over them.
+ * Leaves are H(0x00 || chunk) and inner nodes H(0x01 || left || right), with an odd last node carried up, so a leaf
+ * can never be passed off as a node. Chunks are hashed in parallel on a fork-join pool, and a verification that
+ * checks chunks independently can skip those already verified and name the byte ranges that no longer match.
+ * <p>
+ * The manifest is stored as one more PREMIS fixity of the binary, typed nps:TreeHashSHA256, with the root as
+ * rdf:value, the chunk size and the chunk digests as a space separated hex list.
+ *
+ * @author jansen
+ *
+ */
+public class TreeHash {
+
+	private static final RDF rdf = RDFFactory.getInstance();
+
+	private static final int READ_SIZE = 1024 * 1024;
+
+	final long chunkSize;
+	final byte[][] leaves;
+	final byte[] root;
+
+	TreeHash(long chunkSize, byte[][] leaves) {
+		this.chunkSize = chunkSize;
+		this.leaves = leaves;
+		this.root = root(leaves);
+	}
+
+	public String getRoot() {
+		return Hex.encodeHexString(root);
+	}
+
+	public int getChunkCount() {
+		return leaves.length;
+	}
+
+	/**
+	 * Computes the manifest of a file, one fork-join task per chunk.
+	 */
+	static TreeHash compute(Path file, long chunkSize, ForkJoinPool pool, ReadThrottle throttle) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			int chunks = (int) Math.max(1, (ch.size() + chunkSize - 1) / chunkSize);
+			byte[][] leaves = new byte[chunks][];
+			invoke(pool, new ChunkTask(ch, chunkSize, 0, chunks, throttle, i -> true, (i, leaf) -> leaves[i] = leaf));
+			return new TreeHash(chunkSize, leaves);
+		}
+	}
+
+	/**
+	 * Verifies a file against this manifest, chunks in parallel.
+	 * @param verified chunks known good, e.g. from an interrupted run; chunks found good are added
+	 * @param progress called after each good chunk, with the verified set, e.g. to checkpoint it
+	 * @return the byte ranges, start inclusive and end exclusive, of the chunks that do not match
+	 */
+	List<long[]> verify(Path file, ForkJoinPool pool, ReadThrottle throttle, BitSet verified,
+			Runnable progress) throws IOException {
+		List<long[]> corrupt = new ArrayList<long[]>();
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = ch.size();
+			int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+			if (chunks != leaves.length) {
+				corrupt.add(new long[] { Math.min(size, (long) leaves.length * chunkSize),
+						Math.max(size, (long) leaves.length * chunkSize) });
+			}
+			int common = Math.min(chunks, leaves.length);
+			invoke(pool, new ChunkTask(ch, chunkSize, 0, common, throttle, i -> !verified.get(i), (i, leaf) -> {
+				if (Arrays.equals(leaf, leaves[i])) {
+					synchronized (verified) {
+						verified.set(i);
+					}
+					progress.run();
+				} else {
+					synchronized (corrupt) {
+						corrupt.add(new long[] { i * chunkSize, Math.min(size, (i + 1) * chunkSize) });
+					}
+				}
+			}));
+		}
+		corrupt.sort((a, b) -> Long.compare(a[0], b[0]));
+		return corrupt;
+	}
+
+	private static void invoke(ForkJoinPool pool, ChunkTask task) throws IOException {
+		try {
+			pool.invoke(task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	static byte[] root(byte[][] leaves) {
+		List<byte[]> level = new ArrayList<byte[]>(Arrays.asList(leaves));
+		while (level.size() > 1) {
+			List<byte[]> next = new ArrayList<byte[]>((level.size() + 1) / 2);
+			for (int i = 0; i < level.size(); i += 2) {
+				if (i + 1 == level.size()) {
+					next.add(level.get(i));
+				} else {
+					MessageDigest md = DigestUtils.getSha256Digest();
+					md.update((byte) 1);
+					md.update(level.get(i));
+					md.update(level.get(i + 1));
+					next.add(md.digest());
+				}
+			}
+			level = next;
+		}
+		return level.get(0);
+	}
+
+	/**
+	 * Adds this manifest to a binary description as a PREMIS fixity.
+	 */
+	void addTo(Graph g, IRI binary) {
+		BlankNode fix = rdf.createBlankNode("fixityTreeHash");
+		StringBuilder digests = new StringBuilder(leaves.length * 65);
+		for (byte[] leaf : leaves) {
+			if (digests.length() > 0) digests.append(' ');
+			digests.append(Hex.encodeHexString(leaf));
+		}
+		g.add(binary, rdf.createIRI(InlineFixity.PREMIS_FIXITY), fix);
+		g.add(fix, rdf.createIRI(InlineFixity.RDF_TYPE), NPS.TreeHashSHA256.iri);
+		g.add(fix, rdf.createIRI(InlineFixity.RDF_VALUE), rdf.createLiteral(getRoot()));
+		g.add(fix, NPS.chunkSize.iri, rdf.createLiteral(String.valueOf(chunkSize)));
+		g.add(fix, NPS.chunkDigests.iri, rdf.createLiteral(digests.toString()));
+		g.add(fix, rdf.createIRI(InlineFixity.DC_CREATOR), rdf.createLiteral(TreeHash.class.getName()));
+	}
+
+	/**
+	 * Reads a manifest from a binary description.
+	 * @return the manifest, or empty if there is none or it is damaged
+	 */
+	static Optional<TreeHash> fromTriples(Collection<? extends Triple> triples) {
+		BlankNodeOrIRI node = null;
+		Map<IRI, String> values = new HashMap<IRI, String>();
+		for (Triple t : triples) {
+			if (NPS.TreeHashSHA256.iri.equals(t.getObject())) {
+				node = t.getSubject();
+			}
+		}
+		if (node == null) return Optional.empty();
+		for (Triple t : triples) {
+			if (node.equals(t.getSubject()) && t.getObject() instanceof Literal) {
+				values.put(t.getPredicate(), ((Literal) t.getObject()).getLexicalForm());
+			}
+		}
+		try {
+			String[] hex = values.get(NPS.chunkDigests.iri).trim().split(" ");
+			byte[][] leaves = new byte[hex.length][];
+			for (int i = 0; i < hex.length; i++) {
+				leaves[i] = Hex.decodeHex(hex[i]);
+			}
+			TreeHash tree = new TreeHash(Long.parseLong(values.get(NPS.chunkSize.iri)), leaves);
+			if (!tree.getRoot().equalsIgnoreCase(values.get(rdf.createIRI(InlineFixity.RDF_VALUE)))) {
+				// chunk digests that do not add up to the root cannot be trusted
+				return Optional.empty();
+			}
+			return Optional.of(tree);
+		} catch (DecoderException | RuntimeException e) {
+			return Optional.empty();
+		}
+	}
+
+	private interface LeafConsumer {
+		void accept(int chunk, byte[] leaf);
+	}
+
+	/**
+	 * Hashes a range of chunks, splitting until one chunk per task.
+	 */
+	private static class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel ch;
+		private final long chunkSize;
+		private final int from;
+		private final int to;
+		private final ReadThrottle throttle;
+		private final IntPredicate include;
+		private final LeafConsumer consumer;
+
+		ChunkTask(FileChannel ch, long chunkSize, int from, int to, ReadThrottle throttle, IntPredicate include,
+				LeafConsumer consumer) {
+			this.ch = ch;
+			this.chunkSize = chunkSize;
+			this.from = from;
+			this.to = to;
+			this.throttle = throttle;
+			this.include = include;
+			this.consumer = consumer;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ChunkTask(ch, chunkSize, from, mid, throttle, include, consumer),
+						new ChunkTask(ch, chunkSize, mid, to, throttle, include, consumer));
+				return;
+			}
+			if (from == to || !include.test(from)) return;
+			try {
+				consumer.accept(from, leaf(from));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private byte[] leaf(int chunk) throws IOException {
+			MessageDigest md = DigestUtils.getSha256Digest();
+			md.update((byte) 0);
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.min(READ_SIZE, chunkSize));
+			long pos = chunk * chunkSize;
+			long end = Math.min(ch.size(), pos + chunkSize);
+			while (pos < end) {
+				buf.clear().limit((int) Math.min(buf.capacity(), end - pos));
+				throttle.acquire(buf.remaining());
+				int n = ch.read(buf, pos);
+				if (n < 0) break;
+				buf.flip();
+				md.update(buf);
+				pos += n;
+			}
+			return md.digest();
+		}
+	}
+}
@@ -15,10 +15,12 @@ import java.net.http.HttpResponse.BodyHandlers;
 import java.text.MessageFormat;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
 import org.apache.commons.rdf.api.Graph;
@@ -36,6 +38,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 
 import io.smallrye.reactive.messaging.annotations.Blocking;
 
+@ApplicationScoped
 public class TripleStoreRouter {
 	private static final Logger LOGGER = getLogger(TripleStoreRouter.class);
 	
@@ -102,6 +105,50 @@ public class TripleStoreRouter {
 		}
 	}
 	
+	/**
+	 * Inserts many resource graphs and their containment triples with a single SPARQL update. Graphs of resources
+	 * that were replaced are cleared first in the same update, as an Update notification would.
+	 * @param graphs the triples of each graph, keyed by graph IRI
+	 * @param contains the ldp:contains triples for the containment graph
+	 * @param replaced the graph IRIs of resources that existed before
+	 * @throws IOException if the update is not accepted
+	 */
+	void createAll(Map<String, List<Triple>> graphs, List<Triple> contains, Set<String> replaced) throws IOException {
+		StringBuilder insert = new StringBuilder();
+		graphs.keySet().stream().filter(replaced::contains)
+			.forEach(iri -> insert.append("DELETE WHERE { GRAPH <").append(iri).append("> { ?s ?p ?o } };\n"));
+		insert.append("INSERT DATA { ");
+		graphs.forEach((iri, g) -> {
+			if(g.isEmpty()) return;
+			insert.append("GRAPH <").append(iri).append("> { ").append(serialize(g)).append(" } ");
+		});
+		if(!contains.isEmpty()) {
+			insert.append("GRAPH <https://example.nps.gov/2021/nps-workflow#containsGraph> { ")
+				.append(serialize(contains)).append(" } ");
+		}
+		insert.append("};");
+		HttpClient http = HttpClient.newHttpClient();
+		HttpRequest req = HttpRequest.newBuilder(triplestoreUpdateUrl).method("POST", BodyPublishers.ofString(sparqlUpdate(insert.toString())))
+		        .header("Content-Type", "application/x-www-form-urlencoded; charset=utf-8")
+		        .build();
+		try {
+			int status = http.send(req, BodyHandlers.discarding()).statusCode();
+			if(status < 200 || status >= 300) {
+				throw new IOException("Triple store refused batch of " + graphs.size() + " graphs: " + status);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+	
+	private static String serialize(List<Triple> g) {
+		return g.stream().map(t -> MessageFormat.format("{0} {1} {2} .", 
+				t.getSubject().ntriplesString(),
+				t.getPredicate().ntriplesString(),
+				t.getObject().ntriplesString())).collect(Collectors.joining("\n"));
+	}
+	
 	private void createContains(List<Triple> g) {
 		String serialized = g.stream().map(t -> MessageFormat.format("{0} {1} {2} .", 
 				t.getSubject().ntriplesString(),
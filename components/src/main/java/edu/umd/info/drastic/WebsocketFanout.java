@@ -0,0 +1,189 @@
+package edu.umd.info.drastic;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+
+/**
+ * Fans resource change messages out to the websocket clients subscribed to each resource.
+ * <p>
+ * Subscribers are kept in a concurrent set per resource IRI, and each client keeps the IRIs it subscribed to, so a
+ * client that goes away is removed from just its own sets. Messages never wait on a client: each client has a queue
+ * of at most maxQueued pending messages, one per IRI, and only one send in flight. A newer message for an IRI that is
+ * still pending replaces the older one, as only the latest state of a resource matters, and a message for another IRI
+ * is dropped while the queue is full. A slow client therefore only ever delays, and loses updates, for itself.
+ *
+ * @author jansen
+ *
+ */
+class WebsocketFanout {
+	private static final Logger LOGGER = getLogger(WebsocketFanout.class);
+
+	/**
+	 * The connection to one client.
+	 */
+	interface Sink {
+		boolean isOpen();
+
+		/**
+		 * Sends without blocking.
+		 * @param done called once the text is sent, with null, or with the failure
+		 */
+		void send(String text, Consumer<Throwable> done);
+	}
+
+	private final int maxQueued;
+
+	private final ConcurrentMap<String, Set<Client>> subscribers = new ConcurrentHashMap<String, Set<Client>>();
+
+	private final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+
+	final AtomicLong coalesced = new AtomicLong();
+
+	final AtomicLong dropped = new AtomicLong();
+
+	WebsocketFanout(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	void subscribe(String clientId, Sink sink, String iri) {
+		Client client = clients.computeIfAbsent(clientId, id -> new Client(id, sink));
+		if (!client.iris.add(iri)) return;
+		subscribers.compute(iri, (k, set) -> {
+			if (set == null) set = ConcurrentHashMap.newKeySet();
+			set.add(client);
+			return set;
+		});
+		// a remove that ran meanwhile did not see this IRI yet
+		if (clients.get(clientId) != client) unsubscribe(client, iri);
+	}
+
+	/**
+	 * Removes a client from the subscriptions it made.
+	 */
+	void remove(String clientId) {
+		Client client = clients.remove(clientId);
+		if (client == null) return;
+		for (String iri : client.iris) {
+			unsubscribe(client, iri);
+		}
+	}
+
+	private void unsubscribe(Client client, String iri) {
+		subscribers.computeIfPresent(iri, (k, set) -> {
+			set.remove(client);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	/**
+	 * Queues a message for every subscriber of a resource.
+	 * @return the number of subscribers
+	 */
+	int publish(String iri, String message) {
+		Set<Client> set = subscribers.get(iri);
+		if (set == null) return 0;
+		int n = 0;
+		for (Client client : set) {
+			if (!client.sink.isOpen()) {
+				// also from this set, which the client may have been added to after it was removed
+				remove(client.id);
+				unsubscribe(client, iri);
+				continue;
+			}
+			client.offer(iri, message);
+			n++;
+		}
+		return n;
+	}
+
+	int subscriptions(String iri) {
+		Set<Client> set = subscribers.get(iri);
+		return set == null ? 0 : set.size();
+	}
+
+	int clients() {
+		return clients.size();
+	}
+
+	int resources() {
+		return subscribers.size();
+	}
+
+	private class Client {
+		final String id;
+		final Sink sink;
+		final Set<String> iris = ConcurrentHashMap.newKeySet();
+		final Map<String, String> pending = new LinkedHashMap<String, String>();
+		final AtomicInteger wip = new AtomicInteger();
+		boolean inFlight = false;
+
+		Client(String id, Sink sink) {
+			this.id = id;
+			this.sink = sink;
+		}
+
+		void offer(String iri, String message) {
+			synchronized (this) {
+				if (pending.containsKey(iri)) {
+					pending.put(iri, message);
+					coalesced.incrementAndGet();
+					return;
+				}
+				if (pending.size() >= maxQueued) {
+					dropped.incrementAndGet();
+					return;
+				}
+				pending.put(iri, message);
+			}
+			drain();
+		}
+
+		/**
+		 * Starts the next send when none is in flight. Sends completed on the calling thread re-enter here and are
+		 * picked up by the loop instead of recursing.
+		 */
+		void drain() {
+			if (wip.getAndIncrement() != 0) return;
+			do {
+				String next;
+				synchronized (this) {
+					if (inFlight || pending.isEmpty()) continue;
+					Iterator<String> it = pending.values().iterator();
+					next = it.next();
+					it.remove();
+					inFlight = true;
+				}
+				try {
+					sink.send(next, this::sent);
+				} catch (RuntimeException e) {
+					sent(e);
+				}
+			} while (wip.decrementAndGet() != 0);
+		}
+
+		void sent(Throwable failure) {
+			if (failure != null) {
+				LOGGER.debug("Cannot send to websocket client {}", id, failure);
+			}
+			synchronized (this) {
+				inFlight = false;
+			}
+			if (failure != null && !sink.isOpen()) {
+				remove(id);
+				return;
+			}
+			drain();
+		}
+	}
+}
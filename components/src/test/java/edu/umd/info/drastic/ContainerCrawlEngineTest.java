@@ -0,0 +1,70 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Crawl checkpoints only move past acknowledged messages, and the visited set counts its Bloom filter hits.
+ */
+public class ContainerCrawlEngineTest {
+
+	@Test
+	public void testPositionFollowsContiguousAcknowledgements() {
+		ContainerCrawlEngine.AckedPosition acks = new ContainerCrawlEngine.AckedPosition("a");
+		CompletableFuture<Void> b = new CompletableFuture<Void>();
+		CompletableFuture<Void> c = new CompletableFuture<Void>();
+		CompletableFuture<Void> d = new CompletableFuture<Void>();
+		acks.track("b", b);
+		acks.track("c", c);
+		acks.track("d", d);
+		assertEquals(Optional.of("a"), acks.position(), "nothing acknowledged yet");
+
+		c.complete(null);
+		assertEquals(Optional.of("a"), acks.position(), "b is still in flight");
+		b.complete(null);
+		assertEquals(Optional.of("c"), acks.position());
+		assertFalse(acks.await(0));
+		d.complete(null);
+		assertEquals(Optional.of("d"), acks.position());
+		assertTrue(acks.await(0));
+		assertEquals(0, acks.nacked());
+	}
+
+	@Test
+	public void testPositionStopsBeforeAFailure() {
+		ContainerCrawlEngine.AckedPosition acks = new ContainerCrawlEngine.AckedPosition(null);
+		CompletableFuture<Void> a = new CompletableFuture<Void>();
+		CompletableFuture<Void> b = new CompletableFuture<Void>();
+		acks.track("a", a);
+		acks.track("b", b);
+		acks.track("c", CompletableFuture.completedFuture(null));
+		b.completeExceptionally(new IllegalStateException("broker down"));
+		acks.track("d", CompletableFuture.completedFuture(null));
+		assertEquals(Optional.empty(), acks.position());
+
+		a.complete(null);
+		assertEquals(Optional.of("a"), acks.position(), "resumes at b");
+		assertTrue(acks.await(0));
+		assertEquals(1, acks.nacked());
+	}
+
+	@Test
+	public void testVisitedSetCountsBloomHits() {
+		ContainerCrawlEngine.VisitedSet visited = new ContainerCrawlEngine.VisitedSet(2, 1000, 0.000001);
+		assertTrue(visited.add("a"));
+		assertFalse(visited.add("a"));
+		assertEquals(0, visited.bloomHits(), "exact while small");
+		assertTrue(visited.add("b"));
+		assertTrue(visited.add("c"));
+		assertFalse(visited.add("a"));
+		assertFalse(visited.add("c"));
+		assertTrue(visited.add("d"));
+		assertEquals(2, visited.bloomHits());
+	}
+}
@@ -7,6 +7,8 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.io.File;
 import java.util.UUID;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.junit.jupiter.api.Test;
 
 import io.quarkus.test.junit.QuarkusTest;
@@ -14,6 +16,8 @@ import io.quarkus.test.junit.QuarkusTest;
 @QuarkusTest
 public class DigestHeaderTest {
 
+    private static final String TURTLE = "<> <http://purl.org/dc/terms/title> \"A title\" .\n";
+
     @Test
     public void testPOSTFileWithoutDigest() {
 	final File file = new File(getClass().getClassLoader()
@@ -96,6 +100,52 @@ public class DigestHeaderTest {
 	  .then().statusCode(409);
     }
     
+    @Test
+    public void testPUTFileWithIncorrectDigestIsNotStored() {
+	final File file = new File(getClass().getClassLoader()
+	    .getResource("test.txt").getFile());
+	assertNotNull(file);
+	assertTrue(file.canRead());
+	final String path = "/afile-"+UUID.randomUUID().toString();
+	given().
+	  header("Digest", "md5=thisisnotright").
+	  multiPart(file).
+	  when().
+	  put(path)
+	  .then().statusCode(409);
+	given().
+	  when().
+	  get(path)
+	  .then().statusCode(404);
+    }
+
+    @Test
+    public void testPUTRDFWithCorrectDigest() {
+	given().
+	  header("Digest", "md5="+Base64.encodeBase64String(DigestUtils.md5(TURTLE))).
+	  contentType("text/turtle").
+	  body(TURTLE).
+	  when().
+	  put("/rdf-"+UUID.randomUUID().toString())
+	  .then().statusCode(201);
+    }
+
+    @Test
+    public void testPUTRDFWithIncorrectDigest() {
+	final String path = "/rdf-"+UUID.randomUUID().toString();
+	given().
+	  header("Digest", "md5=thisisnotright").
+	  contentType("text/turtle").
+	  body(TURTLE).
+	  when().
+	  put(path)
+	  .then().statusCode(409);
+	given().
+	  when().
+	  get(path)
+	  .then().statusCode(404);
+    }
+
     @Test
     public void testPUTFileWithUnsupportedDigestAlgorithm() {
 	final File file = new File(getClass().getClassLoader()
@@ -0,0 +1,51 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Want-Digest and Want-Repr-Digest preferences and the stored digests that answer them.
+ */
+public class DigestResponseFilterTest {
+
+	private static final String MD5 = "9e107d9d372bb6826bd81d3542a419d6";
+	private static final String SHA256 = "d7a8fbb307d7809469ca9abcb0082e4f8d5651e46d3cdb762d02d0bf37c9e592";
+
+	@Test
+	public void testWantDigestIsOrderedByQuality() {
+		assertEquals(List.of("md5", "sha-256"), DigestResponseFilter.wanted(List.of("SHA-256;q=0.5, md5"), ';'));
+		assertEquals(List.of("sha-256", "md5"),
+				DigestResponseFilter.wanted(List.of("md5;q=0.3", "sha-256;q=0.9"), ';'), "across header lines");
+	}
+
+	@Test
+	public void testRefusedAndBrokenPreferencesAreDropped() {
+		assertEquals(List.of("sha-256"), DigestResponseFilter.wanted(List.of("md5;q=0, sha-256"), ';'));
+		assertEquals(List.of("sha"), DigestResponseFilter.wanted(List.of("md5;q=high, , sha"), ';'));
+		assertEquals(List.of(), DigestResponseFilter.wanted(List.of(), ';'));
+	}
+
+	@Test
+	public void testWantReprDigestUsesIntegerWeights() {
+		assertEquals(List.of("sha-256", "md5"), DigestResponseFilter.wanted(List.of("md5=1, sha-256=10"), '='));
+		assertEquals(List.of("md5"), DigestResponseFilter.wanted(List.of("sha-512=0, md5=3"), '='));
+	}
+
+	@Test
+	public void testAnswerGivesStoredDigestsInBase64() {
+		Map<String, String> answer = DigestResponseFilter.answer(List.of("sha-512", "sha-256", "md5"),
+				Map.of("md5", MD5, "sha256", SHA256));
+		assertEquals(List.of("sha-256", "md5"), List.copyOf(answer.keySet()), "unstored algorithms are left out");
+		assertEquals("nhB9nTcrtoJr2B01QqQZ1g==", answer.get("md5"));
+		assertEquals("16j7swfXgJRpypq8sAguT41WUeRtPNt2LQLQvzfJ5ZI=", answer.get("sha-256"));
+	}
+
+	@Test
+	public void testAnswerSkipsDamagedDigests() {
+		assertEquals(Map.of(), DigestResponseFilter.answer(List.of("md5"), Map.of("md5", "not hex")));
+	}
+}
@@ -0,0 +1,66 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * One pass over a binary gives every configured digest, read through the throttle.
+ */
+public class FixityEngineTest {
+
+	private final FixityEngine engine = new FixityEngine();
+
+	private final byte[] content = new byte[100_003];
+
+	private Path file;
+
+	public FixityEngineTest() throws IOException {
+		new Random(7).nextBytes(content);
+		file = Files.createTempFile("fixity", ".bin");
+		Files.write(file, content);
+		engine.algorithms = List.of("MD5", " SHA-256");
+		engine.ringSize = 2;
+	}
+
+	@AfterEach
+	public void stop() throws IOException {
+		engine.shutdown();
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void testFileDigestsMatchInOnePass() throws IOException {
+		AtomicLong read = new AtomicLong();
+		Map<String, String> digests = engine.digest(file, 4096, read::addAndGet);
+		assertEquals(Map.of("md5", DigestUtils.md5Hex(content), "sha-256", DigestUtils.sha256Hex(content)), digests);
+		assertEquals(content.length, read.get(), "every byte goes through the throttle once");
+	}
+
+	@Test
+	public void testStreamAndSingleAlgorithm() throws IOException {
+		assertEquals(DigestUtils.sha256Hex(content),
+				engine.digest(new ByteArrayInputStream(content)).get("sha-256"));
+		engine.algorithms = List.of("SHA-256");
+		assertEquals(Map.of("sha-256", DigestUtils.sha256Hex(content)), engine.digest(file, 4096, bytes -> {}));
+	}
+
+	@Test
+	public void testThrottleFailureStopsTheDigest() {
+		assertThrows(IOException.class, () -> engine.digest(file, 4096, bytes -> {
+			throw new IOException("stopped");
+		}));
+	}
+}
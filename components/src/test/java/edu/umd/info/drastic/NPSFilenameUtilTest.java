@@ -0,0 +1,35 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Names of the files derived from submission files.
+ */
+public class NPSFilenameUtilTest {
+
+	private static final String INVENTORY = "https://host/submissions/ABC123/ABC123_inventory.xlsx";
+
+	@Test
+	public void testExtractedInventoryParts() {
+		assertEquals("ABC123_inventory_EXTRACTED.ttl", NPSFilenameUtil.getExtractedDCFilename(INVENTORY));
+		assertEquals("ABC123_inventory_EXTRACTED.ttl", NPSFilenameUtil.getExtractedDCFilename(INVENTORY, 1));
+		assertEquals("ABC123_inventory_EXTRACTED_2.ttl", NPSFilenameUtil.getExtractedDCFilename(INVENTORY, 2));
+		assertEquals("inventory_EXTRACTED_10.ttl", NPSFilenameUtil.getExtractedDCFilename("inventory.xlsx", 10));
+	}
+
+	@Test
+	public void testOtherFilesAreRefused() {
+		assertThrows(IllegalArgumentException.class,
+				() -> NPSFilenameUtil.getExtractedDCFilename("https://host/submissions/ABC123/ABC123_P001.tif"));
+	}
+
+	@Test
+	public void testDerivativeNames() {
+		assertEquals("https://host/submissions/ABC123/ABC123_P001_ACCESS.png",
+				NPSFilenameUtil.getAccessImageURL("https://host/submissions/ABC123/ABC123_P001.tif"));
+		assertEquals("ABC123_P001_THUMB.jpg", NPSFilenameUtil.getDerivativeURL("ABC123_P001.tiff", "THUMB", "jpg"));
+	}
+}
@@ -0,0 +1,93 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.reactive.messaging.kafka.Record;
+
+/**
+ * Settling and sweeping of paged document completeness, against the tracking tables in the test database.
+ * /submissions/completeness-eager gets its derivatives on ingest in the test profile, other submissions are lazy.
+ */
+@QuarkusTest
+public class SubmissionCompletenessTrackerTest {
+
+	private static final String HOST = "http://localhost:8080";
+
+	@Inject
+	SubmissionCompletenessTracker tracker;
+
+	@Inject
+	@ConfigProperty(name = "trellis.paged-documents.settle-ms")
+	long settleMs;
+
+	private static String page(String submission, String doc, int page, String suffix) {
+		return HOST + submission + "/" + doc + String.format("_P%03d", page) + suffix;
+	}
+
+	private static Record<String, String> binary(String iri) {
+		return Record.of(iri, "");
+	}
+
+	private static Record<String, String> deleted(String iri) {
+		return Record.of(iri, "{\"type\": [\"Delete\"], \"object\": {\"id\": \"" + iri + "\"}}");
+	}
+
+	private Map<String, List<String>> sweepAfterSettling() {
+		return tracker.sweep(System.currentTimeMillis() + settleMs + 1);
+	}
+
+	@Test
+	public void testDocumentSettlesBeforeItIsRequested() throws Exception {
+		String doc = "T" + UUID.randomUUID().toString().replace("-", "") + "_D01";
+		String submission = "/submissions/completeness-" + UUID.randomUUID();
+		tracker.binary(binary(page(submission, doc, 1, ".tif")));
+
+		assertFalse(tracker.sweep(System.currentTimeMillis()).containsKey(HOST + submission + "/"),
+				"not before the settle period");
+		Map<String, List<String>> ready = sweepAfterSettling();
+		assertEquals(List.of(doc), ready.get(HOST + submission + "/"));
+		assertFalse(sweepAfterSettling().containsKey(HOST + submission + "/"), "requested once");
+
+		tracker.binary(binary(page(submission, doc, 2, ".tif")));
+		assertEquals(List.of(doc), sweepAfterSettling().get(HOST + submission + "/"), "a change starts a new round");
+	}
+
+	@Test
+	public void testEagerDocumentWaitsForDerivatives() throws Exception {
+		String doc = "T" + UUID.randomUUID().toString().replace("-", "") + "_D01";
+		String submission = "/submissions/completeness-eager";
+		String key = HOST + submission + "/";
+		tracker.binary(binary(page(submission, doc, 1, ".tif")));
+		tracker.binary(binary(page(submission, doc, 1, "_ACCESS.jpg")));
+		tracker.binary(binary(page(submission, doc, 2, ".tif")));
+		tracker.binary(binary(page(submission, doc, 2, "_ACCESS.jpg")));
+		tracker.binary(binary(page(submission, doc, 2, "_THUMBNAIL.jpg")));
+		assertFalse(sweepAfterSettling().getOrDefault(key, List.of()).contains(doc), "page 1 has no thumbnail");
+
+		tracker.binary(binary(page(submission, doc, 1, "_THUMBNAIL.jpg")));
+		assertTrue(sweepAfterSettling().get(key).contains(doc));
+
+		tracker.object(deleted(page(submission, doc, 2, "_ACCESS.jpg")));
+		assertFalse(sweepAfterSettling().getOrDefault(key, List.of()).contains(doc), "page 2 lost its access image");
+	}
+
+	@Test
+	public void testSweepIgnoresDocumentsWithoutPages() throws Exception {
+		String doc = "T" + UUID.randomUUID().toString().replace("-", "") + "_D01";
+		String submission = "/submissions/completeness-" + UUID.randomUUID();
+		tracker.binary(binary(page(submission, doc, 1, "_ACCESS.jpg")));
+		assertFalse(sweepAfterSettling().containsKey(HOST + submission + "/"));
+	}
+}
@@ -0,0 +1,30 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Path globs become SQL LIKE patterns, and public IRIs the internal ones.
+ */
+public class SubtreeEnumeratorTest {
+
+	@Test
+	public void testGlobWildcardsBecomeLikeWildcards() {
+		assertEquals("submissions/%/%.tif", SubtreeEnumerator.likePattern("submissions/*/*.tif"));
+		assertEquals("%/ABC\\_P00_.tif", SubtreeEnumerator.likePattern("*/ABC_P00?.tif"));
+	}
+
+	@Test
+	public void testLikeWildcardsInTheGlobAreLiteral() {
+		assertEquals("a\\_b\\%c\\\\d%", SubtreeEnumerator.likePattern("a_b%c\\d*"));
+	}
+
+	@Test
+	public void testInternalIriAndBase() {
+		assertEquals("trellis:data/submissions/ABC123",
+				SubtreeEnumerator.internal("https://host/submissions/ABC123/").getIRIString());
+		assertEquals("trellis:data/", SubtreeEnumerator.internal("https://host/").getIRIString());
+		assertEquals("https://host:8080", SubtreeEnumerator.base("https://host:8080/submissions/ABC123"));
+	}
+}
@@ -0,0 +1,52 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import edu.umd.info.drastic.NPSVocabulary.TIKA;
+
+/**
+ * Entities found in packed descriptions go back to the descriptions they occur in.
+ */
+public class TikaNERClientTest {
+
+	private static Map<TIKA, List<String>> entities(TIKA type, String... phrases) {
+		Map<TIKA, List<String>> result = new EnumMap<>(TIKA.class);
+		result.put(type, List.of(phrases));
+		return result;
+	}
+
+	@Test
+	public void testPhrasesGoToTheDescriptionTheyOccurIn() {
+		TIKA type = TIKA.values()[0];
+		List<Map<TIKA, List<String>>> split = TikaNERClient.attribute(
+				List.of("Letters of Anna Smith.", "Photographs by Smithson, Washington.", "Smith and Washington"),
+				entities(type, "Smith", "Washington"));
+		assertEquals(List.of("Smith"), split.get(0).get(type));
+		assertEquals(List.of("Washington"), split.get(1).get(type), "Smith is only part of Smithson");
+		assertEquals(List.of("Smith", "Washington"), split.get(2).get(type));
+	}
+
+	@Test
+	public void testPhraseNotFoundGoesNowhere() {
+		TIKA type = TIKA.values()[0];
+		List<Map<TIKA, List<String>>> split = TikaNERClient.attribute(List.of("first", "second"),
+				entities(type, "first" + TikaNERClient.BATCH_SEPARATOR + "second"));
+		assertNull(split.get(0).get(type), "never across descriptions");
+		assertNull(split.get(1).get(type));
+	}
+
+	@Test
+	public void testSingleDescriptionGetsEverything() {
+		TIKA type = TIKA.values()[0];
+		List<Map<TIKA, List<String>>> split = TikaNERClient.attribute(List.of("Anna  Smith"),
+				entities(type, "Anna Smith"));
+		assertEquals(List.of("Anna Smith"), split.get(0).get(type));
+	}
+}
@@ -0,0 +1,56 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Levels are 2x2 averages of the level above, and tiles are written at their canonical IIIF paths.
+ */
+public class TilePyramidBuilderTest {
+
+	@Test
+	public void testHalveAveragesAndRepeatsOddEdges() {
+		int[] src = {
+				0x000000, 0x040404, 0x100000,
+				0x000404, 0x080808, 0x100000,
+				0x000010, 0x000010, 0x00ff00 };
+		assertArrayEquals(new int[] { 0x030404, 0x100000, 0x000010, 0x00ff00 },
+				TilePyramidBuilder.halve(src, 3, 3, 2, 2));
+	}
+
+	@Test
+	public void testTilesAreWrittenAtCanonicalPaths() throws IOException {
+		List<String> paths = new ArrayList<String>();
+		List<byte[]> data = new ArrayList<byte[]>();
+		TilePyramidBuilder builder = new TilePyramidBuilder("https://host/iiif/ABC_P001", 300, 200, 256,
+				(path, bytes, mediaType) -> {
+					paths.add(path);
+					data.add(bytes);
+				});
+		builder.accept(new BufferedImage(300, 120, BufferedImage.TYPE_INT_RGB));
+		builder.accept(new BufferedImage(300, 80, BufferedImage.TYPE_INT_RGB));
+		builder.finish();
+		assertEquals(List.of(
+				"0,0,256,200/256,200/0/default.jpg",
+				"256,0,44,200/44,200/0/default.jpg",
+				"0,0,300,200/150,100/0/default.jpg",
+				"full/150,100/0/default.jpg",
+				"info.json"), paths);
+
+		JsonNode info = new ObjectMapper().readTree(data.get(data.size() - 1));
+		assertEquals("https://host/iiif/ABC_P001", info.path("id").asText());
+		assertEquals(300, info.path("width").asInt());
+		assertEquals("[1,2]", info.path("tiles").get(0).path("scaleFactors").toString());
+		assertEquals(150, info.path("sizes").get(0).path("width").asInt());
+	}
+}
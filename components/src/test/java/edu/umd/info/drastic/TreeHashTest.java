@@ -0,0 +1,138 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.rdf.api.Graph;
+import org.apache.commons.rdf.api.IRI;
+import org.apache.commons.rdf.api.RDF;
+import org.apache.commons.rdf.api.Triple;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.trellisldp.api.RDFFactory;
+
+import edu.umd.info.drastic.NPSVocabulary.NPS;
+
+/**
+ * The Merkle root, the byte ranges of chunks that no longer match and the tamper check of stored manifests.
+ */
+public class TreeHashTest {
+
+	private static final RDF rdf = RDFFactory.getInstance();
+
+	private final ForkJoinPool pool = new ForkJoinPool(2);
+
+	private final Path file = tempFile();
+
+	@AfterEach
+	public void stop() throws IOException {
+		pool.shutdownNow();
+		Files.deleteIfExists(file);
+	}
+
+	private static Path tempFile() {
+		try {
+			return Files.createTempFile("treehash", ".bin");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] sha256(int prefix, byte[]... parts) {
+		MessageDigest md = DigestUtils.getSha256Digest();
+		md.update((byte) prefix);
+		for (byte[] p : parts) {
+			md.update(p);
+		}
+		return md.digest();
+	}
+
+	private TreeHash compute(String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+		return TreeHash.compute(file, 10, pool, bytes -> {});
+	}
+
+	@Test
+	public void testRootCarriesAnOddNodeUp() throws IOException {
+		TreeHash tree = compute("0123456789abcdefghijABCDEFGHIJxyz");
+		byte[] a = sha256(0, "0123456789".getBytes(StandardCharsets.US_ASCII));
+		byte[] b = sha256(0, "abcdefghij".getBytes(StandardCharsets.US_ASCII));
+		byte[] c = sha256(0, "ABCDEFGHIJ".getBytes(StandardCharsets.US_ASCII));
+		byte[] d = sha256(0, "xyz".getBytes(StandardCharsets.US_ASCII));
+		assertEquals(4, tree.getChunkCount());
+		assertArrayEquals(sha256(1, sha256(1, a, b), sha256(1, c, d)), tree.root);
+		assertArrayEquals(sha256(1, sha256(1, a, b), c), TreeHash.root(new byte[][] { a, b, c }));
+		assertArrayEquals(a, TreeHash.root(new byte[][] { a }), "a single chunk is its own root");
+	}
+
+	@Test
+	public void testVerifyNamesTheCorruptRanges() throws IOException {
+		TreeHash tree = compute("0123456789abcdefghijABCDEFGHIJxyz");
+		Files.write(file, "0123456789abcdefghiJABCDEFGHIJxyz".getBytes(StandardCharsets.US_ASCII));
+		BitSet verified = new BitSet();
+		List<long[]> corrupt = tree.verify(file, pool, bytes -> {}, verified, () -> {});
+		assertEquals(List.of("10-20"), ranges(corrupt));
+		assertEquals(3, verified.cardinality());
+		assertTrue(!verified.get(1));
+
+		Files.write(file, "0123456789abcdefghijABCDEFGHIJ".getBytes(StandardCharsets.US_ASCII));
+		corrupt = tree.verify(file, pool, bytes -> {}, new BitSet(), () -> {});
+		assertEquals(List.of("30-40"), ranges(corrupt), "the missing tail is corrupt");
+	}
+
+	@Test
+	public void testVerifySkipsChunksAlreadyVerified() throws IOException {
+		TreeHash tree = compute("0123456789abcdefghijABCDEFGHIJxyz");
+		Files.write(file, "0123456789abcdefghiJABCDEFGHIJxyz".getBytes(StandardCharsets.US_ASCII));
+		BitSet verified = new BitSet();
+		verified.set(1);
+		assertEquals(List.of(), ranges(tree.verify(file, pool, bytes -> {}, verified, () -> {})));
+		assertEquals(4, verified.cardinality());
+	}
+
+	@Test
+	public void testStoredManifestRoundTrips() throws IOException {
+		TreeHash tree = compute("0123456789abcdefghijABCDEFGHIJxyz");
+		List<Triple> triples = triples(tree);
+		TreeHash read = TreeHash.fromTriples(triples).orElseThrow();
+		assertEquals(tree.getRoot(), read.getRoot());
+		assertEquals(10, read.chunkSize);
+		assertEquals(4, read.getChunkCount());
+	}
+
+	@Test
+	public void testTamperedManifestIsIgnored() throws IOException {
+		TreeHash tree = compute("0123456789abcdefghijABCDEFGHIJxyz");
+		List<Triple> triples = triples(tree).stream().map(t -> {
+			if (!NPS.chunkDigests.iri.equals(t.getPredicate())) return t;
+			String digests = ((org.apache.commons.rdf.api.Literal) t.getObject()).getLexicalForm();
+			String tampered = DigestUtils.sha256Hex("other") + digests.substring(64);
+			return rdf.createTriple(t.getSubject(), t.getPredicate(), rdf.createLiteral(tampered));
+		}).collect(Collectors.toList());
+		assertTrue(TreeHash.fromTriples(triples).isEmpty());
+		assertTrue(TreeHash.fromTriples(List.of()).isEmpty());
+	}
+
+	private static List<Triple> triples(TreeHash tree) {
+		Graph g = rdf.createGraph();
+		IRI binary = rdf.createIRI("trellis:data/submissions/ABC123/file.tif");
+		tree.addTo(g, binary);
+		return g.stream().collect(Collectors.toList());
+	}
+
+	private static List<String> ranges(List<long[]> corrupt) {
+		return corrupt.stream().map(r -> r[0] + "-" + r[1]).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,156 @@
+package edu.umd.info.drastic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Fans out to 10k simulated websocket sessions, a hundred of which never finish a send.
+ */
+public class WebsocketFanoutLoadTest {
+
+	private static final int SESSIONS = 10000;
+	private static final int SLOW = 100;
+	private static final int RESOURCES = 1000;
+	private static final int MAX_QUEUED = 16;
+	private static final String HOT = "http://localhost/submissions/hot";
+
+	private final ExecutorService network = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	public void stop() {
+		network.shutdownNow();
+	}
+
+	/**
+	 * Completes every send later on a network thread, and counts down when it got the final hot message.
+	 */
+	private class FastSink implements WebsocketFanout.Sink {
+		final CountDownLatch gotFinal;
+		volatile boolean open = true;
+
+		FastSink(CountDownLatch gotFinal) {
+			this.gotFinal = gotFinal;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void send(String text, Consumer<Throwable> done) {
+			network.execute(() -> {
+				if ("final".equals(text)) gotFinal.countDown();
+				done.accept(null);
+			});
+		}
+	}
+
+	/**
+	 * Never completes a send, like a browser that stopped reading.
+	 */
+	private static class StuckSink implements WebsocketFanout.Sink {
+		final AtomicInteger sends = new AtomicInteger();
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void send(String text, Consumer<Throwable> done) {
+			sends.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void testTenThousandSessions() throws InterruptedException {
+		WebsocketFanout fanout = new WebsocketFanout(MAX_QUEUED);
+		CountDownLatch gotFinal = new CountDownLatch(SESSIONS - SLOW);
+		List<FastSink> fast = new ArrayList<FastSink>();
+		List<StuckSink> stuck = new ArrayList<StuckSink>();
+		for (int i = 0; i < SESSIONS; i++) {
+			WebsocketFanout.Sink sink;
+			if (i < SLOW) {
+				StuckSink s = new StuckSink();
+				stuck.add(s);
+				sink = s;
+			} else {
+				FastSink s = new FastSink(gotFinal);
+				fast.add(s);
+				sink = s;
+			}
+			String id = "session-" + i;
+			fanout.subscribe(id, sink, HOT);
+			fanout.subscribe(id, sink, HOT); // twice is once
+			for (int r = 0; r < 10; r++) {
+				fanout.subscribe(id, sink, "http://localhost/submissions/r" + ((i + r * 97) % RESOURCES));
+			}
+		}
+		assertEquals(SESSIONS, fanout.clients());
+		assertEquals(SESSIONS, fanout.subscriptions(HOT), "no ceiling on subscribers of one resource");
+
+		long start = System.nanoTime();
+		for (int m = 0; m < 200; m++) {
+			fanout.publish(HOT, "hot-" + m);
+			for (int r = 0; r < RESOURCES; r += 10) {
+				fanout.publish("http://localhost/submissions/r" + r, "r" + r + "-" + m);
+			}
+		}
+		fanout.publish(HOT, "final");
+		long publishMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue(gotFinal.await(60, TimeUnit.SECONDS), "every responsive session gets the latest state");
+		assertTrue(publishMillis < 30000, "publishing never waits on the stuck sessions: " + publishMillis + "ms");
+		for (StuckSink s : stuck) {
+			assertEquals(1, s.sends.get(), "a stuck session has a single send in flight");
+		}
+		assertTrue(fanout.dropped.get() + fanout.coalesced.get() > 0);
+
+		for (int i = 0; i < SESSIONS; i++) {
+			fanout.remove("session-" + i);
+		}
+		assertEquals(0, fanout.clients());
+		assertEquals(0, fanout.resources(), "closing sessions leaves no empty subscriber sets");
+	}
+
+	@Test
+	public void testCoalesceOrDrop() {
+		WebsocketFanout fanout = new WebsocketFanout(2);
+		StuckSink stuck = new StuckSink();
+		fanout.subscribe("s", stuck, "a");
+		fanout.subscribe("s", stuck, "b");
+		fanout.subscribe("s", stuck, "c");
+		fanout.publish("a", "a1"); // in flight
+		fanout.publish("a", "a2"); // queued
+		fanout.publish("a", "a3"); // replaces a2
+		fanout.publish("b", "b1"); // queued
+		fanout.publish("c", "c1"); // queue full
+		assertEquals(1, stuck.sends.get());
+		assertEquals(1, fanout.coalesced.get());
+		assertEquals(1, fanout.dropped.get());
+	}
+
+	@Test
+	public void testClosedSessionIsRemovedOnPublish() {
+		WebsocketFanout fanout = new WebsocketFanout(MAX_QUEUED);
+		FastSink sink = new FastSink(new CountDownLatch(1));
+		fanout.subscribe("s", sink, "a");
+		sink.open = false;
+		assertEquals(0, fanout.publish("a", "a1"));
+		assertEquals(0, fanout.clients());
+		assertEquals(0, fanout.resources());
+	}
+}